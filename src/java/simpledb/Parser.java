@@ -8,6 +8,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.optimizer.ApproximateClause;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
@@ -277,6 +278,7 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private ApproximateClause approximation = null; // ERROR WITHIN / WITHIN MS of the current statement
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
@@ -284,6 +286,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (approximation != null && approximation.isApproximate())
+            lp.setApproximation(approximation);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +469,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ApproximateClause approx = ApproximateClause.parse(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(approx.getStatement().getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (approx.isApproximate())
+                    lp.setApproximation(approx);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -503,8 +511,13 @@ public class Parser {
 
     private void processNextStatementImpl(InputStream is, boolean expectNoErrors) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // Zql can't parse the approximate-query clauses, take them out first
+            approximation = ApproximateClause.parse(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    approximation.getStatement().getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (approximation.isApproximate() && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("ERROR WITHIN, WITHIN MS and TABLESAMPLE can only be used in SELECT statements");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -584,7 +597,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "insert", "delete", "values", "into", "error within", "at confidence", "within"};
 
     public static void main(String[] argv) throws IOException {
 
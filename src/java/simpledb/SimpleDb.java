@@ -1,14 +1,21 @@
 package simpledb;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.optimizer.SampleCreator;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class SimpleDb {
     public static void main(String[] args)
@@ -17,6 +24,13 @@ public class SimpleDb {
         switch (args[0]) {
             case "convert":
                 try {
+                    // an optional trailing sample spec, see buildSamples
+                    String[] sampleSpec = null;
+                    int specStart = Arrays.asList(args).indexOf("--sample");
+                    if (specStart >= 0) {
+                        sampleSpec = Arrays.copyOfRange(args, specStart + 1, args.length);
+                        args = Arrays.copyOf(args, specStart);
+                    }
                     if (args.length < 3 || args.length > 5) {
                         System.err.println("Unexpected number of arguments to convert ");
                         return;
@@ -52,8 +66,16 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    if (sampleSpec == null) {
+                        HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    } else {
+                        IngestSampler sampler = buildSamples(targetDatFile, new TupleDesc(ts), sampleSpec);
+                        if (sampler == null) return;
+                        HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator, sampler);
+                        sampler.finish();
+                    }
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -77,6 +99,19 @@ public class SimpleDb {
                     it.close();
                 }
                 break;
+            case "benchsample":
+                // time building a uniform sample of a table serially and in parallel
+                if (args.length < 4 || args.length > 5) {
+                    System.err.println("Unexpected number of arguments to benchsample ");
+                    return;
+                }
+                try {
+                    int parallelism = args.length == 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+                    benchSample(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), parallelism);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "parser":
                 // Strip the first argument and call the parser
                 String[] newargs = new String[args.length - 1];
@@ -103,4 +138,90 @@ public class SimpleDb {
         }
     }
 
+    /**
+     * Print how long building a uniform sample of sampleSize rows of the table
+     * in tableFile takes with one thread and with parallelism threads. Each is
+     * built once untimed first, to warm the OS cache and the JIT, so both timed
+     * builds start from the same place.
+     */
+    private static void benchSample(File tableFile, int columns, int sampleSize, int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = Utility.openHeapFile(columns, tableFile);
+        int[] threads = new int[]{1, parallelism, 1, parallelism};
+        long[] millis = new long[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            File f = File.createTempFile("benchsample", ".dat");
+            f.deleteOnExit();
+            SampleDBFile sample = new SampleDBFile(f, Collections.singletonList(sampleSize), null, table.getTupleDesc());
+            Database.getCatalog().addTable(sample, "benchsample-" + i, "", true);
+            Database.getBufferPool().clearBufferPool();
+
+            long start = System.nanoTime();
+            sample.createUniformSamples(table, threads[i]);
+            millis[i] = (System.nanoTime() - start) / 1000000;
+        }
+        System.out.println(table.numPages() + " pages, sample of " + sampleSize + " rows");
+        System.out.println("serial:   " + millis[2] + " ms");
+        System.out.println("parallel: " + millis[3] + " ms with " + parallelism + " threads ("
+                + String.format("%.2f", millis[2] / (double) Math.max(1, millis[3])) + "x)");
+    }
+
+    /**
+     * Set up the sample families to build while converting a table, from a
+     * spec of the form
+     * <pre>
+     * catalog sizes family... [cap=n]
+     * </pre>
+     * e.g. "data.samples 1000,10000 uniform 0 1+2": the sample catalog to record
+     * the families in, the cutoffs of every family, and the families, either
+     * "uniform" or the columns to stratify on joined by '+'. Stratified families
+     * keep up to cap rows per stratum (SampleCreator.DEFAULT_STRATUM_CAP by default).
+     * Each family is written next to the table, e.g. data-strat-1-2.dat.
+     *
+     * @return the sampler to feed the table to, or null if the spec is malformed
+     */
+    private static IngestSampler buildSamples(File targetDatFile, TupleDesc td, String[] spec) throws IOException, DbException, TransactionAbortedException {
+        if (spec.length < 3) {
+            System.err.println("Expected --sample <catalog> <sizes> <family>...");
+            return null;
+        }
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : spec[1].split(","))
+            sizes.add(Integer.parseInt(size.trim()));
+
+        int stratumCap = SampleCreator.DEFAULT_STRATUM_CAP;
+        List<QueryColumnSet> families = new ArrayList<>();
+        for (int i = 2; i < spec.length; i++) {
+            if (spec[i].startsWith("cap=")) {
+                stratumCap = Integer.parseInt(spec[i].substring(4));
+            } else if (spec[i].equalsIgnoreCase("uniform")) {
+                families.add(null);
+            } else {
+                String[] cols = spec[i].split("\\+");
+                Integer[] columns = new Integer[cols.length];
+                for (int j = 0; j < cols.length; j++) {
+                    columns[j] = Integer.parseInt(cols[j]);
+                    if (columns[j] < 0 || columns[j] >= td.numFields()) {
+                        System.err.println("No column " + columns[j] + " to stratify on");
+                        return null;
+                    }
+                }
+                families.add(new QueryColumnSet(columns));
+            }
+        }
+
+        Database.getCatalog().loadSampleCatalog(new File(spec[0]));
+        String table = targetDatFile.getName().replaceAll("\\.dat$", "");
+        List<SampleDBFile> samples = new ArrayList<>();
+        for (QueryColumnSet qcs : families) {
+            String name = table + "-" + (qcs == null ? "uniform"
+                    : "strat-" + String.join("-", qcs.getColumns().stream().sorted().map(String::valueOf).toArray(String[]::new)));
+            File f = new File(targetDatFile.getAbsoluteFile().getParentFile(), name + ".dat");
+            SampleDBFile sf = new SampleDBFile(f, sizes, qcs, td);
+            Database.getCatalog().addTable(sf, name, "", true);
+            samples.add(sf);
+        }
+        return new IngestSampler(targetDatFile, samples, stratumCap);
+    }
+
 }
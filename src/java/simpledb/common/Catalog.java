@@ -1,19 +1,33 @@
 package simpledb.common;
 
 import simpledb.storage.DbFile;
+import simpledb.storage.FreeSpaceMap;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
 import simpledb.storage.SampleDBFile;
+import simpledb.storage.SampleDirectory;
+import simpledb.storage.SampleMetadata;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
+import simpledb.transaction.TransactionAbortedException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -47,20 +61,43 @@ public class Catalog {
     /**
      * Mapping of table ids to tables
      */
-    private HashMap<Integer, Table> idsToTables;
+    private ConcurrentHashMap<Integer, Table> idsToTables;
+
+    /**
+     * Sample families replaced by {@link #publishSample}, which queries that
+     * were already reading them can still look up until they are released
+     * (see {@link #releaseRetiredSamples})
+     */
+    private ConcurrentHashMap<Integer, Table> retiredTables;
     
     /**
      * Mapping of table names to tables
      */
-    private HashMap<String, Table> stringsToTables;
+    private ConcurrentHashMap<String, Table> stringsToTables;
+
+    /**
+     * Mapping of base table ids to the populated samples built from them, so
+     * that inserts and deletes find the samples to maintain without going
+     * through every table
+     */
+    private ConcurrentHashMap<Integer, List<SampleDBFile>> samplesByBase;
+
+    /**
+     * Where the sample catalog is persisted, or null if it is not
+     */
+    private File sampleCatalogFile;
+
+    private static final int SAMPLE_CATALOG_MAGIC = 0x53434154; // "SCAT"
     
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
-        this.idsToTables = new HashMap<Integer, Table>();
-        this.stringsToTables = new HashMap<String, Table>();
+        this.idsToTables = new ConcurrentHashMap<Integer, Table>();
+        this.retiredTables = new ConcurrentHashMap<Integer, Table>();
+        this.stringsToTables = new ConcurrentHashMap<String, Table>();
+        this.samplesByBase = new ConcurrentHashMap<Integer, List<SampleDBFile>>();
     }
 
     /**
@@ -75,15 +112,57 @@ public class Catalog {
      * @param isSample  whether this table represents a sample
      */
     public void addTable(DbFile file, String name, String pkeyField, boolean isSample) {
+        if(isSample) adoptMetadata((SampleDBFile) file);
         Table table = new Table(file, name, pkeyField, isSample);
-        idsToTables.put(file.getId(), table);
+        Table old = idsToTables.put(file.getId(), table);
         stringsToTables.put(name, table);
+        if(old != null && old.isSample) unindexSample(old.file);
+        if(isSample) indexSample((SampleDBFile) file);
+    }
+
+    /**
+     * If file is an unpopulated sample with the same file and layout as a sample
+     * loaded from the sample catalog, it is the same sample family: reuse its metadata
+     */
+    private void adoptMetadata(SampleDBFile file) {
+        Table existing = idsToTables.get(file.getId());
+        if(file.isPopulated() || existing == null || !existing.isSample) return;
+
+        SampleMetadata metadata = ((SampleDBFile) existing.file).getMetadata();
+        if(metadata != null && metadata.getCutoffs().equals(file.getSampleSizes())
+                && Objects.equals(metadata.getQueryColumnSet(), file.getStratifiedColumnSet())) {
+            file.setMetadata(metadata);
+        }
     }
 
     public void addTable(DbFile file, String name, String pkeyField) {
         addTable(file, name, pkeyField, false);
     }
 
+    /**
+     * Publish a newly built sample family under name, replacing the family
+     * registered under that name, if any. Queries planned after this see the
+     * new family and not the old one. The old family is retired rather than
+     * dropped, so queries already reading it can finish; its file is deleted
+     * by {@link #releaseRetiredSamples}.
+     *
+     * @param file a populated sample, whose file is not used by any other table
+     * @param name the name of the sample family
+     */
+    public synchronized void publishSample(SampleDBFile file, String name) throws IOException {
+        Table old = stringsToTables.get(name);
+        Table table = new Table(file, name, "", true);
+        idsToTables.put(file.getId(), table);
+        stringsToTables.put(name, table);
+        if(old != null && old.file.getId() != file.getId()) {
+            idsToTables.remove(old.file.getId());
+            retiredTables.put(old.file.getId(), old);
+            if(old.isSample) unindexSample(old.file);
+        }
+        indexSample(file);
+        saveSampleCatalog();
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -106,7 +185,7 @@ public class Catalog {
      * @throws NoSuchElementException if the table doesn't exist
      */
     public int getTableId(String name) throws NoSuchElementException {
-        if(!this.stringsToTables.containsKey(name)) throw new NoSuchElementException("table with specified name does not exist");
+        if(name == null || !this.stringsToTables.containsKey(name)) throw new NoSuchElementException("table with specified name does not exist");
         return this.stringsToTables.get(name).file.getId();
     }
 
@@ -118,8 +197,18 @@ public class Catalog {
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-        if(!this.idsToTables.containsKey(tableid)) throw new NoSuchElementException("table with specified id does not exist");
-        return this.idsToTables.get(tableid).file.getTupleDesc();
+        Table table = getTable(tableid);
+        if(table == null) throw new NoSuchElementException("table with specified id does not exist");
+        return table.file.getTupleDesc();
+    }
+
+    /**
+     * @return the table with the specified id, including a replaced sample
+     *         family that may still be being read, or null if there is none
+     */
+    private Table getTable(int tableid) {
+        Table table = this.idsToTables.get(tableid);
+        return table != null ? table : this.retiredTables.get(tableid);
     }
 
     /**
@@ -130,20 +219,55 @@ public class Catalog {
      *                function passed to addTable
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-        return this.idsToTables.get(tableid).file;
+        return getTable(tableid).file;
     }
 
     public String getPrimaryKey(int tableid) {
-        return this.idsToTables.get(tableid).pkeyField;
+        return getTable(tableid).pkeyField;
     }
     
     public boolean isSample(int tableid) {
-        return this.idsToTables.get(tableid).isSample;
+        return getTable(tableid).isSample;
     }
 
     public SampleDBFile getSampleDBFile(int tableid) throws NoSuchElementException {
         assert this.isSample(tableid); 
-        return (SampleDBFile) this.idsToTables.get(tableid).file;
+        return (SampleDBFile) getTable(tableid).file;
+    }
+
+    /**
+     * Returns the samples built from the specified table
+     *
+     * @param baseTableId the id of the base table
+     */
+    public List<SampleDBFile> getSampleFamilies(int baseTableId) {
+        List<SampleDBFile> samples = this.samplesByBase.get(baseTableId);
+        return samples == null ? Collections.emptyList() : Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * Tell the catalog that sample now has a different base table, e.g. after
+     * it was populated, so {@link #getSampleFamilies} finds it under the new one
+     */
+    public void sampleRebased(SampleDBFile sample) {
+        Table table = this.idsToTables.get(sample.getId());
+        if(table != null && table.file == sample) indexSample(sample);
+    }
+
+    private void indexSample(SampleDBFile sample) {
+        synchronized(this.samplesByBase) {
+            unindexSample(sample);
+            if(sample.isPopulated()) {
+                this.samplesByBase.computeIfAbsent(sample.getBaseTableId(), id -> new CopyOnWriteArrayList<>()).add(sample);
+            }
+        }
+    }
+
+    private void unindexSample(DbFile sample) {
+        synchronized(this.samplesByBase) {
+            for(List<SampleDBFile> samples : this.samplesByBase.values()) samples.remove(sample);
+            this.samplesByBase.values().removeIf(List::isEmpty);
+        }
     }
 
     public Iterator<Integer> tableIdIterator() {
@@ -151,19 +275,130 @@ public class Catalog {
     }
 
     public String getTableName(int tableid) {
-        return this.idsToTables.get(tableid).name;
+        return getTable(tableid).name;
+    }
+
+    /**
+     * Drop the sample families replaced by {@link #publishSample}: their
+     * pages are evicted from the BufferPool without being written, and their
+     * files are closed and deleted. Only call this once no query is reading
+     * them any more.
+     */
+    public synchronized void releaseRetiredSamples() {
+        for(Table table : this.retiredTables.values()) {
+            SampleDBFile sf = (SampleDBFile) table.file;
+            int numPages = sf.numPages();
+            for(int pgNo = 0; pgNo < numPages; pgNo++) {
+                Database.getBufferPool().removePage(new HeapPageId(sf.getId(), pgNo));
+            }
+            close(table);
+            sf.getFile().delete();
+            SampleDirectory.fileFor(sf.getFile()).delete();
+            FreeSpaceMap.fileFor(sf.getFile()).delete();
+        }
+        this.retiredTables.clear();
     }
 
     /**
-     * Delete all tables from the catalog
+     * Delete all tables from the catalog, closing their files. Retired sample
+     * families are released (see {@link #releaseRetiredSamples}).
      */
-    public void clear() {
+    public synchronized void clear() {
+        releaseRetiredSamples();
+        for(Table table : this.idsToTables.values()) close(table);
         this.idsToTables.clear();
         this.stringsToTables.clear();
+        this.samplesByBase.clear();
+    }
+
+    private static void close(Table table) {
+        if(!(table.file instanceof HeapFile)) return;
+        try {
+            ((HeapFile) table.file).close();
+        } catch (IOException e) {
+            // the file is no longer used, there is nothing more to do
+        }
+    }
+
+    /**
+     * Use f as the sample catalog: register every populated sample family
+     * recorded in it (skipping those whose sample file is gone), and record
+     * sample families in it from now on as they are built or maintained.
+     *
+     * @param f the sample catalog, which need not exist yet
+     */
+    public synchronized void loadSampleCatalog(File f) throws IOException {
+        this.sampleCatalogFile = f;
+        if(!f.exists()) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if(in.readInt() != SAMPLE_CATALOG_MAGIC) throw new IOException("not a sample catalog: " + f);
+            int numSamples = in.readInt();
+            for(int i = 0; i < numSamples; i++) {
+                String name = in.readUTF();
+                File sampleFile = new File(in.readUTF());
+
+                int numFields = in.readInt();
+                Type[] types = new Type[numFields];
+                String[] names = new String[numFields];
+                for(int j = 0; j < numFields; j++) {
+                    types[j] = Type.valueOf(in.readUTF());
+                    names[j] = in.readBoolean() ? in.readUTF() : null;
+                }
+                SampleMetadata metadata = SampleMetadata.read(in);
+                if(!sampleFile.exists()) continue;
+
+                try {
+                    SampleDBFile sf = new SampleDBFile(sampleFile, metadata.getCutoffs(), metadata.getQueryColumnSet(), new TupleDesc(types, names));
+                    sf.setMetadata(metadata);
+                    addTable(sf, name, "", true);
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write every populated sample family to the sample catalog, if there is
+     * one. The catalog is replaced atomically, so a crash leaves either the old
+     * or the new version.
+     */
+    public synchronized void saveSampleCatalog() throws IOException {
+        if(sampleCatalogFile == null) return;
+
+        List<Table> samples = new ArrayList<>();
+        for(Table table : idsToTables.values()) {
+            if(table.isSample && ((SampleDBFile) table.file).isPopulated()) samples.add(table);
+        }
+
+        File tmp = new File(sampleCatalogFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(SAMPLE_CATALOG_MAGIC);
+            out.writeInt(samples.size());
+            for(Table table : samples) {
+                SampleDBFile sf = (SampleDBFile) table.file;
+                out.writeUTF(table.name);
+                out.writeUTF(sf.getFile().getAbsolutePath());
+
+                TupleDesc td = sf.getTupleDesc();
+                out.writeInt(td.numFields());
+                for(int j = 0; j < td.numFields(); j++) {
+                    out.writeUTF(td.getFieldType(j).name());
+                    String fieldName = td.getFieldName(j);
+                    out.writeBoolean(fieldName != null);
+                    if(fieldName != null) out.writeUTF(fieldName);
+                }
+                sf.getMetadata().write(out);
+            }
+        }
+        Files.move(tmp.toPath(), sampleCatalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Sample families recorded in the sample catalog next to it (catalogFile + ".samples")
+     * are registered as well.
      *
      * @param catalogFile
      */
@@ -209,6 +444,7 @@ public class Catalog {
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
+            loadSampleCatalog(new File(catalogFile + ".samples"));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
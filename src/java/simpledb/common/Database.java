@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.optimizer.ErrorLatencyProfile;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -21,6 +22,7 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final ErrorLatencyProfile.Cache _profiles;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -28,6 +30,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _profiles = new ErrorLatencyProfile.Cache();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -53,6 +56,13 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Return the error-latency profiles measured by the static Database instance
+     */
+    public static ErrorLatencyProfile.Cache getProfileCache() {
+        return _instance.get()._profiles;
+    }
+
     /**
      * Return the catalog of the static Database instance
      */
@@ -0,0 +1,96 @@
+package simpledb.common;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing (linear probing) hash map from primitive long keys to
+ * non-negative int values. Unlike a HashMap&lt;Long, Integer&gt;, lookups and
+ * updates do not box their arguments, so it can be used on per-tuple paths
+ * without allocating.
+ */
+public class LongIntHashMap {
+
+    /**
+     * Value returned by {@link #get} for keys that are not in the map
+     */
+    public static final int NO_VALUE = -1;
+
+    private long[] keys;
+    private int[] values; // NO_VALUE marks an empty slot
+    private int size;
+    private int mask;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of keys the map should hold without resizing
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential keys
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return the value associated with key, or {@link #NO_VALUE} if there is none
+     */
+    public int get(long key) {
+        for(int i = slot(key); ; i = (i + 1) & mask) {
+            if(values[i] == NO_VALUE) return NO_VALUE;
+            if(keys[i] == key) return values[i];
+        }
+    }
+
+    /**
+     * Associate value with key, replacing any previous value
+     *
+     * @param value a non-negative value
+     */
+    public void put(long key, int value) {
+        if(value < 0) throw new IllegalArgumentException("values must be non-negative");
+
+        int i = slot(key);
+        while(values[i] != NO_VALUE) {
+            if(keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        if(size * 2 > keys.length) resize();
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] != NO_VALUE) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * @return the number of keys in the map
+     */
+    public int size() {
+        return this.size;
+    }
+}
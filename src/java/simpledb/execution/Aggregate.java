@@ -7,6 +7,7 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -74,6 +75,25 @@ public class Aggregate extends Operator {
         return ((IntegerAggregator) aggregator).getSampleVariance();
     }
 
+    /**
+     * @return running stats of the aggregate field over the merged tuples, or
+     *         null if it is not an int field
+     */
+    public RunningStats getRunningStats() {
+        if(!(aggregator instanceof IntegerAggregator)) return null;
+        return ((IntegerAggregator) aggregator).getRunningStats();
+    }
+
+    /**
+     * @return running stats of the aggregate field for each group, by group
+     *         value (see {@link IntegerAggregator#getGroupStats}), or null if
+     *         it is not an int field
+     */
+    public Map<Object, RunningStats> getGroupStats() {
+        if(!(aggregator instanceof IntegerAggregator)) return null;
+        return ((IntegerAggregator) aggregator).getGroupStats();
+    }
+
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      *         field index in the <b>INPUT</b> tuples. If not, return
@@ -123,7 +143,7 @@ public class Aggregate extends Operator {
         super.open();
         child.open();
         if (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) {
-        	((IntegerAggregator) aggregator).resetMergedTuples(0);
+        	((IntegerAggregator) aggregator).resetMergedTuples();
         }
         
         // Add all tuples into the aggregator
@@ -0,0 +1,179 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bootstrap estimates the error of any aggregate over a uniform sample, where
+ * the closed forms of {@link RunningStats} only cover SUM, AVG and COUNT. The
+ * sample is resampled with replacement many times, the aggregate is computed
+ * on every resample, and the spread of those replicates gives the standard
+ * error and a percentile confidence interval.
+ * <p>
+ * {@link #resample} keeps the matching values in a primitive array and splits
+ * the replicates across cores. {@link PoissonBootstrap} gets the same result
+ * in a single pass, without keeping the values.
+ */
+public class Bootstrap {
+
+    public static final int DEFAULT_REPLICATES = 200;
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM, r -> {
+        Thread t = new Thread(r, "bootstrap");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final double estimate;
+    private final double[] replicates; // sorted
+
+    Bootstrap(double estimate, double[] replicates) {
+        this.estimate = estimate;
+        this.replicates = replicates;
+        Arrays.sort(this.replicates);
+    }
+
+    /**
+     * Bootstrap an aggregate over rowsRead rows of a uniform sample, of which
+     * the first numValues of values matched the query
+     *
+     * @param values     the aggregate field of the matching rows
+     * @param numValues  the number of matching rows
+     * @param rowsRead   the number of sample rows read, matching or not
+     * @param totalRows  the number of rows in the base table
+     * @param op         MIN, MAX, SUM, AVG or COUNT
+     * @param replicates the number of resamples
+     */
+    public static Bootstrap resample(int[] values, int numValues, long rowsRead, long totalRows, Aggregator.Op op, int replicates) {
+        if(numValues > rowsRead) throw new IllegalArgumentException("more matching rows than rows read");
+        double estimate = aggregate(values, numValues, rowsRead, totalRows, op);
+        double[] results = new double[replicates];
+        if(rowsRead == 0) return new Bootstrap(estimate, results);
+
+        int tasks = Math.min(PARALLELISM, replicates);
+        SplittableRandom seeds = new SplittableRandom();
+        List<Future<?>> futures = new ArrayList<>();
+        for(int task = 0; task < tasks; task++) {
+            int start = replicates * task / tasks;
+            int end = replicates * (task + 1) / tasks;
+            SplittableRandom random = seeds.split();
+            futures.add(executor.submit(() -> {
+                for(int r = start; r < end; r++) results[r] = replicate(values, numValues, rowsRead, totalRows, op, random);
+            }));
+        }
+        try {
+            for(Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("bootstrap interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return new Bootstrap(estimate, results);
+    }
+
+    /**
+     * Draw rowsRead rows with replacement and aggregate the ones that match
+     */
+    private static double replicate(int[] values, int numValues, long rowsRead, long totalRows, Aggregator.Op op, SplittableRandom random) {
+        long matches = 0;
+        double sum = 0;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for(long i = 0; i < rowsRead; i++) {
+            long row = random.nextLong(rowsRead);
+            if(row >= numValues) continue; // a row that did not match
+            int v = values[(int) row];
+            matches++;
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return aggregate(op, matches, sum, min, max, rowsRead, totalRows);
+    }
+
+    private static double aggregate(int[] values, int numValues, long rowsRead, long totalRows, Aggregator.Op op) {
+        double sum = 0;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for(int i = 0; i < numValues; i++) {
+            sum += values[i];
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        return aggregate(op, numValues, sum, min, max, rowsRead, totalRows);
+    }
+
+    /**
+     * @return the estimate of op over the base table, from the matching rows
+     *         out of rowsRead (possibly weighted) sample rows
+     */
+    static double aggregate(Aggregator.Op op, double matches, double sum, int min, int max, double rowsRead, long totalRows) {
+        switch(op) {
+            case SUM:
+                return rowsRead == 0 ? 0 : sum / rowsRead * totalRows;
+            case COUNT:
+                return rowsRead == 0 ? 0 : matches / rowsRead * totalRows;
+            case AVG:
+                return matches == 0 ? 0 : sum / matches;
+            case MIN:
+                return matches == 0 ? 0 : min;
+            case MAX:
+                return matches == 0 ? 0 : max;
+            default:
+                throw new IllegalArgumentException("cannot bootstrap " + op);
+        }
+    }
+
+    /**
+     * @return the aggregate over the sample itself
+     */
+    public double getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the standard deviation of the replicates
+     */
+    public double getStandardError() {
+        RunningStats stats = new RunningStats();
+        for(double r : replicates) stats.add(r);
+        return Math.sqrt(stats.getVariance());
+    }
+
+    /**
+     * @return the lower bound of the percentile interval at the given confidence
+     */
+    public double getLow(double confidence) {
+        return percentile((1 - confidence) / 2);
+    }
+
+    /**
+     * @return the upper bound of the percentile interval at the given confidence
+     */
+    public double getHigh(double confidence) {
+        return percentile(1 - (1 - confidence) / 2);
+    }
+
+    /**
+     * @return the half-width of the percentile interval at the given confidence
+     */
+    public double getError(double confidence) {
+        return (getHigh(confidence) - getLow(confidence)) / 2;
+    }
+
+    private double percentile(double p) {
+        if(replicates.length == 0) return estimate;
+        int i = (int) Math.round(p * (replicates.length - 1));
+        return replicates[Math.max(0, Math.min(replicates.length - 1, i))];
+    }
+
+    public int getReplicates() {
+        return replicates.length;
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BootstrapAggregate computes any of MIN, MAX, SUM, AVG or COUNT over a sample
+ * scan, with a confidence interval from a {@link PoissonBootstrap} run in the
+ * same pass. Unlike {@link ErrorBoundedAggregate} it does not need a closed
+ * form for the error, so it also bounds MIN and MAX.
+ * <p>
+ * The single output tuple is (estimate, error, rows), as in {@link OnlineAggregate},
+ * where error is the half-width of the bootstrap percentile interval.
+ * Over a stratified sample only MIN and MAX are supported, as the others
+ * would need weighting by stratum (see {@link ErrorBoundedAggregate}).
+ */
+public class BootstrapAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int afield;
+    private final Aggregator.Op aop;
+    private final int totalTups;
+    private final double confidence;
+    private final int replicates;
+
+    private Bootstrap result;
+    private boolean done;
+
+    /**
+     * @param child      the sample scan feeding us tuples
+     * @param afield     the column to aggregate, which must be an int column
+     * @param aop        MIN, MAX, SUM, AVG or COUNT
+     * @param totalTups  the number of tuples in the base table
+     * @param confidence the confidence of the interval, e.g. 0.95
+     * @param replicates the number of bootstrap replicates
+     */
+    public BootstrapAggregate(OpIterator child, int afield, Aggregator.Op aop, int totalTups, double confidence, int replicates) {
+        if(aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG) {
+            throw new IllegalArgumentException("BootstrapAggregate does not support " + aop);
+        }
+        if(confidence <= 0 || confidence >= 1) throw new IllegalArgumentException("confidence must be in (0, 1)");
+        SeqScanSample scan = SeqScanSample.find(child);
+        if(scan != null && scan.getStratumKey() != null && aop != Aggregator.Op.MIN && aop != Aggregator.Op.MAX) {
+            throw new IllegalArgumentException("BootstrapAggregate only supports MIN and MAX over a stratified sample");
+        }
+        this.child = child;
+        this.afield = afield;
+        this.aop = aop;
+        this.totalTups = totalTups;
+        this.confidence = confidence;
+        this.replicates = replicates;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        child.open();
+        done = false;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        done = false;
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if(done) return null;
+        PoissonBootstrap bootstrap = new PoissonBootstrap(replicates);
+        while(child.hasNext()) bootstrap.add(((IntField) child.next().getField(afield)).getValue());
+        done = true;
+
+        // Filters below us may have read more sample rows than they returned
+        int rows = child.totalTuples();
+        result = bootstrap.finish(rows, totalTups, aop);
+
+        Tuple t = new Tuple(getTupleDesc());
+        t.setField(0, new IntField((int) Math.round(result.getEstimate())));
+        t.setField(1, new IntField((int) Math.ceil(result.getError(confidence))));
+        t.setField(2, new IntField(rows));
+        return t;
+    }
+
+    /**
+     * @return the bootstrap of the last run, with its confidence interval, or
+     *         null if it has not returned its tuple yet
+     */
+    public Bootstrap getBootstrap() {
+        return result;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return OnlineAggregate.estimateTupleDesc(aop);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+    @Override
+    public int totalTuples() {
+        return this.child.totalTuples();
+    }
+
+    @Override
+    public int numTuples() {
+        return this.child.numTuples();
+    }
+}
@@ -0,0 +1,252 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StratumKey;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * ErrorBoundedAggregate computes a SUM, AVG or COUNT over a sample scan, reading
+ * only as much of the sample as it needs to meet an error target. The
+ * SeqScanSample under it is told to stop (see {@link SeqScanSample#setStopCondition})
+ * as soon as the confidence interval of the running estimate is within
+ * errorTarget of the estimate, so there is no need to predict the number of
+ * rows to read up front.
+ * <p>
+ * The single output tuple is (estimate, error, rows), as in {@link OnlineAggregate}.
+ * <p>
+ * With a group by field, every group has its own running statistics and the
+ * scan stops once the worst group meets the target, so rare groups get a
+ * correct bound without reading more than they need. There is then one
+ * (group, estimate, error, rows) tuple per group.
+ * <p>
+ * Over a stratified sample, rows are weighted by the sampling rate of their
+ * stratum, as in {@link SampleAggregate}, and so are their errors. The rows
+ * must then reach us as the scan read them (through filters only), since
+ * their stratum is worked out from them.
+ */
+public class ErrorBoundedAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    // with groups, the stop condition is only checked every this many rows, as it looks at every group
+    private static final int GROUP_CHECK_INTERVAL = 64;
+
+    private OpIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final int totalTups;
+    private final double errorTarget;
+    private final double z;
+
+    private IntegerAggregator aggregator;
+    private SeqScanSample scan;
+    private StratumKey stratumKey; // null unless the sample is stratified
+    private Map<Long, Long> stratumCounts;
+    private Map<Field, StratifiedStats> strata; // group (null for none) -> its rows by stratum
+    private boolean done;
+    private Iterator<Tuple> groupResults;
+
+    /**
+     * @param child       the sample scan feeding us tuples, which must contain a SeqScanSample
+     * @param afield      the column to aggregate, which must be an int column
+     * @param aop         SUM, AVG or COUNT
+     * @param totalTups   the number of tuples in the base table
+     * @param errorTarget the target error, relative to the estimate (e.g. 0.05 for 5%)
+     * @param confidence  the confidence the error is measured at, e.g. 0.95
+     */
+    public ErrorBoundedAggregate(OpIterator child, int afield, Aggregator.Op aop, int totalTups, double errorTarget, double confidence) {
+        this(child, afield, Aggregator.NO_GROUPING, aop, totalTups, errorTarget, confidence);
+    }
+
+    /**
+     * Like {@link #ErrorBoundedAggregate(OpIterator, int, Aggregator.Op, int, double, double)},
+     * with the error target applied to each group of gfield
+     *
+     * @param gfield the column to group by, or {@link Aggregator#NO_GROUPING}
+     */
+    public ErrorBoundedAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int totalTups, double errorTarget, double confidence) {
+        if(aop != Aggregator.Op.SUM && aop != Aggregator.Op.AVG && aop != Aggregator.Op.COUNT) {
+            throw new IllegalArgumentException("ErrorBoundedAggregate only supports SUM, AVG, COUNT");
+        }
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.totalTups = totalTups;
+        this.errorTarget = errorTarget;
+        this.z = RunningStats.zScore(confidence);
+        this.scan = SeqScanSample.find(child);
+        if(scan == null) throw new IllegalArgumentException("child must read from a SeqScanSample");
+    }
+
+    /**
+     * @return whether the estimate over the rows read so far meets the error target
+     */
+    private boolean accurateEnough() {
+        int rows = scan.totalTuples();
+        if(stratumKey != null) return stratifiedAccurateEnough(rows);
+        if(gfield == Aggregator.NO_GROUPING) return accurateEnough(aggregator.getRunningStats(), rows);
+
+        if(rows % GROUP_CHECK_INTERVAL != 0) return false;
+        Map<Object, RunningStats> groups = aggregator.getGroupStats();
+        if(groups.isEmpty()) return false;
+        for(RunningStats stats : groups.values()) {
+            // a group seen once has no variance yet, so no bound either
+            if(stats.getCount() < 2 || !accurateEnough(stats, rows)) return false;
+        }
+        return true;
+    }
+
+    private boolean accurateEnough(RunningStats stats, int rows) {
+        return z * stats.standardError(aop, rows, totalTups) <= errorTarget * Math.abs(stats.estimate(aop, rows, totalTups));
+    }
+
+    private boolean stratifiedAccurateEnough(int rows) {
+        // the estimate sums over every stratum, so it's only checked every so often
+        if(rows % GROUP_CHECK_INTERVAL != 0 || strata.isEmpty()) return false;
+        for(StratifiedStats stats : strata.values()) {
+            if(stats.getCount() < 2) return false;
+            double[] estimate = stats.estimate(aop, scan, stratumCounts);
+            if(z * estimate[1] > errorTarget * Math.abs(estimate[0])) return false;
+        }
+        return true;
+    }
+
+    private void merge(Tuple t) {
+        if(stratumKey == null) {
+            aggregator.mergeTupleIntoGroup(t);
+            return;
+        }
+        Field group = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+        strata.computeIfAbsent(group, g -> new StratifiedStats())
+                .add(stratumKey.of(t), ((IntField) t.getField(afield)).getValue());
+    }
+
+    private void reset() throws DbException {
+        Type gtype = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        this.aggregator = new IntegerAggregator(gfield, gtype, afield, aop);
+        this.done = false;
+        this.groupResults = null;
+        this.strata = new LinkedHashMap<>();
+        this.stratumKey = scan.getSampleFile().getMetadata() == null ? null : scan.getStratumKey();
+        if(stratumKey != null) {
+            if(!child.getTupleDesc().equals(scan.getTupleDesc())) {
+                throw new DbException("rows of a stratified sample must reach ErrorBoundedAggregate as they were read");
+            }
+            this.stratumCounts = scan.getSampleFile().getMetadata().getStratumCounts();
+        }
+        // never stop before the smallest sample size, the estimate is too noisy before that
+        scan.setStopCondition(this::accurateEnough, scan.getSampleFile().getSampleSizes().get(0));
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        child.open();
+        reset();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if(gfield != Aggregator.NO_GROUPING) {
+            if(groupResults == null) groupResults = groupResults();
+            return groupResults.hasNext() ? groupResults.next() : null;
+        }
+        if(done) return null;
+        while(child.hasNext()) merge(child.next());
+        done = true;
+        if(stratumKey != null) {
+            double[] estimate = strata.getOrDefault(null, new StratifiedStats()).estimate(aop, scan, stratumCounts);
+            return OnlineAggregate.estimateTuple(getTupleDesc(), estimate[0], estimate[1], scan.totalTuples(), z);
+        }
+        return OnlineAggregate.estimateTuple(getTupleDesc(), aggregator.getRunningStats(), aop, scan.totalTuples(), totalTups, z);
+    }
+
+    /**
+     * Read the sample until every group meets the target, and make the
+     * (group, estimate, error, rows) tuple of each group
+     */
+    private Iterator<Tuple> groupResults() throws DbException, TransactionAbortedException {
+        while(child.hasNext()) merge(child.next());
+        TupleDesc estimateTd = OnlineAggregate.estimateTupleDesc(aop);
+        List<Tuple> results = new ArrayList<>();
+        if(stratumKey != null) {
+            for(Map.Entry<Field, StratifiedStats> group : strata.entrySet()) {
+                double[] estimate = group.getValue().estimate(aop, scan, stratumCounts);
+                results.add(groupTuple(group.getKey(), OnlineAggregate.estimateTuple(estimateTd, estimate[0], estimate[1], scan.totalTuples(), z)));
+            }
+            return results.iterator();
+        }
+        for(Map.Entry<Object, RunningStats> group : aggregator.getGroupStats().entrySet()) {
+            Tuple estimate = OnlineAggregate.estimateTuple(estimateTd, group.getValue(), aop, scan.totalTuples(), totalTups, z);
+            Object value = group.getKey();
+            results.add(groupTuple(value instanceof Integer ? new IntField((Integer) value) : new StringField((String) value, Type.STRING_LEN), estimate));
+        }
+        return results.iterator();
+    }
+
+    /**
+     * @return the (group, estimate, error, rows) tuple of group
+     */
+    private Tuple groupTuple(Field group, Tuple estimate) {
+        Tuple t = new Tuple(getTupleDesc());
+        t.setField(0, group);
+        for(int i = 0; i < 3; i++) t.setField(i + 1, estimate.getField(i));
+        return t;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        TupleDesc estimateTd = OnlineAggregate.estimateTupleDesc(aop);
+        if(gfield == Aggregator.NO_GROUPING) return estimateTd;
+        TupleDesc childTd = child.getTupleDesc();
+        TupleDesc groupTd = new TupleDesc(new Type[]{childTd.getFieldType(gfield)}, new String[]{childTd.getFieldName(gfield)});
+        return TupleDesc.merge(groupTd, estimateTd);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+        SeqScanSample newScan = SeqScanSample.find(child);
+        if(newScan != null) this.scan = newScan;
+    }
+
+    @Override
+    public int totalTuples() {
+        return this.child.totalTuples();
+    }
+
+    @Override
+    public int numTuples() {
+        return this.child.numTuples();
+    }
+}
@@ -28,9 +28,8 @@ public class IntegerAggregator implements Aggregator {
     private Op what;
     private Map<Object, ArrayList<Tuple>> groups; // Maps group field value to group. If no grouping, all tuples are in group with key null
 
-    private double mean; 
-    private double variance; 
-    private int nTups = 0;
+    private RunningStats stats = new RunningStats(); // over every merged tuple, regardless of group
+    private Map<Object, RunningStats> groupStats = new HashMap<>(); // the same, for each group
     
     /**
      * Aggregate constructor
@@ -52,8 +51,12 @@ public class IntegerAggregator implements Aggregator {
         this.groups = new HashMap<>();
     }
     
-    public void resetMergedTuples(int val) {
-    	this.nTups = val;
+    /**
+     * Forget the running statistics of the tuples merged so far
+     */
+    public void resetMergedTuples() {
+    	this.stats = new RunningStats();
+    	this.groupStats = new HashMap<>();
     }
 
     /**
@@ -77,26 +80,33 @@ public class IntegerAggregator implements Aggregator {
         
         groups.get(fieldValue).add(tup);
         
-        int aVal = ((IntField) tup.getField(afield)).getValue();
-        double val = (double) ((Integer) aVal).intValue();
-        // calculate mean and variance if the field type is INT
-        if (this.nTups < 1) {
-            this.mean = val;
-            this.variance = 0;
-        } else {
-            double newMean = this.mean + (val - this.mean) / this.nTups;
-            this.variance = this.variance + (val - this.mean) * (val - newMean);
-            this.mean = newMean;
-        }
-        
-        this.nTups++;
+        // keep a running mean and variance of the aggregate field, overall and per group
+        int value = ((IntField) tup.getField(afield)).getValue();
+        stats.add(value);
+        groupStats.computeIfAbsent(fieldValue, k -> new RunningStats()).add(value);
     }
 
     /**
-     * @return Sample Mean
+     * @return the sum of squared deviations from the mean of the merged tuples
+     *         (divide by getNumTups() for their variance)
      */
     public double getSampleVariance() {
-        return this.variance;
+        return stats.getM2();
+    }
+
+    /**
+     * @return the running statistics of the aggregate field over the merged tuples
+     */
+    public RunningStats getRunningStats() {
+        return this.stats;
+    }
+
+    /**
+     * @return the running statistics of the aggregate field for each group, by
+     *         group value (an Integer or String, or null if there is no grouping)
+     */
+    public Map<Object, RunningStats> getGroupStats() {
+        return this.groupStats;
     }
 
     /**
@@ -104,7 +114,7 @@ public class IntegerAggregator implements Aggregator {
      */
     @Override
     public int getNumTups() {
-        return this.nTups;
+        return (int) stats.getCount();
     }
 
     /**
@@ -0,0 +1,169 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * OnlineAggregate computes a SUM, AVG or COUNT over a sample scan (a
+ * SeqScanSample, possibly under Filters) progressively: every reportInterval
+ * sample rows it returns the current estimate for the base table, so a caller
+ * can show an answer right away and refine it as the scan continues.
+ * <p>
+ * Each output tuple is (estimate, error, rows): the estimate of the aggregate
+ * over the base table, the half-width of its confidence interval and the
+ * number of sample rows read so far. The last tuple is the estimate over the
+ * whole scan. Estimates come from the running statistics kept by an
+ * {@link IntegerAggregator} as tuples are merged into it (see {@link RunningStats}).
+ * Grouping is not supported, and neither are stratified samples, whose rows
+ * would need weighting by stratum (see {@link ErrorBoundedAggregate}).
+ */
+public class OnlineAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int afield;
+    private final Aggregator.Op aop;
+    private final int totalTups;
+    private final int reportInterval;
+    private final double z;
+
+    private IntegerAggregator aggregator;
+    private int nextReport;
+    private int lastReported;
+    private boolean done;
+
+    /**
+     * @param child          the sample scan feeding us tuples
+     * @param afield         the column to aggregate, which must be an int column
+     * @param aop            SUM, AVG or COUNT
+     * @param totalTups      the number of tuples in the base table
+     * @param reportInterval return an estimate every reportInterval sample rows
+     * @param confidence     the confidence of the intervals, e.g. 0.95
+     */
+    public OnlineAggregate(OpIterator child, int afield, Aggregator.Op aop, int totalTups, int reportInterval, double confidence) {
+        if(aop != Aggregator.Op.SUM && aop != Aggregator.Op.AVG && aop != Aggregator.Op.COUNT) {
+            throw new IllegalArgumentException("OnlineAggregate only supports SUM, AVG, COUNT");
+        }
+        if(reportInterval <= 0) throw new IllegalArgumentException("reportInterval must be positive");
+        SeqScanSample scan = SeqScanSample.find(child);
+        if(scan != null && scan.getStratumKey() != null) {
+            throw new IllegalArgumentException("OnlineAggregate needs a uniform sample");
+        }
+        this.child = child;
+        this.afield = afield;
+        this.aop = aop;
+        this.totalTups = totalTups;
+        this.reportInterval = reportInterval;
+        this.z = RunningStats.zScore(confidence);
+    }
+
+    private void reset() {
+        this.aggregator = new IntegerAggregator(Aggregator.NO_GROUPING, null, afield, aop);
+        this.nextReport = reportInterval;
+        this.lastReported = 0;
+        this.done = false;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        child.open();
+        reset();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if(done) return null;
+
+        while(child.hasNext()) {
+            aggregator.mergeTupleIntoGroup(child.next());
+            // Filters below us may have read several sample rows for this tuple
+            if(child.totalTuples() >= nextReport) {
+                while(nextReport <= child.totalTuples()) nextReport += reportInterval;
+                return report();
+            }
+        }
+
+        done = true;
+        if(lastReported == child.totalTuples() && lastReported > 0) return null;
+        return report();
+    }
+
+    /**
+     * @return the (estimate, error, rows) tuple for the rows read so far
+     */
+    private Tuple report() {
+        this.lastReported = child.totalTuples();
+        return estimateTuple(getTupleDesc(), aggregator.getRunningStats(), aop, lastReported, totalTups, z);
+    }
+
+    /**
+     * @return an (estimate, error, rows) tuple for an aggregate over rows sample
+     *         rows whose matching values are summarized by stats
+     */
+    static Tuple estimateTuple(TupleDesc td, RunningStats stats, Aggregator.Op aop, int rows, int totalTups, double z) {
+        return estimateTuple(td, stats.estimate(aop, rows, totalTups), stats.standardError(aop, rows, totalTups), rows, z);
+    }
+
+    /**
+     * @return an (estimate, error, rows) tuple for an estimate with the given standard error
+     */
+    static Tuple estimateTuple(TupleDesc td, double estimate, double standardError, int rows, double z) {
+        double error = z * standardError;
+
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField((int) Math.round(estimate)));
+        t.setField(1, new IntField(error >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.ceil(error)));
+        t.setField(2, new IntField(rows));
+        return t;
+    }
+
+    /**
+     * @return the TupleDesc of (estimate, error, rows) tuples
+     */
+    static TupleDesc estimateTupleDesc(Aggregator.Op aop) {
+        return new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{aop.toString(), "error", "rows"});
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return estimateTupleDesc(aop);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+    @Override
+    public int totalTuples() {
+        return this.child.totalTuples();
+    }
+
+    @Override
+    public int numTuples() {
+        return this.child.numTuples();
+    }
+}
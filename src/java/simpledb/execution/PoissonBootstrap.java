@@ -0,0 +1,130 @@
+package simpledb.execution;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * PoissonBootstrap is a single-pass {@link Bootstrap}: instead of drawing
+ * resamples once all the values are known, every matching value is given an
+ * independent Poisson(1) weight in each replicate as it is added, which for
+ * large samples is distributed like the number of times a resample would have
+ * drawn it. Each replicate only keeps a few running totals in primitive
+ * arrays, so the values themselves are never stored and the bootstrap can
+ * run inline with the scan.
+ * <p>
+ * Rows that did not match only count towards the size of each replicate; the
+ * sum of their Poisson weights is drawn all at once in {@link #finish}.
+ */
+public class PoissonBootstrap {
+
+    // P(W <= k) for W ~ Poisson(1), up to the point where the rest is negligible
+    private static final double[] POISSON_1_CDF;
+    static {
+        double[] cdf = new double[12];
+        double p = Math.exp(-1), total = 0;
+        for(int k = 0; k < cdf.length; k++) {
+            total += p;
+            cdf[k] = total;
+            p /= k + 1;
+        }
+        POISSON_1_CDF = cdf;
+    }
+
+    private final SplittableRandom random = new SplittableRandom();
+    private final double[] sums;
+    private final long[] matches;
+    private final int[] mins;
+    private final int[] maxs;
+    private long numValues = 0;
+    private double sum = 0;
+    private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+
+    /**
+     * @param replicates the number of bootstrap replicates
+     */
+    public PoissonBootstrap(int replicates) {
+        this.sums = new double[replicates];
+        this.matches = new long[replicates];
+        this.mins = new int[replicates];
+        this.maxs = new int[replicates];
+        Arrays.fill(mins, Integer.MAX_VALUE);
+        Arrays.fill(maxs, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Add the aggregate field of a row that matched the query
+     */
+    public void add(int value) {
+        numValues++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        for(int r = 0; r < sums.length; r++) {
+            int w = poisson1();
+            if(w == 0) continue;
+            sums[r] += (double) w * value;
+            matches[r] += w;
+            if(value < mins[r]) mins[r] = value;
+            if(value > maxs[r]) maxs[r] = value;
+        }
+    }
+
+    private int poisson1() {
+        double u = random.nextDouble();
+        int k = 0;
+        while(k < POISSON_1_CDF.length - 1 && u > POISSON_1_CDF[k]) k++;
+        return k;
+    }
+
+    /**
+     * @return a draw from Poisson(lambda): by inversion for small lambda, and
+     *         from its normal approximation for large ones
+     */
+    private long poisson(double lambda) {
+        if(lambda <= 0) return 0;
+        if(lambda > 30) {
+            double x = lambda + Math.sqrt(lambda) * gaussian();
+            return Math.max(0, Math.round(x));
+        }
+        double p = Math.exp(-lambda), cdf = p, u = random.nextDouble();
+        long k = 0;
+        while(u > cdf && p > 0) {
+            k++;
+            p *= lambda / k;
+            cdf += p;
+        }
+        return k;
+    }
+
+    private double gaussian() {
+        // Box-Muller, SplittableRandom has no nextGaussian
+        double u = 1 - random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * @return the number of matching values added so far
+     */
+    public long getNumValues() {
+        return numValues;
+    }
+
+    /**
+     * Compute the replicates, given that the values added so far matched out
+     * of rowsRead sample rows
+     *
+     * @param rowsRead  the number of sample rows read, matching or not
+     * @param totalRows the number of rows in the base table
+     * @param op        MIN, MAX, SUM, AVG or COUNT
+     */
+    public Bootstrap finish(long rowsRead, long totalRows, Aggregator.Op op) {
+        if(numValues > rowsRead) throw new IllegalArgumentException("more matching rows than rows read");
+        double estimate = Bootstrap.aggregate(op, numValues, sum, min, max, rowsRead, totalRows);
+        double[] results = new double[sums.length];
+        for(int r = 0; r < sums.length; r++) {
+            double rows = matches[r] + poisson(rowsRead - numValues);
+            results[r] = Bootstrap.aggregate(op, matches[r], sums[r], mins[r], maxs[r], rows, totalRows);
+        }
+        return new Bootstrap(estimate, results);
+    }
+}
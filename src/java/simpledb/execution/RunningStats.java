@@ -0,0 +1,129 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+
+/**
+ * RunningStats keeps the count, mean and sum of squared deviations of a stream
+ * of values, updated one value at a time with Welford's algorithm. From these
+ * it estimates SUM, AVG and COUNT aggregates over a uniform sample, and their
+ * standard errors (see Table 2 of the BlinkDB paper), without keeping the
+ * values themselves.
+ */
+public class RunningStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long count = 0;
+    private double mean = 0;
+    private double m2 = 0; // sum of squared deviations from the mean
+
+    /**
+     * Add a value to the stream
+     */
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getSum() {
+        return mean * count;
+    }
+
+    /**
+     * @return the sum of squared deviations from the mean
+     */
+    public double getM2() {
+        return m2;
+    }
+
+    /**
+     * @return the (unbiased) sample variance, or 0 if there are fewer than 2 values
+     */
+    public double getVariance() {
+        return count < 2 ? 0 : m2 / (count - 1);
+    }
+
+    /**
+     * Estimate an aggregate over the base table, given that the values added so
+     * far are the ones that matched the query out of rowsRead rows of a uniform sample.
+     *
+     * @param op        SUM, AVG or COUNT
+     * @param rowsRead  the number of sample rows read, matching or not
+     * @param totalRows the number of rows in the base table
+     */
+    public double estimate(Aggregator.Op op, long rowsRead, long totalRows) {
+        if(rowsRead == 0) return 0;
+        switch(op) {
+            case SUM:
+                return getSum() / rowsRead * totalRows;
+            case AVG:
+                return mean;
+            case COUNT:
+                return (double) count / rowsRead * totalRows;
+            default:
+                throw new IllegalArgumentException("can only estimate SUM, AVG and COUNT");
+        }
+    }
+
+    /**
+     * The standard error of {@link #estimate} with the same arguments
+     */
+    public double standardError(Aggregator.Op op, long rowsRead, long totalRows) {
+        if(rowsRead == 0 || count == 0) return Double.POSITIVE_INFINITY;
+        double p = (double) count / rowsRead; // selectivity
+        switch(op) {
+            case SUM:
+                // each sample row contributes its value if it matched, 0 otherwise
+                double meanSquare = getVariance() + mean * mean;
+                double variance = p * meanSquare - p * p * mean * mean;
+                return totalRows * Math.sqrt(Math.max(0, variance) / rowsRead);
+            case AVG:
+                return Math.sqrt(getVariance() / count);
+            case COUNT:
+                return totalRows * Math.sqrt(p * (1 - p) / rowsRead);
+            default:
+                throw new IllegalArgumentException("can only estimate SUM, AVG and COUNT");
+        }
+    }
+
+    /**
+     * Returns z such that a standard normal variable falls within [-z, z] with
+     * the given probability (e.g. 1.96 for 0.95), using Acklam's rational
+     * approximation of the normal quantile function.
+     *
+     * @param confidence a probability in (0, 1)
+     */
+    public static double zScore(double confidence) {
+        if(confidence <= 0 || confidence >= 1) throw new IllegalArgumentException("confidence must be in (0, 1)");
+        double p = 1 - (1 - confidence) / 2;
+
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                3.754408661907416e+00};
+
+        if(p > 0.97575) {
+            double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+}
@@ -1,9 +1,21 @@
 package simpledb.execution;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.SampleMetadata;
+import simpledb.storage.StratumKey;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -18,20 +30,55 @@ import simpledb.transaction.TransactionAbortedException;
  * SampleAggregate is performed on results from Aggregate which returns 
  * tuples of (groupBy, result) if the aggregate is performed over groups 
  * and (result) if there  is no  group by field
- * 
+ * <p>
+ * Over a uniform sample the result is scaled by totalTups / rows read. Over a
+ * stratified sample that would be biased, since strata were capped: each row
+ * is instead weighted by the inverse of its stratum's sampling rate, N_s / n_s,
+ * where N_s is the stratum's rows in the base table (from the family's
+ * {@link SampleMetadata}) and n_s the rows the scan read from it. SampleAggregate
+ * then aggregates the Aggregate's input itself with those weights.
+ * <p>
+ * Given a confidence, each result tuple also gets the error of its own group
+ * at that confidence and the bounds of its confidence interval, as
+ * (groupBy, result, error, low, high) or (result, error, low, high), since the
+ * groups with few rows are much noisier than the common ones.
+ * <p>
+ * Over a {@link SeqScanPageSample} there is no base table count to scale to:
+ * totalTups is ignored and the result is scaled by the pages of the table
+ * over the pages read instead. The rows of a page are read together, so the
+ * error is that of a sample of pages, from the spread of the pages' totals
+ * (a page read with no row of a group counts as a total of 0).
  */
 public class SampleAggregate extends Operator {
     private OpIterator child; 
     private double sampleSize; 
+    private double rowsRead; // sample rows the scan actually read, at most sampleSize
     private int totalTups; 
     private Aggregator.Op op;
     private boolean grouping; // whether the child has group by field
     private int numTuples;
     private int totalTuples;
+    private Iterator<Tuple> weighted; // results over a stratified or page sample, null otherwise
+    private final double z; // z-score of the error columns, or NaN for none
     
     public SampleAggregate(OpIterator child, int sampleSize, int totalTups, Aggregator.Op op) {
+        this(child, sampleSize, totalTups, op, Double.NaN);
+    }
+
+    /**
+     * Like {@link #SampleAggregate(OpIterator, int, int, Aggregator.Op)}, adding
+     * error and confidence interval columns at the given confidence (e.g. 0.95)
+     *
+     * @param child an Aggregate over an int column
+     */
+    public SampleAggregate(OpIterator child, int sampleSize, int totalTups, Aggregator.Op op, double confidence) {
+        if(!Double.isNaN(confidence) && !(child instanceof Aggregate)) {
+            throw new IllegalArgumentException("error columns need an Aggregate child");
+        }
+        this.z = Double.isNaN(confidence) ? Double.NaN : RunningStats.zScore(confidence);
         this.child = child;
         this.sampleSize = sampleSize;
+        this.rowsRead = sampleSize;
         this.totalTups = totalTups;
         this.op = op; 
         this.grouping = child.getTupleDesc().numFields() > 1;
@@ -42,37 +89,219 @@ public class SampleAggregate extends Operator {
     @Override
     public void open() throws DbException, TransactionAbortedException {
         super.open();
+        if(openWeighted() || openPageSample()) return;
         child.open();
         this.numTuples = child.numTuples();
         this.totalTuples = child.totalTuples();
+
+        // Scale by the rows the sample scan read, which is fewer than sampleSize
+        // if it stopped early (see SeqScanSample#setTimeBudget)
+        SeqScanSample scan = SeqScanSample.find(child);
+        this.rowsRead = scan != null && scan.totalTuples() > 0 ? scan.totalTuples() : sampleSize;
+        this.weighted = null;
+
+        // Over a page sample, every page read stands in for getScaleFactor() pages
+        SeqScanPageSample pages = scan == null ? SeqScanPageSample.find(child) : null;
+        if(pages != null && pages.totalTuples() > 0) {
+            this.rowsRead = pages.totalTuples();
+            this.totalTups = (int) Math.min(Integer.MAX_VALUE, pages.estimatedTableRows());
+        }
+    }
+
+    /**
+     * If child is an Aggregate directly over a stratified sample (through
+     * filters only), compute its results with per-row weights
+     *
+     * @return whether the results were computed
+     */
+    private boolean openWeighted() throws DbException, TransactionAbortedException {
+        if(!(child instanceof Aggregate)) return false;
+        Aggregate agg = (Aggregate) child;
+        OpIterator input = agg.getChildren()[0];
+        SeqScanSample scan = SeqScanSample.find(input);
+        if(scan == null || scan.getStratumKey() == null || scan.getSampleFile().getMetadata() == null) return false;
+        if(!input.getTupleDesc().equals(scan.getTupleDesc())) return false;
+
+        StratumKey stratumKey = scan.getStratumKey();
+        int gfield = agg.groupField();
+        int afield = agg.aggregateField();
+        // COUNT doesn't need the values, so it works over any column
+        boolean countOnly = op == Aggregator.Op.COUNT;
+        if(!countOnly && input.getTupleDesc().getFieldType(afield) != Type.INT_TYPE) return false;
+
+        // group -> stats of the rows that passed the filters, by stratum
+        Map<Field, StratifiedStats> groups = new LinkedHashMap<>();
+        input.open();
+        while(input.hasNext()) {
+            Tuple t = input.next();
+            Field group = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+            groups.computeIfAbsent(group, g -> new StratifiedStats())
+                    .add(stratumKey.of(t), countOnly ? 0 : ((IntField) t.getField(afield)).getValue());
+        }
+        input.close();
+        this.numTuples = input.numTuples();
+        this.totalTuples = input.totalTuples();
+        this.rowsRead = scan.totalTuples();
+
+        if(op != Aggregator.Op.SUM && op != Aggregator.Op.AVG && op != Aggregator.Op.COUNT) {
+            throw new DbException("Sample Aggregate only supports SUM, AVG, COUNT");
+        }
+        Map<Long, Long> stratumCounts = scan.getSampleFile().getMetadata().getStratumCounts();
+        List<Tuple> results = new ArrayList<>();
+        for(Map.Entry<Field, StratifiedStats> group : groups.entrySet()) {
+            double[] estimate = group.getValue().estimate(op, scan, stratumCounts);
+            results.add(resultTuple(group.getKey(), (int) estimate[0], estimate[1]));
+        }
+        this.weighted = results.iterator();
+        return true;
+    }
+
+    /**
+     * If child is an Aggregate over a page sample and there are error columns,
+     * compute its results with the errors of a sample of pages
+     *
+     * @return whether the results were computed
+     */
+    private boolean openPageSample() throws DbException, TransactionAbortedException {
+        if(!(child instanceof Aggregate) || Double.isNaN(z)) return false;
+        if(op != Aggregator.Op.SUM && op != Aggregator.Op.AVG && op != Aggregator.Op.COUNT) return false;
+        Aggregate agg = (Aggregate) child;
+        OpIterator input = agg.getChildren()[0];
+        SeqScanPageSample pages = SeqScanPageSample.find(input);
+        if(pages == null) return false;
+        int gfield = agg.groupField();
+        int afield = agg.aggregateField();
+        boolean countOnly = op == Aggregator.Op.COUNT;
+        if(!countOnly && input.getTupleDesc().getFieldType(afield) != Type.INT_TYPE) return false;
+
+        // group -> page -> (sum, count) of the rows that passed the filters
+        Map<Field, Map<PageId, long[]>> groups = new LinkedHashMap<>();
+        input.open();
+        while(input.hasNext()) {
+            Tuple t = input.next();
+            // rows made above the scan don't say which page they came from
+            if(t.getRecordId() == null) {
+                input.close();
+                return false;
+            }
+            Field group = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+            long[] page = groups.computeIfAbsent(group, g -> new HashMap<>())
+                    .computeIfAbsent(t.getRecordId().getPageId(), pid -> new long[2]);
+            if(!countOnly) page[0] += ((IntField) t.getField(afield)).getValue();
+            page[1]++;
+        }
+        input.close();
+        this.numTuples = input.numTuples();
+        this.totalTuples = input.totalTuples();
+        this.rowsRead = pages.totalTuples();
+        this.totalTups = (int) Math.min(Integer.MAX_VALUE, pages.estimatedTableRows());
+
+        int n = pages.getPagesRead();
+        double scale = pages.getScaleFactor();
+        // a table read in full has no error (finite population correction)
+        double fpc = scale == 0 ? 0 : Math.max(0, 1 - 1 / scale);
+        List<Tuple> results = new ArrayList<>();
+        for(Map.Entry<Field, Map<PageId, long[]>> group : groups.entrySet()) {
+            double sum = 0, count = 0, sumSq = 0, countSq = 0;
+            for(long[] page : group.getValue().values()) {
+                sum += page[0];
+                count += page[1];
+                sumSq += (double) page[0] * page[0];
+                countSq += (double) page[1] * page[1];
+            }
+            int result;
+            double spread; // variance of the pages' totals that the result's error comes from
+            switch(op) {
+                case SUM:
+                    result = (int) (sum * scale);
+                    spread = pageVariance(sum, sumSq, n) * scale * scale * n * n;
+                    break;
+                case AVG:
+                    // ratio of the pages' sums to their counts, with residuals sum_i - avg * count_i
+                    double avg = sum / count;
+                    double residualSq = 0;
+                    for(long[] page : group.getValue().values()) residualSq += Math.pow(page[0] - avg * page[1], 2);
+                    result = (int) avg;
+                    spread = pageVariance(0, residualSq, n) * n * n / (count * count);
+                    break;
+                default:
+                    result = (int) (count * scale);
+                    spread = pageVariance(count, countSq, n) * scale * scale * n * n;
+                    break;
+            }
+            double standardError = fpc == 0 ? 0 : Math.sqrt(fpc * spread / n);
+            results.add(resultTuple(group.getKey(), result, standardError));
+        }
+        this.weighted = results.iterator();
+        return true;
+    }
+
+    /**
+     * @return the sample variance of the totals of n pages, given their sum and
+     *         sum of squares, infinite if there is a single page
+     */
+    private static double pageVariance(double sum, double sumSq, int n) {
+        if(n < 2) return Double.POSITIVE_INFINITY;
+        return Math.max(0, (sumSq - sum * sum / n) / (n - 1));
+    }
+
+    /**
+     * @return the result tuple of a group (null if there is no grouping), with
+     *         the error columns if there are any
+     */
+    private Tuple resultTuple(Field group, int result, double standardError) {
+        Tuple resultTuple = new Tuple(getTupleDesc());
+        int i = 0;
+        if(grouping) resultTuple.setField(i++, group);
+        resultTuple.setField(i++, new IntField(result));
+        if(!Double.isNaN(z)) {
+            double error = z * standardError;
+            int e = error >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.ceil(error);
+            resultTuple.setField(i++, new IntField(e));
+            resultTuple.setField(i++, new IntField((int) Math.max(Integer.MIN_VALUE, Math.floor(result - error))));
+            resultTuple.setField(i, new IntField((int) Math.min(Integer.MAX_VALUE, Math.ceil(result + error))));
+        }
+        return resultTuple;
+    }
+
+    /**
+     * @return the standard error of the result for group, from the stats the
+     *         Aggregate child kept for it
+     */
+    private double standardError(Field group) {
+        Map<Object, RunningStats> groupStats = ((Aggregate) child).getGroupStats();
+        Object key = null;
+        if(group != null) key = group.getType() == Type.INT_TYPE ? (Object) ((IntField) group).getValue() : ((StringField) group).getValue();
+        RunningStats stats = groupStats == null ? null : groupStats.get(key);
+        return stats == null ? Double.POSITIVE_INFINITY : stats.standardError(op, (long) rowsRead, totalTups);
     }
 
     @Override
     public void close() {
         super.close();
-        child.close();
+        if(weighted == null) child.close();
+        weighted = null;
     }
 
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
         this.close();
         this.open();
-        this.numTuples = child.numTuples();
-        this.totalTuples = child.totalTuples();
     }
 
 
     @Override
     protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if(weighted != null) return weighted.hasNext() ? weighted.next() : null;
         try {
             Tuple next = this.child.next();
-            Tuple resultTuple = new Tuple(this.child.getTupleDesc());
+            Field group = null;
             int aggVal, result;
 
             // get agg value performed on the samples
             if (grouping) {
                 aggVal = ((IntField) next.getField(1)).getValue(); // if grouping -> (groupBy,  aggregate value)
-                resultTuple.setField(0, next.getField(0)); // sets the groupBy field
+                group = next.getField(0);
             } else {
                 aggVal = ((IntField) next.getField(0)).getValue();
             }
@@ -81,26 +310,20 @@ public class SampleAggregate extends Operator {
             // rescale agg value
             switch(op) {
                 case SUM:
-                    result = (int) (aggVal /sampleSize * totalTups);
+                    result = (int) (aggVal / rowsRead * totalTups);
                     break;
                 case AVG:
                     result = aggVal;
                     break;
                 case COUNT:
-                    result = (int) (Math.min(aggVal, sampleSize) / sampleSize * totalTups);
+                    result = (int) (Math.min(aggVal, rowsRead) / rowsRead * totalTups);
                     break;
                 default:
                     throw new DbException("Sample Aggregate only supports SUM, AVG, COUNT");
             }
 
             // assign new rescaled agg value
-            if (grouping) {
-                resultTuple.setField(1, new IntField(result));
-            } else {
-                resultTuple.setField(0, new IntField(result));
-            }
-
-            return resultTuple;
+            return resultTuple(group, result, Double.isNaN(z) ? 0 : standardError(group));
         }
         catch (NoSuchElementException e) {
             return null;
@@ -117,7 +340,10 @@ public class SampleAggregate extends Operator {
     }
     @Override
     public TupleDesc getTupleDesc() {
-        return child.getTupleDesc();
+        TupleDesc td = child.getTupleDesc();
+        if(Double.isNaN(z)) return td;
+        return TupleDesc.merge(td, new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{"error", "low", "high"}));
     } 
 
     @Override
@@ -0,0 +1,212 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleDesc.TDItem;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SeqScanPageSample scans a random subset of the pages of any HeapFile, as in
+ * SQL's TABLESAMPLE SYSTEM(p): each page is kept with probability fraction and
+ * all of its tuples are returned, so no sample family has to be built ahead of
+ * time. At least one page is always read.
+ * <p>
+ * Like {@link SeqScanSample}, {@link #totalTuples} is the number of rows read,
+ * and every page stands in for {@link #getScaleFactor} pages of the table, so
+ * {@link SampleAggregate} can extrapolate from it. The rows of a page are read
+ * together, so estimates are noisier than over a uniform sample of as many
+ * rows when similar rows are stored together.
+ */
+public class SeqScanPageSample implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final double fraction;
+    private final long seed;
+
+    private final int numPages;
+    private int[] pages; // the page numbers picked, in file order
+    private int pageIndex;
+    private Iterator<Tuple> pageIterator;
+    private TupleDesc td;
+
+    private boolean opened = false;
+    private int numTuples;
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param tableid    the table to scan, which must be a HeapFile
+     * @param tableAlias the alias of this table, as in {@link SeqScan}
+     * @param fraction   the probability each page is read with, in (0, 1]
+     * @param seed       the seed picking the pages, so a query can be repeated
+     */
+    public SeqScanPageSample(TransactionId tid, int tableid, String tableAlias, double fraction, long seed) {
+        if(fraction <= 0 || fraction > 1) throw new IllegalArgumentException("fraction must be in (0, 1]");
+        DbFile db = Database.getCatalog().getDatabaseFile(tableid);
+        if(!(db instanceof HeapFile)) throw new IllegalArgumentException("page sampling needs a HeapFile");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.fraction = fraction;
+        this.seed = seed;
+        this.numPages = ((HeapFile) db).numPages();
+    }
+
+    public SeqScanPageSample(TransactionId tid, int tableid, String tableAlias, double fraction) {
+        this(tid, tableid, tableAlias, fraction, new Random().nextLong());
+    }
+
+    /**
+     * @return the SeqScanPageSample that query reads from, or null if there is none
+     */
+    public static SeqScanPageSample find(OpIterator query) {
+        if(query instanceof SeqScanPageSample) return (SeqScanPageSample) query;
+        if(query instanceof Operator) {
+            for(OpIterator child : ((Operator) query).getChildren()) {
+                SeqScanPageSample scan = find(child);
+                if(scan != null) return scan;
+            }
+        }
+        return null;
+    }
+
+    private void pickPages() {
+        Random random = new Random(seed);
+        List<Integer> picked = new ArrayList<>();
+        for(int pgNo = 0; pgNo < numPages; pgNo++) {
+            if(random.nextDouble() < fraction) picked.add(pgNo);
+        }
+        if(picked.isEmpty() && numPages > 0) picked.add(random.nextInt(numPages));
+        this.pages = picked.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(this.tableid);
+    }
+
+    public String getAlias() {
+        return this.tableAlias;
+    }
+
+    public double getFraction() {
+        return this.fraction;
+    }
+
+    /**
+     * @return the number of pages the scan reads
+     */
+    public int getPagesRead() {
+        if(pages == null) pickPages();
+        return pages.length;
+    }
+
+    /**
+     * @return the number of pages of the table each page read stands in for
+     */
+    public double getScaleFactor() {
+        int read = getPagesRead();
+        return read == 0 ? 0 : numPages / (double) read;
+    }
+
+    /**
+     * @return the rows of the table, extrapolated from the rows read so far
+     */
+    public long estimatedTableRows() {
+        return Math.round(numTuples * getScaleFactor());
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        if(pages == null) pickPages();
+        this.opened = true;
+        this.pageIndex = -1;
+        this.pageIterator = null;
+        this.numTuples = 0;
+    }
+
+    /**
+     * @see SeqScan#getTupleDesc
+     */
+    @Override
+    public TupleDesc getTupleDesc() {
+        if(this.td == null) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(this.tableid);
+            Type[] types = new Type[td.numFields()];
+            String[] fields = new String[td.numFields()];
+
+            int i = 0;
+            for (Iterator<TDItem> iterator = td.iterator(); iterator.hasNext(); i++){
+                TDItem item = iterator.next();
+                types[i] = item.fieldType;
+                fields[i] = item.fieldName == null ? null : this.tableAlias + "." + item.fieldName;
+            }
+
+            this.td = new TupleDesc(types, fields);
+        }
+
+        return this.td;
+    }
+
+    @Override
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if(!this.opened) throw new IllegalStateException("SeqScanPageSample not opened");
+        while(pageIterator == null || !pageIterator.hasNext()) {
+            if(pageIndex + 1 >= pages.length) return false;
+            pageIndex++;
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, pages[pageIndex]), Permissions.READ_ONLY);
+            pageIterator = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if(!hasNext()) throw new NoSuchElementException("no more tuples");
+        Tuple nextTuple = pageIterator.next();
+        nextTuple.resetTupleDesc(this.getTupleDesc());
+        this.numTuples++;
+        return nextTuple;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the same pages again, as the scale factor was worked out from them
+        this.pageIndex = -1;
+        this.pageIterator = null;
+        this.numTuples = 0;
+    }
+
+    @Override
+    public void close() {
+        this.opened = false;
+        this.pageIterator = null;
+    }
+
+    @Override
+    public int totalTuples() {
+        return this.numTuples;
+    }
+
+    @Override
+    public int numTuples() {
+        return this.totalTuples();
+    }
+}
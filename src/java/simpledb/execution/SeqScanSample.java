@@ -1,11 +1,14 @@
 package simpledb.execution;
 
 import java.util.NoSuchElementException;
+import java.util.function.BooleanSupplier;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
-import simpledb.storage.DbFileIterator;
+import simpledb.common.LongIntHashMap;
 import simpledb.storage.SampleDBFile;
+import simpledb.storage.SampleIterator;
+import simpledb.storage.StratumKey;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -13,7 +16,10 @@ import simpledb.transaction.TransactionId;
 
 /**
  * SeqScanSample is an implementation of a sequential scan that 
- * reads tuples from a SampleFamily
+ * reads tuples from a SampleFamily.
+ * The scan can stop before nTups tuples, when given a stop condition or a time budget.
+ * Over a stratified family, it counts the rows it read from each stratum, which
+ * give the strata's sampling rates (see {@link SampleAggregate}).
  */
 public class SeqScanSample implements OpIterator {
     private final TransactionId tid;
@@ -21,10 +27,18 @@ public class SeqScanSample implements OpIterator {
     private final int nTups;
 
     private SampleDBFile sampleFile;
-    private DbFileIterator iterator;
+    private SampleIterator iterator;
 
     private boolean opened = false;
     private int numTuples;
+
+    private BooleanSupplier stopCondition;
+    private int minRows;
+    private long timeBudgetNanos = -1; // no deadline
+    private long deadline;
+
+    private StratumKey stratumKey; // null unless the family is stratified
+    private LongIntHashMap stratumRows; // stratum key -> rows read from the stratum
     
     /**
      * Creates a sequential scan over the specified sample family of size n
@@ -42,6 +56,30 @@ public class SeqScanSample implements OpIterator {
     private void setSampleFile() {
         this.sampleFile = Database.getCatalog().getSampleDBFile(this.sampleFileTableId);
         this.iterator = this.sampleFile.iterator(tid, nTups);
+        this.iterator.setStopCondition(this::shouldStop, 0);
+        if(this.sampleFile.isStratified()) {
+            this.stratumKey = new StratumKey(this.sampleFile.getStratifiedColumnSet(), this.sampleFile.getTupleDesc());
+        }
+        this.stratumRows = new LongIntHashMap();
+    }
+
+    private boolean shouldStop() {
+        if(timeBudgetNanos >= 0 && System.nanoTime() >= deadline) return true;
+        return stopCondition != null && numTuples >= minRows && stopCondition.getAsBoolean();
+    }
+
+    /**
+     * @return the SeqScanSample that query reads from, or null if there is none
+     */
+    public static SeqScanSample find(OpIterator query) {
+        if(query instanceof SeqScanSample) return (SeqScanSample) query;
+        if(query instanceof Operator) {
+            for(OpIterator child : ((Operator) query).getChildren()) {
+                SeqScanSample scan = find(child);
+                if(scan != null) return scan;
+            }
+        }
+        return null;
     }
     
     public int getNTups() {
@@ -52,11 +90,53 @@ public class SeqScanSample implements OpIterator {
         return this.sampleFileTableId;
     }
 
+    public SampleDBFile getSampleFile() {
+        return this.sampleFile;
+    }
+
+    /**
+     * Stop the scan early once stopCondition holds, having read at least minRows tuples
+     *
+     * @see SampleIterator#setStopCondition
+     */
+    public void setStopCondition(BooleanSupplier stopCondition, int minRows) {
+        this.stopCondition = stopCondition;
+        this.minRows = minRows;
+    }
+
+    /**
+     * Stop the scan once it has been open for timeBudgetMillis, however many of
+     * the nTups tuples it has read by then. Operators above can find out how
+     * many it read with {@link #totalTuples}.
+     *
+     * @param timeBudgetMillis the time budget, or a negative value for none
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        this.timeBudgetNanos = timeBudgetMillis < 0 ? -1 : timeBudgetMillis * 1000000;
+    }
+
+    /**
+     * @return the key of the strata of the family, or null if it is not stratified
+     */
+    public StratumKey getStratumKey() {
+        return this.stratumKey;
+    }
+
+    /**
+     * @return the number of rows read so far from the stratum with the given key
+     */
+    public int stratumRowsRead(long key) {
+        int rows = this.stratumRows.get(key);
+        return rows == LongIntHashMap.NO_VALUE ? 0 : rows;
+    }
+
     @Override
     public void open() throws DbException, TransactionAbortedException {
         this.opened = true;
+        this.deadline = System.nanoTime() + timeBudgetNanos;
         this.iterator.open();
         this.numTuples = 0;
+        this.stratumRows = new LongIntHashMap();
         
     }
 
@@ -68,14 +148,21 @@ public class SeqScanSample implements OpIterator {
 
     @Override
     public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        Tuple next = iterator.next();
         numTuples++;
-        return iterator.next();
+        if(stratumKey != null) {
+            long key = stratumKey.of(next);
+            stratumRows.put(key, stratumRowsRead(key) + 1);
+        }
+        return next;
     }
 
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
+        this.deadline = System.nanoTime() + timeBudgetNanos;
         this.iterator.rewind();
         this.numTuples = 0;
+        this.stratumRows = new LongIntHashMap();
         
     }
 
@@ -0,0 +1,71 @@
+package simpledb.execution;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * StratifiedStats keeps the running statistics of the rows read from each
+ * stratum of a stratified sample. Since strata were capped, their rows don't
+ * stand for the same number of base table rows: each stratum s is scaled by
+ * N_s / n_s, where N_s is its rows in the base table and n_s the rows the scan
+ * read from it, and the strata are independent uniform samples of their own
+ * rows, so their variances add up.
+ */
+class StratifiedStats {
+
+    private final Map<Long, RunningStats> strata = new HashMap<>();
+    private long count;
+
+    /**
+     * Add the value of a row of stratum
+     */
+    void add(long stratum, int value) {
+        strata.computeIfAbsent(stratum, k -> new RunningStats()).add(value);
+        count++;
+    }
+
+    /**
+     * @return the number of rows added, over all strata
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @param op            SUM, AVG or COUNT
+     * @param scan          the scan the rows were read by, which knows the rows it read from each stratum
+     * @param stratumCounts the rows of each stratum in the base table
+     * @return the estimate of op over the base table and its standard error
+     */
+    double[] estimate(Aggregator.Op op, SeqScanSample scan, Map<Long, Long> stratumCounts) {
+        double sum = 0, count = 0;
+        double sumVar = 0, countVar = 0, avgVar = 0;
+        for(Map.Entry<Long, RunningStats> stratum : strata.entrySet()) {
+            RunningStats stats = stratum.getValue();
+            int read = scan.stratumRowsRead(stratum.getKey());
+            Long base = stratumCounts.get(stratum.getKey());
+            long baseRows = base == null || read == 0 ? stats.getCount() : base;
+            long rows = read == 0 ? stats.getCount() : read;
+            sum += stats.estimate(Aggregator.Op.SUM, rows, baseRows);
+            count += stats.estimate(Aggregator.Op.COUNT, rows, baseRows);
+
+            // a stratum read in full has no error (finite population correction)
+            double fpc = Math.max(0, 1 - rows / (double) baseRows);
+            sumVar += fpc * Math.pow(stats.standardError(Aggregator.Op.SUM, rows, baseRows), 2);
+            countVar += fpc * Math.pow(stats.standardError(Aggregator.Op.COUNT, rows, baseRows), 2);
+            avgVar += fpc * Math.pow(stats.estimate(Aggregator.Op.COUNT, rows, baseRows), 2)
+                    * stats.getVariance() / stats.getCount();
+        }
+
+        switch(op) {
+            case SUM:
+                return new double[]{sum, Math.sqrt(sumVar)};
+            case AVG:
+                return count == 0 ? new double[]{0, Double.POSITIVE_INFINITY} : new double[]{sum / count, Math.sqrt(avgVar) / count};
+            case COUNT:
+                return new double[]{count, Math.sqrt(countVar)};
+            default:
+                throw new IllegalArgumentException("only SUM, AVG and COUNT can be estimated");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package simpledb.optimizer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import simpledb.ParsingException;
+
+/**
+ * The approximate-query clauses a SELECT may end with, as in BlinkDB:
+ * <pre>
+ *   SELECT AVG(quantity) FROM t1 WHERE year = 2010 ERROR WITHIN 5% AT CONFIDENCE 95%;
+ *   SELECT COUNT(id) FROM t1 WITHIN 200 MS;
+ *   SELECT SUM(quantity) FROM t1 TABLESAMPLE SYSTEM (10) REPEATABLE (42) WHERE year = 2010;
+ * </pre>
+ * Zql does not know these, so {@link #parse} takes them out of the statement
+ * before it is handed to Zql. A LogicalPlan with an approximation (see
+ * {@link LogicalPlan#setApproximation}) answers the query from a sample family
+ * instead of the base table, or with TABLESAMPLE from the given percentage of
+ * the table's pages, which needs no sample family.
+ */
+public class ApproximateClause {
+
+    /**
+     * The confidence errors are measured at when a query doesn't give one,
+     * also used by {@link SampleSelector}
+     */
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+
+    // ERROR WITHIN and WITHIN MS end the statement (but for the ;), so string constants can't match them
+    private static final String AT_END = "(?=\\s*;?\\s*$)";
+    private static final Pattern ERROR = Pattern.compile(
+            "\\s+ERROR\\s+WITHIN\\s+(\\d+(?:\\.\\d+)?)\\s*%(?:\\s+AT\\s+CONFIDENCE\\s+(\\d+(?:\\.\\d+)?)\\s*%)?" + AT_END,
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern LATENCY = Pattern.compile("\\s+WITHIN\\s+(\\d+)\\s*MS" + AT_END, Pattern.CASE_INSENSITIVE);
+    // TABLESAMPLE follows a table of the FROM list, and its alias if it has one
+    private static final Pattern TABLESAMPLE = Pattern.compile(
+            "(?:\\bFROM|,)\\s+\\w+(?:\\s+(?:AS\\s+)?(?!TABLESAMPLE\\b)\\w+)?"
+                    + "(\\s+TABLESAMPLE\\s+SYSTEM\\s*\\(\\s*(\\d+(?:\\.\\d+)?)\\s*\\)(?:\\s+REPEATABLE\\s*\\(\\s*(\\d+)\\s*\\))?)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String statement;
+    private final double errorTarget;
+    private final double confidence;
+    private final int latencyMs;
+    private final double pageFraction;
+    private final Long pageSeed;
+
+    private ApproximateClause(String statement, double errorTarget, double confidence, int latencyMs,
+                              double pageFraction, Long pageSeed) {
+        this.statement = statement;
+        this.errorTarget = errorTarget;
+        this.confidence = confidence;
+        this.latencyMs = latencyMs;
+        this.pageFraction = pageFraction;
+        this.pageSeed = pageSeed;
+    }
+
+    /**
+     * Take the approximate-query clauses out of sql
+     *
+     * @param sql a SQL statement, which may have ERROR WITHIN / WITHIN MS / TABLESAMPLE clauses
+     * @return the clauses, and the statement without them
+     * @throws ParsingException if a clause has an invalid error, confidence or
+     *                          percentage, or TABLESAMPLE is used with the others
+     */
+    public static ApproximateClause parse(String sql) throws ParsingException {
+        double errorTarget = 0;
+        double confidence = DEFAULT_CONFIDENCE;
+        int latencyMs = -1;
+
+        // the two clauses may come in either order, taking out the last one uncovers the other
+        Matcher m;
+        for (int i = 0; i < 2; i++) {
+            m = ERROR.matcher(sql);
+            if (errorTarget == 0 && m.find()) {
+                errorTarget = Double.parseDouble(m.group(1)) / 100;
+                if (m.group(2) != null) confidence = Double.parseDouble(m.group(2)) / 100;
+                if (errorTarget <= 0) throw new ParsingException("ERROR WITHIN must be positive");
+                if (confidence <= 0 || confidence >= 1) throw new ParsingException("CONFIDENCE must be between 0% and 100%");
+                sql = sql.substring(0, m.start()) + sql.substring(m.end());
+            }
+
+            m = LATENCY.matcher(sql);
+            if (latencyMs < 0 && m.find()) {
+                latencyMs = Integer.parseInt(m.group(1));
+                sql = sql.substring(0, m.start()) + sql.substring(m.end());
+            }
+        }
+
+        double pageFraction = 0;
+        Long pageSeed = null;
+        m = TABLESAMPLE.matcher(blankStrings(sql));
+        if (m.find()) {
+            pageFraction = Double.parseDouble(m.group(2)) / 100;
+            if (m.group(3) != null) pageSeed = Long.parseLong(m.group(3));
+            if (pageFraction <= 0 || pageFraction > 1) throw new ParsingException("TABLESAMPLE SYSTEM must be between 0% and 100%");
+            if (errorTarget > 0 || latencyMs >= 0) throw new ParsingException("TABLESAMPLE cannot be used with ERROR WITHIN or WITHIN MS");
+            sql = sql.substring(0, m.start(1)) + sql.substring(m.end(1));
+        }
+
+        return new ApproximateClause(sql, errorTarget, confidence, latencyMs, pageFraction, pageSeed);
+    }
+
+    /**
+     * @return sql with the contents of its string constants replaced by spaces,
+     *         so clauses can't be matched inside them
+     */
+    private static String blankStrings(String sql) {
+        StringBuilder blanked = new StringBuilder(sql);
+        boolean inString = false;
+        for (int i = 0; i < blanked.length(); i++) {
+            if (blanked.charAt(i) == '\'') inString = !inString;
+            else if (inString) blanked.setCharAt(i, ' ');
+        }
+        return blanked.toString();
+    }
+
+    /**
+     * @return the statement without the approximate-query clauses
+     */
+    public String getStatement() {
+        return statement;
+    }
+
+    /**
+     * @return whether the statement had any approximate-query clause
+     */
+    public boolean isApproximate() {
+        return errorTarget > 0 || latencyMs >= 0 || pageFraction > 0;
+    }
+
+    /**
+     * @return the target error relative to the answer, or 0 if there is none
+     */
+    public double getErrorTarget() {
+        return errorTarget;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * @return the time budget in ms, or -1 if there is none
+     */
+    public int getLatencyMs() {
+        return latencyMs;
+    }
+
+    /**
+     * @return the fraction of pages TABLESAMPLE SYSTEM reads, or 0 if there is none
+     */
+    public double getPageFraction() {
+        return pageFraction;
+    }
+
+    /**
+     * @return the REPEATABLE seed of TABLESAMPLE, or null for a random one
+     */
+    public Long getPageSeed() {
+        return pageSeed;
+    }
+}
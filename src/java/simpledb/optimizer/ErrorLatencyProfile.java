@@ -0,0 +1,196 @@
+package simpledb.optimizer;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.Join;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.RunningStats;
+
+/**
+ * An error-latency profile (ELP) is what SampleSelector learns about a query
+ * shape by probing a sample family: the selectivity of its predicates, the
+ * mean and variance of the aggregated column over the matching rows, and how
+ * fast the sample is read. Profiles are cached per (QCS, predicate shape,
+ * aggregate op, sample family) in the {@link Cache} of the Database (see
+ * {@link simpledb.common.Database#getProfileCache}), so repeating a query
+ * shape with different constants skips the probe. The cache entries of a
+ * sample family are dropped when the family is rebuilt (see {@link Cache#invalidate}).
+ */
+public class ErrorLatencyProfile {
+
+    private final int rowsRead;
+    private final int matchingRows;
+    private final RunningStats stats;
+    private final long elapsedNanos;
+
+    /**
+     * @param rowsRead     the number of sample rows the probe read
+     * @param matchingRows the number of those that passed the predicates
+     * @param stats        running stats of the aggregated column over the matching
+     *                     rows, or null if it is not an int column
+     * @param elapsedNanos how long the probe took
+     */
+    public ErrorLatencyProfile(int rowsRead, int matchingRows, RunningStats stats, long elapsedNanos) {
+        this.rowsRead = rowsRead;
+        this.matchingRows = matchingRows;
+        this.stats = stats == null ? new RunningStats() : stats;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getRowsRead() {
+        return rowsRead;
+    }
+
+    public int getMatchingRows() {
+        return matchingRows;
+    }
+
+    /**
+     * @return the fraction of sample rows that passed the predicates
+     */
+    public double getSelectivity() {
+        return rowsRead == 0 ? 0 : matchingRows / (double) rowsRead;
+    }
+
+    public double getMean() {
+        return stats.getMean();
+    }
+
+    /**
+     * @return the sum of squared deviations of the aggregated column over the matching rows
+     */
+    public double getM2() {
+        return stats.getM2();
+    }
+
+    /**
+     * @return the number of sample rows read per millisecond by the probe
+     */
+    public double getRowsPerMs() {
+        return rowsRead / Math.max(elapsedNanos / 1e6, 1e-3);
+    }
+
+    /**
+     * @return the estimate of aggregate op over a base table of tableSize rows
+     */
+    public double estimate(Aggregator.Op op, int tableSize) {
+        return stats.estimate(op, rowsRead, tableSize);
+    }
+
+    /**
+     * @return the shape of query: its operators, the columns and comparison
+     *         ops of its predicates and its aggregate, but not the constants
+     *         predicates compare against
+     */
+    public static String shapeOf(OpIterator query) {
+        StringBuilder sb = new StringBuilder();
+        appendShape(query, sb);
+        return sb.toString();
+    }
+
+    private static void appendShape(OpIterator query, StringBuilder sb) {
+        if(!(query instanceof Operator)) { // SeqScan or SeqScanSample
+            sb.append("scan");
+            return;
+        }
+        if(query instanceof Filter) {
+            Filter filter = (Filter) query;
+            sb.append("filter[").append(filter.getPredicate().getField()).append(' ')
+                    .append(filter.getPredicate().getOp()).append(']');
+        }
+        else if(query instanceof Join) {
+            Join join = (Join) query;
+            sb.append("join[").append(join.getJoinPredicate().getField1()).append(' ')
+                    .append(join.getJoinPredicate().getOperator()).append(' ')
+                    .append(join.getJoinPredicate().getField2()).append(']');
+        }
+        else if(query instanceof Aggregate) {
+            Aggregate aggregate = (Aggregate) query;
+            sb.append("agg[").append(aggregate.aggregateOp()).append(' ').append(aggregate.aggregateField())
+                    .append(' ').append(aggregate.groupField()).append(']');
+        }
+        else {
+            sb.append(query.getClass().getSimpleName());
+        }
+        sb.append('(');
+        OpIterator[] children = ((Operator) query).getChildren();
+        for(int i = 0; i < children.length; i++) {
+            if(i > 0) sb.append(',');
+            appendShape(children[i], sb);
+        }
+        sb.append(')');
+    }
+
+    /**
+     * The profiles measured so far, by {@link Key}
+     */
+    public static class Cache {
+        private final Map<Key, ErrorLatencyProfile> profiles = new ConcurrentHashMap<>();
+
+        /**
+         * @return the cached profile for key, or null if the shape has not been probed
+         */
+        public ErrorLatencyProfile get(Key key) {
+            return profiles.get(key);
+        }
+
+        public void put(Key key, ErrorLatencyProfile profile) {
+            profiles.put(key, profile);
+        }
+
+        /**
+         * Drop every profile measured on sampleFamily, e.g. because it was rebuilt
+         */
+        public void invalidate(int sampleFamily) {
+            profiles.keySet().removeIf(k -> k.sampleFamily == sampleFamily);
+        }
+
+        public void clear() {
+            profiles.clear();
+        }
+    }
+
+    /**
+     * Cache key: (QCS, predicate shape, aggregate op, sample family)
+     */
+    public static class Key {
+        private final QueryColumnSet qcs;
+        private final String shape;
+        private final Aggregator.Op op;
+        private final int sampleFamily;
+
+        public Key(QueryColumnSet qcs, String shape, Aggregator.Op op, int sampleFamily) {
+            this.qcs = qcs;
+            this.shape = shape;
+            this.op = op;
+            this.sampleFamily = sampleFamily;
+        }
+
+        /**
+         * @return the key of query when run on sampleFamily
+         */
+        public static Key of(OpIterator query, int sampleFamily) {
+            Aggregator.Op op = query instanceof Aggregate ? ((Aggregate) query).aggregateOp() : null;
+            return new Key(new QueryColumnSet(query), shapeOf(query), op, sampleFamily);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return sampleFamily == other.sampleFamily && op == other.op && shape.equals(other.shape)
+                    && qcs.equals(other.qcs);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(qcs, shape, op, sampleFamily);
+        }
+    }
+}
@@ -211,6 +211,9 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
+        // nothing to order, and the cache has no plan for the empty set
+        if(joins.isEmpty()) return joins;
+
         PlanCache pc = new PlanCache();
         
         for(int i = 1; i <= joins.size(); i++) {
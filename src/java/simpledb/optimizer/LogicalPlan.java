@@ -3,9 +3,11 @@ package simpledb.optimizer;
 import simpledb.ParsingException;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.File;
@@ -40,6 +42,7 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private ApproximateClause approximation;
     //    private Query owner;
 
     /**
@@ -74,6 +77,23 @@ public class LogicalPlan {
         return query;
     }
 
+    /**
+     * Answer this plan from a sample family instead of the base table, within
+     * the error and/or time budget of approximation. Only SUM, AVG and COUNT
+     * over a single table without GROUP BY can be approximated. With
+     * TABLESAMPLE, tables are scanned by {@link SeqScanPageSample} instead, and
+     * SUM, AVG and COUNT are extrapolated to the whole table.
+     *
+     * @param approximation the ERROR WITHIN / WITHIN MS / TABLESAMPLE clauses of the query, or null
+     */
+    public void setApproximation(ApproximateClause approximation) {
+        this.approximation = approximation;
+    }
+
+    public ApproximateClause getApproximation() {
+        return approximation;
+    }
+
     /**
      * Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
      * Aliases are added as base tables are added via {@link #addScan}.
@@ -320,9 +340,14 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                if (approximation != null && approximation.getPageFraction() > 0) {
+                    ss = pageSampleScan(t, tableId, table.alias);
+                } else {
+                    ss = new SeqScan(t, tableId, table.alias);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -482,6 +507,10 @@ public class LogicalPlan {
             }
         }
 
+        if (approximation != null && approximation.getPageFraction() == 0 && !hasAgg) {
+            throw new ParsingException("ERROR WITHIN and WITHIN MS can only be used with an aggregate");
+        }
+
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
@@ -493,6 +522,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            if (approximation != null) return approximatePlan(aggNode);
             node = aggNode;
         }
 
@@ -503,6 +533,67 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Answer aggNode from the sample family SampleSelector picks for it,
+     * reading only as much of the sample as the approximation allows
+     *
+     * @return a plan returning a single (estimate, error, rows) tuple
+     */
+    private OpIterator approximatePlan(Aggregate aggNode) throws ParsingException {
+        Aggregator.Op op = aggNode.aggregateOp();
+        if (approximation.getPageFraction() > 0) return pageSamplePlan(aggNode);
+        if (tables.size() != 1 || !joins.isEmpty() || aggNode.groupField() != Aggregator.NO_GROUPING
+                || (op != Aggregator.Op.SUM && op != Aggregator.Op.AVG && op != Aggregator.Op.COUNT)) {
+            throw new ParsingException("Approximate queries support SUM, AVG and COUNT over a single table without GROUP BY");
+        }
+
+        int baseTableId = tables.get(0).t;
+        if (Database.getCatalog().getSampleFamilies(baseTableId).isEmpty()) {
+            throw new ParsingException("Table " + Database.getCatalog().getTableName(baseTableId) + " has no samples");
+        }
+
+        try {
+            int sampleFamily = SampleSelector.selectSample(new QueryColumnSet(aggNode), aggNode, baseTableId);
+            int tableSize = (int) Database.getCatalog().getSampleDBFile(sampleFamily).getBaseTableRows();
+            OpIterator plan = SampleSelector.errorBoundedQuery(sampleFamily, aggNode, tableSize,
+                    approximation.getErrorTarget(), approximation.getConfidence());
+            if (approximation.getLatencyMs() >= 0) {
+                SeqScanSample.find(plan).setTimeBudget(approximation.getLatencyMs());
+            }
+            return plan;
+        } catch (DbException | TransactionAbortedException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    /**
+     * The scan of a TABLESAMPLE SYSTEM query, reading only some of the pages of the table
+     */
+    private SeqScanPageSample pageSampleScan(TransactionId t, int tableId, String alias) throws ParsingException {
+        try {
+            Long seed = approximation.getPageSeed();
+            return seed == null ? new SeqScanPageSample(t, tableId, alias, approximation.getPageFraction())
+                    : new SeqScanPageSample(t, tableId, alias, approximation.getPageFraction(), seed);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    /**
+     * Extrapolate aggNode, over a TABLESAMPLE SYSTEM scan, to the whole table
+     *
+     * @return a plan returning (groupBy, estimate, error, low, high) tuples,
+     *         or (estimate, error, low, high) if there is no GROUP BY
+     */
+    private OpIterator pageSamplePlan(Aggregate aggNode) throws ParsingException {
+        Aggregator.Op op = aggNode.aggregateOp();
+        if (tables.size() != 1 || !joins.isEmpty()
+                || (op != Aggregator.Op.SUM && op != Aggregator.Op.AVG && op != Aggregator.Op.COUNT)) {
+            throw new ParsingException("TABLESAMPLE aggregates support SUM, AVG and COUNT over a single table");
+        }
+        return new SampleAggregate(aggNode, 0, 0, op, approximation.getConfidence());
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
@@ -0,0 +1,229 @@
+package simpledb.optimizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IoThrottle;
+import simpledb.storage.PageId;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SampleBuildService builds sample families on background threads, so that
+ * building one does not block the caller for a full scan of the base table.
+ * Jobs are queued with {@link #submit}, or {@link #submitAll} to build several
+ * families of a table from one scan of it, and run a few at a time. The
+ * base table is read through an {@link IoThrottle} shared by all jobs, to
+ * leave I/O for the queries running meanwhile.
+ * <p>
+ * Each family is built into a new file that no table uses yet. Only once the
+ * file is complete is it published to the Catalog ({@link Catalog#publishSample}),
+ * replacing the family of the same name in one step. Until then, queries keep
+ * using the older family.
+ * <p>
+ * A lone uniform family of a HeapFile can be read by several threads at once
+ * (see {@link SampleDBFile#createUniformSamples(HeapFile, int, IoThrottle)}),
+ * still within the throttle.
+ */
+public class SampleBuildService {
+
+    private final ExecutorService executor;
+    private final IoThrottle throttle;
+    private final File directory;
+    private final int parallelism;
+    private final AtomicInteger builds = new AtomicInteger();
+
+    /**
+     * @param threads        the number of families built at once
+     * @param bytesPerSecond the limit on the rate at which base tables are read, or 0 for none
+     * @param directory      where sample files are written
+     */
+    public SampleBuildService(int threads, long bytesPerSecond, File directory) {
+        this(threads, bytesPerSecond, directory, 1);
+    }
+
+    /**
+     * Like {@link #SampleBuildService(int, long, File)}, reading the base table
+     * of a lone uniform family with parallelism threads
+     */
+    public SampleBuildService(int threads, long bytesPerSecond, File directory, int parallelism) {
+        if(threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        if(parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+        this.throttle = new IoThrottle(bytesPerSecond);
+        this.directory = directory;
+        this.parallelism = parallelism;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sample-build");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue the build of a sample family
+     *
+     * @param baseTableId the table to sample
+     * @param qcs         the columns to stratify on, or null for a uniform sample
+     * @param sampleSizes the cutoffs of the family
+     * @param name        the name to publish the family under
+     * @return the published family, once it is built
+     */
+    public Future<SampleDBFile> submit(int baseTableId, QueryColumnSet qcs, List<Integer> sampleSizes, String name) {
+        return executor.submit(() -> build(baseTableId, qcs, sampleSizes, name));
+    }
+
+    /**
+     * Queue the build of several sample families of the same table, all filled
+     * from a single scan of it (see {@link SampleDBFile#createSamples})
+     *
+     * @param families the columns to stratify each family on, or null for a uniform family
+     * @param names    the name to publish each family under
+     * @return the published families, in the order of families, once they are all built
+     */
+    public Future<List<SampleDBFile>> submitAll(int baseTableId, List<QueryColumnSet> families, List<Integer> sampleSizes, List<String> names) {
+        if(families.size() != names.size()) throw new IllegalArgumentException("need one name per family");
+        return executor.submit(() -> build(baseTableId, families, sampleSizes, names));
+    }
+
+    /**
+     * Queue the builds of every stratified sample in plan, plus a uniform
+     * family if uniform is set, from one scan of the table. Each family is
+     * named namePrefix followed by its columns, e.g. "lineitem-strat-0-2",
+     * and the uniform one namePrefix followed by "-uniform".
+     */
+    public Future<List<SampleDBFile>> submitPlan(int baseTableId, SamplePlan plan, boolean uniform, List<Integer> sampleSizes, String namePrefix) {
+        List<QueryColumnSet> families = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if(uniform) {
+            families.add(null);
+            names.add(namePrefix + "-uniform");
+        }
+        for(QueryColumnSet qcs : plan.getColumnSets()) {
+            families.add(qcs);
+            names.add(namePrefix + "-" + qcs.getColumns().stream().sorted().map(String::valueOf).collect(Collectors.joining("-")));
+        }
+        return submitAll(baseTableId, families, sampleSizes, names);
+    }
+
+    private SampleDBFile build(int baseTableId, QueryColumnSet qcs, List<Integer> sampleSizes, String name) throws Exception {
+        return build(baseTableId, Collections.singletonList(qcs), sampleSizes, Collections.singletonList(name)).get(0);
+    }
+
+    private List<SampleDBFile> build(int baseTableId, List<QueryColumnSet> families, List<Integer> sampleSizes, List<String> names) throws Exception {
+        Catalog catalog = Database.getCatalog();
+        DbFile base = catalog.getDatabaseFile(baseTableId);
+
+        List<SampleDBFile> samples = new ArrayList<>();
+        TableStats stats = null;
+        for(int i = 0; i < families.size(); i++) {
+            File f = new File(directory, names.get(i) + "-" + System.currentTimeMillis() + "-" + builds.incrementAndGet() + ".dat");
+            samples.add(new SampleDBFile(f, sampleSizes, families.get(i), base.getTupleDesc()));
+            if(families.get(i) != null && stats == null) stats = statsFor(baseTableId);
+        }
+
+        if(parallelism > 1 && families.size() == 1 && families.get(0) == null && base instanceof HeapFile) {
+            samples.get(0).createUniformSamples((HeapFile) base, parallelism, throttle);
+        } else {
+            DbFileIterator source = new ThrottledIterator(base.iterator(new TransactionId()), throttle);
+            SampleDBFile.createSamples(base, source, samples, stats);
+        }
+
+        for(int i = 0; i < samples.size(); i++) catalog.publishSample(samples.get(i), names.get(i));
+        return samples;
+    }
+
+    /**
+     * The stats are only computed (unthrottled) if nobody has yet, and are
+     * kept for the next builds over the table
+     */
+    private static TableStats statsFor(int baseTableId) {
+        String tableName = Database.getCatalog().getTableName(baseTableId);
+        TableStats stats = TableStats.getTableStats(tableName);
+        if(stats == null) {
+            stats = new TableStats(baseTableId, SampleCreator.IO_COST);
+            TableStats.setTableStats(tableName, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Stop taking jobs, and wait up to timeout for the queued ones to finish
+     *
+     * @return whether every job finished
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Iterator that takes a page's worth of the throttle's budget each time it
+     * reaches a new page
+     */
+    private static class ThrottledIterator implements DbFileIterator {
+        private final DbFileIterator child;
+        private final IoThrottle throttle;
+        private PageId lastPage;
+
+        ThrottledIterator(DbFileIterator child, IoThrottle throttle) {
+            this.child = child;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            lastPage = null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            Tuple t = child.next();
+            PageId page = t.getRecordId() == null ? null : t.getRecordId().getPageId();
+            if(page != null && !page.equals(lastPage)) {
+                lastPage = page;
+                try {
+                    throttle.acquire(BufferPool.getPageSize());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("sample build interrupted");
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            lastPage = null;
+        }
+
+        @Override
+        public void close() {
+            child.close();
+        }
+    }
+}
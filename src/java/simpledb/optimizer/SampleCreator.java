@@ -1,68 +1,273 @@
 package simpledb.optimizer;
 
-import static org.junit.Assert.assertEquals;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
-import simpledb.common.Catalog;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.execution.OpIterator;
-import simpledb.storage.BufferPool;
-import simpledb.storage.HeapFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.StratifiedSampleBuilder;
+import simpledb.storage.StratumKey;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class SampleCreator {
     
     public static final int IO_COST = 71;
 
+    // the rows kept per stratum by samples built with a fixed cap, as at ingest
+    public static final int DEFAULT_STRATUM_CAP = 100;
+    // the most columns a sample is stratified on, as in BlinkDB
+    public static final int MAX_QCS_COLUMNS = 3;
+    // up to this many candidates the plan is found by exhaustive search, beyond it greedily
+    public static final int EXACT_CANDIDATES = 16;
+
     /**
-     * Return a list of QueryColumnSets representing the stratified samples to create for a table
+     * Return a list of QueryColumnSets representing the stratified samples to
+     * create for a table, for samples keeping DEFAULT_STRATUM_CAP rows per stratum
      * @param queryWorkload list of past queries
      * @return 
      */
     public static List<QueryColumnSet> getStratifiedSamplesToCreate(int tableid, List<OpIterator> queryWorkload, int storageCap){
-       List<QueryColumnSet> samplesToCreate = new ArrayList<>();
-       Catalog catalog = Database.getCatalog();
-       
-       // Calculate how many samples we can generate
-       final int DB_SIZE = ((HeapFile) catalog.getDatabaseFile(tableid)).numPages() * BufferPool.getPageSize(); // Bytes in original DB 
-       final int SAMPLE_SIZE = (int) (DB_SIZE * 0.02); // Sample should be 2% of DB
-       final int K = storageCap / SAMPLE_SIZE; // K = number of samples we can generate 
-      
-       // Generate query distribution
+       return planStratifiedSamples(tableid, queryWorkload, storageCap, DEFAULT_STRATUM_CAP).getColumnSets();
+    }
+
+    /**
+     * Like {@link #getStratifiedSamplesToCreate(int, List, int)}, for sample
+     * families with the given cutoffs (see {@link #planStratifiedSamples(int, List, long, List)})
+     */
+    public static List<QueryColumnSet> getStratifiedSamplesToCreate(int tableid, List<OpIterator> queryWorkload, long storageCap, List<Integer> sampleSizes){
+       return planStratifiedSamples(tableid, queryWorkload, storageCap, sampleSizes).getColumnSets();
+    }
+
+    /**
+     * Choose the stratified samples to build for a table within a storage cap,
+     * following the sample selection problem in section 3.2 of the BlinkDB paper.
+     * <p>
+     * The candidates are the QCS of the workload and their subsets, up to
+     * MAX_QCS_COLUMNS columns. One scan of the table counts the groups of each,
+     * which gives its sparsity (the groups with fewer than stratumCap rows) and
+     * the size of a sample stratified on it. The chosen set maximizes the
+     * workload-weighted rare-group coverage (see {@link SamplePlan}) among sets
+     * that fit in storageCap: exactly when there are at most EXACT_CANDIDATES
+     * candidates, else greedily by gain per byte.
+     *
+     * @param tableid       the table to sample
+     * @param queryWorkload past queries over the table
+     * @param storageCap    the bytes the samples may take
+     * @param stratumCap    the rows kept per group
+     */
+    public static SamplePlan planStratifiedSamples(int tableid, List<OpIterator> queryWorkload, long storageCap, int stratumCap) {
+       return plan(tableid, queryWorkload, storageCap, null, stratumCap);
+    }
+
+    /**
+     * Like {@link #planStratifiedSamples(int, List, long, int)}, for sample
+     * families with the given cutoffs, sized and capped the way
+     * {@link simpledb.storage.StratifiedSampleBuilder} will build them: each
+     * candidate's cap is the one estimated from the table's histograms, fitted
+     * to its groups, for the largest of sampleSizes, and its sample takes that
+     * many rows (fewer if the table is smaller), since rows the strata leave
+     * are filled from the rest of the table.
+     */
+    public static SamplePlan planStratifiedSamples(int tableid, List<OpIterator> queryWorkload, long storageCap, List<Integer> sampleSizes) {
+       return plan(tableid, queryWorkload, storageCap, sampleSizes, 0);
+    }
+
+    /**
+     * @param sampleSizes the cutoffs of the families, or null for a fixed stratumCap
+     */
+    private static SamplePlan plan(int tableid, List<OpIterator> queryWorkload, long storageCap, List<Integer> sampleSizes, int stratumCap) {
        List<QueryColumnSet> pastQueries = new ArrayList<>();
        for(OpIterator query : queryWorkload) pastQueries.add(new QueryColumnSet(query));
        QueryStats qs = new QueryStats(pastQueries);
-       
-       // Pick k most skewed columns that are in the query workload w/ p > 0.05
-       TableStats tableStats = new TableStats(tableid, IO_COST);
-       int numColumns = catalog.getTupleDesc(tableid).numFields();
-       Map<QueryColumnSet, Double> columnToSkew = new HashMap<>();
-
-       for(int column = 0; column < numColumns; column++) {
-           double skew = tableStats.getSkewForColumn(column);
-           QueryColumnSet qcs = new QueryColumnSet(column);
-           
-           if(qs.getProbability(qcs) > 0.05) columnToSkew.put(qcs, Math.abs(skew));
+
+       // Templates are the workload's QCS, candidates their small subsets
+       Set<QueryColumnSet> templateSets = new HashSet<>();
+       Set<QueryColumnSet> candidateSets = new HashSet<>();
+       for(QueryColumnSet qcs : qs.getSortedProbabilities().keySet()) {
+           if(qcs.getNumCols() == 0) continue;
+           templateSets.add(qcs);
+           List<Integer> columns = new ArrayList<>(qcs.getColumns());
+           Collections.sort(columns);
+           addSubsets(columns, 0, new ArrayList<>(), candidateSets);
        }
-       
-       List<Entry<QueryColumnSet, Double>> list = new ArrayList<>(columnToSkew.entrySet());
-       list.sort(Entry.<QueryColumnSet, Double>comparingByValue().reversed());
-
-       int i = 0;
-       for (Entry<QueryColumnSet, Double> entry : list) {
-           if(i >= K) break;
-           QueryColumnSet qcs = entry.getKey();
-           samplesToCreate.add(qcs);
-           i++;
+
+       Set<QueryColumnSet> all = new HashSet<>(templateSets);
+       all.addAll(candidateSets);
+       Map<QueryColumnSet, SamplePlan.Candidate> stats = countGroups(tableid, all, sampleSizes, stratumCap);
+
+       Map<SamplePlan.Candidate, Double> workload = new HashMap<>();
+       for(QueryColumnSet qcs : templateSets) workload.put(stats.get(qcs), (double) qs.getProbability(qcs));
+       List<SamplePlan.Candidate> candidates = new ArrayList<>();
+       Map<SamplePlan.Candidate, Double> alone = new HashMap<>(); // gain of each candidate on its own
+       for(QueryColumnSet qcs : candidateSets) {
+           SamplePlan.Candidate c = stats.get(qcs);
+           double gain = SamplePlan.gain(Collections.singletonList(c), workload);
+           if(c.getBytes() <= storageCap && gain > 0) {
+               candidates.add(c);
+               alone.put(c, gain);
+           }
+       }
+
+       if(candidates.size() <= EXACT_CANDIDATES) {
+           // most valuable first, so that the search finds good sets early and prunes more
+           candidates.sort((a, b) -> Double.compare(alone.get(b), alone.get(a)));
+           double[] bound = new double[candidates.size() + 1];
+           for(int i = candidates.size() - 1; i >= 0; i--) bound[i] = bound[i + 1] + alone.get(candidates.get(i));
+
+           List<SamplePlan.Candidate> best = new ArrayList<>();
+           double[] bestGain = {0};
+           search(candidates, bound, 0, new ArrayList<>(), 0, storageCap, workload, best, bestGain);
+           return new SamplePlan(best, bestGain[0], true);
        }
-       
-       return samplesToCreate;
+       return greedy(candidates, storageCap, workload);
+    }
+
+    /**
+     * Add every non-empty subset of columns[from:] (plus prefix) with at most MAX_QCS_COLUMNS columns
+     */
+    private static void addSubsets(List<Integer> columns, int from, List<Integer> prefix, Set<QueryColumnSet> out) {
+        if(!prefix.isEmpty()) out.add(new QueryColumnSet(prefix.toArray(new Integer[0])));
+        if(prefix.size() == MAX_QCS_COLUMNS) return;
+        for(int i = from; i < columns.size(); i++) {
+            prefix.add(columns.get(i));
+            addSubsets(columns, i + 1, prefix, out);
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+
+    /**
+     * Count the groups of every QCS in a single scan of the table
+     *
+     * @param sampleSizes the cutoffs of the families, or null for a fixed stratumCap
+     */
+    private static Map<QueryColumnSet, SamplePlan.Candidate> countGroups(int tableid, Set<QueryColumnSet> columnSets,
+            List<Integer> sampleSizes, int stratumCap) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        List<QueryColumnSet> sets = new ArrayList<>(columnSets);
+        StratumKey[] keys = new StratumKey[sets.size()];
+        List<Map<Long, Long>> counts = new ArrayList<>();
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = new StratumKey(sets.get(i), td);
+            counts.add(new HashMap<>());
+        }
+
+        long tableRows = 0;
+        try {
+            DbFileIterator iter = file.iterator(new TransactionId());
+            iter.open();
+            while(iter.hasNext()) {
+                Tuple t = iter.next();
+                for(int i = 0; i < keys.length; i++) counts.get(i).merge(keys[i].of(t), 1L, Long::sum);
+                tableRows++;
+            }
+            iter.close();
+        } catch (DbException | TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+
+        TableStats tableStats = sampleSizes == null ? null : statsFor(tableid);
+        Map<QueryColumnSet, SamplePlan.Candidate> stats = new HashMap<>();
+        for(int i = 0; i < keys.length; i++) {
+            long[] groups = counts.get(i).values().stream().mapToLong(Long::longValue).toArray();
+            int cap = stratumCap;
+            long rows;
+            if(sampleSizes == null) {
+                rows = StratifiedSampleBuilder.rowsWithCap(groups, cap);
+            } else {
+                int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+                cap = StratifiedSampleBuilder.fitCap(groups, StratifiedSampleBuilder.capFromStats(sets.get(i), td, maxSize, tableStats), maxSize);
+                rows = Math.min(tableRows, maxSize);
+            }
+            long rare = 0;
+            for(long count : groups) {
+                if(count < cap) rare++;
+            }
+            stats.put(sets.get(i), new SamplePlan.Candidate(sets.get(i), groups.length, rare, rows, rows * td.getSize()));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the stats of the table if someone has computed them, else new ones
+     */
+    private static TableStats statsFor(int tableid) {
+        TableStats stats = TableStats.getTableStats(Database.getCatalog().getTableName(tableid));
+        return stats != null ? stats : new TableStats(tableid, IO_COST);
+    }
+
+    /**
+     * Branch and bound over the subsets of candidates[i:] that fit in the
+     * remaining storage, keeping the best set found in best. The gain of a set
+     * is at most the gain of its parts, so a branch is cut once chosen plus
+     * every remaining candidate can't beat best.
+     *
+     * @param bound    bound[i] is the sum of the gains of candidates[i:] on their own
+     * @param bestGain bestGain[0] is the gain of best
+     */
+    private static void search(List<SamplePlan.Candidate> candidates, double[] bound, int i, List<SamplePlan.Candidate> chosen,
+            long bytes, long storageCap, Map<SamplePlan.Candidate, Double> workload, List<SamplePlan.Candidate> best, double[] bestGain) {
+        double gain = SamplePlan.gain(chosen, workload);
+        if(gain > bestGain[0] || (gain == bestGain[0] && bytes < totalBytes(best))) {
+            best.clear();
+            best.addAll(chosen);
+            bestGain[0] = gain;
+        }
+        if(gain + bound[i] <= bestGain[0]) return;
+
+        for(int j = i; j < candidates.size(); j++) {
+            SamplePlan.Candidate c = candidates.get(j);
+            if(bytes + c.getBytes() > storageCap) continue;
+            chosen.add(c);
+            search(candidates, bound, j + 1, chosen, bytes + c.getBytes(), storageCap, workload, best, bestGain);
+            chosen.remove(chosen.size() - 1);
+        }
+    }
+
+    private static long totalBytes(List<SamplePlan.Candidate> candidates) {
+        long bytes = 0;
+        for(SamplePlan.Candidate c : candidates) bytes += c.getBytes();
+        return bytes;
+    }
+
+    /**
+     * Repeatedly add the candidate with the largest marginal gain per byte that still fits
+     */
+    private static SamplePlan greedy(List<SamplePlan.Candidate> candidates, long storageCap, Map<SamplePlan.Candidate, Double> workload) {
+        List<SamplePlan.Candidate> chosen = new ArrayList<>();
+        List<SamplePlan.Candidate> left = new ArrayList<>(candidates);
+        long bytes = 0;
+        double gain = 0;
+        while(true) {
+            SamplePlan.Candidate best = null;
+            double bestRatio = 0;
+            for(SamplePlan.Candidate c : left) {
+                if(bytes + c.getBytes() > storageCap) continue;
+                chosen.add(c);
+                double ratio = (SamplePlan.gain(chosen, workload) - gain) / Math.max(1, c.getBytes());
+                chosen.remove(chosen.size() - 1);
+                if(ratio > bestRatio) {
+                    best = c;
+                    bestRatio = ratio;
+                }
+            }
+            if(best == null) break;
+            chosen.add(best);
+            left.remove(best);
+            bytes += best.getBytes();
+            gain = SamplePlan.gain(chosen, workload);
+        }
+        return new SamplePlan(chosen, gain, false);
     }
 }
@@ -0,0 +1,165 @@
+package simpledb.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stratified samples {@link SampleCreator#planStratifiedSamples} chose to
+ * build for a table, with what they are expected to buy.
+ * <p>
+ * The gain of a set of samples is the objective of the BlinkDB sample
+ * selection problem: for each query template (QCS) in the workload, its
+ * probability times its number of rare groups (groups with fewer rows than
+ * the stratum cap) times the fraction of those groups one of the samples
+ * covers. A rare group missing from a sample has 100% error, so the gain is
+ * the expected number of groups per query whose error the samples remove.
+ */
+public class SamplePlan {
+
+    /**
+     * A QCS that could be stratified on, with its statistics over the base table
+     */
+    public static class Candidate {
+        private final QueryColumnSet qcs;
+        private final long distinct;
+        private final long rareGroups;
+        private final long rows;
+        private final long bytes;
+
+        Candidate(QueryColumnSet qcs, long distinct, long rareGroups, long rows, long bytes) {
+            this.qcs = qcs;
+            this.distinct = distinct;
+            this.rareGroups = rareGroups;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        public QueryColumnSet getColumnSet() {
+            return qcs;
+        }
+
+        /**
+         * @return the number of distinct values of the QCS in the base table
+         */
+        public long getDistinct() {
+            return distinct;
+        }
+
+        /**
+         * @return the number of groups with fewer rows than the stratum cap (the sparsity)
+         */
+        public long getRareGroups() {
+            return rareGroups;
+        }
+
+        /**
+         * @return the number of rows in a sample stratified on this QCS
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the size of a sample stratified on this QCS, in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the fraction of the groups of template a sample on this QCS
+         *         covers: all of them if this QCS contains the template's
+         *         columns, the ratio of distinct values if it is a subset of
+         *         them, and none otherwise
+         */
+        double coverage(Candidate template) {
+            if(qcs.getColumns().containsAll(template.qcs.getColumns())) return 1;
+            if(template.qcs.getColumns().containsAll(qcs.getColumns())) return distinct / (double) template.distinct;
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return qcs.getColumns() + " (" + rareGroups + " rare of " + distinct + " groups, " + bytes + " bytes)";
+        }
+    }
+
+    private final List<Candidate> chosen;
+    private final double gain;
+    private final boolean exact;
+
+    SamplePlan(List<Candidate> chosen, double gain, boolean exact) {
+        this.chosen = chosen;
+        this.gain = gain;
+        this.exact = exact;
+    }
+
+    /**
+     * @return the gain of building samples on chosen, for the query templates
+     *         in workload (each candidate mapped to its probability)
+     */
+    static double gain(List<Candidate> chosen, Map<Candidate, Double> workload) {
+        double gain = 0;
+        for(Map.Entry<Candidate, Double> template : workload.entrySet()) {
+            double coverage = 0;
+            for(Candidate c : chosen) coverage = Math.max(coverage, c.coverage(template.getKey()));
+            gain += template.getValue() * template.getKey().rareGroups * coverage;
+        }
+        return gain;
+    }
+
+    /**
+     * @return the samples to build, in the order they were chosen
+     */
+    public List<Candidate> getChosen() {
+        return Collections.unmodifiableList(chosen);
+    }
+
+    /**
+     * @return the QCS of each sample to build
+     */
+    public List<QueryColumnSet> getColumnSets() {
+        List<QueryColumnSet> columnSets = new ArrayList<>();
+        for(Candidate c : chosen) columnSets.add(c.qcs);
+        return columnSets;
+    }
+
+    /**
+     * @return the expected number of rare groups per query whose error the samples remove
+     */
+    public double getGain() {
+        return gain;
+    }
+
+    /**
+     * @return the storage the samples take, in bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for(Candidate c : chosen) bytes += c.bytes;
+        return bytes;
+    }
+
+    /**
+     * @return the expected error reduction per byte of sample
+     */
+    public double getErrorReductionPerByte() {
+        long bytes = getBytes();
+        return bytes == 0 ? 0 : gain / bytes;
+    }
+
+    /**
+     * @return whether the plan is optimal, or was found greedily
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    @Override
+    public String toString() {
+        return (exact ? "optimal" : "greedy") + " plan " + chosen + ", gain " + gain + ", "
+                + getErrorReductionPerByte() + " per byte";
+    }
+}
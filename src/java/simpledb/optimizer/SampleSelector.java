@@ -1,6 +1,7 @@
 package simpledb.optimizer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Arrays;
@@ -8,20 +9,33 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Bootstrap;
+import simpledb.execution.BootstrapAggregate;
+import simpledb.execution.ErrorBoundedAggregate;
+import simpledb.execution.Filter;
+import simpledb.execution.Join;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Operator;
 import simpledb.execution.Query;
+import simpledb.execution.RunningStats;
 import simpledb.execution.SampleAggregate;
 import simpledb.execution.SeqScan;
 import simpledb.execution.SeqScanSample;
 import simpledb.execution.Aggregator.Op;
 import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.SampleDBFile;
 import simpledb.storage.Tuple;
@@ -30,6 +44,17 @@ import simpledb.transaction.TransactionId;
 
 public class SampleSelector {
 
+    // z-score of the confidence errors are measured at, the same as a query's without AT CONFIDENCE
+    private static final double Z = RunningStats.zScore(ApproximateClause.DEFAULT_CONFIDENCE);
+
+    // cap on the number of sample families probed at once
+    private static final int PROBE_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService probeExecutor = Executors.newFixedThreadPool(PROBE_PARALLELISM, r -> {
+        Thread t = new Thread(r, "sample-probe");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * TODO: Victor
      * Given a QueryColumnSet q_j, return the sample family to choose
@@ -38,6 +63,14 @@ public class SampleSelector {
      * @return the tableid of a sample in the catalog
      */
     public static int selectSample(QueryColumnSet qcs, OpIterator query) throws DbException, TransactionAbortedException{
+        return selectSample(qcs, query, -1);
+    }
+
+    /**
+     * Like {@link #selectSample(QueryColumnSet, OpIterator)}, but only
+     * choose among the sample families of baseTableId (any family if -1)
+     */
+    public static int selectSample(QueryColumnSet qcs, OpIterator query, int baseTableId) throws DbException, TransactionAbortedException{
         Catalog catalog = Database.getCatalog();
 
         int minValidTableID = -1;
@@ -47,8 +80,8 @@ public class SampleSelector {
             int tableid = iterator.next();
             if(catalog.isSample(tableid)) {
                 SampleDBFile sample = (SampleDBFile) catalog.getDatabaseFile(tableid);
-                //if the sample is the uniform sample, then skip
-                if (!sample.isStratified()) continue;
+                //if the sample is the uniform sample, or of another table, then skip
+                if (!sample.isStratified() || !isFamilyOf(sample, baseTableId)) continue;
 
                 QueryColumnSet sampleQCS = sample.getStratifiedColumnSet();
 
@@ -66,31 +99,13 @@ public class SampleSelector {
             return minValidTableID;
         }
 
-        Map<Integer, Double> tableidToRatio = new ConcurrentHashMap<Integer, Double>();
-
         // else- run query on each sample family and find one with largest selectivity
+        List<Integer> sampleFamilies = new ArrayList<>();
         for (Iterator<Integer> iterator = catalog.tableIdIterator(); iterator.hasNext(); ) {
             int tableid = iterator.next();
-            if(catalog.isSample(tableid)) { // Filter for samples - Jeffrey
-                SampleDBFile sample = (SampleDBFile) catalog.getDatabaseFile(tableid);
-                //get number of tuples in smallest sample in sampleFamily
-                int totalTuples = sample.getSampleSizes().get(0);
-
-                OpIterator sampleQuery = modifyOperatorSampleFamily(tableid, query, totalTuples);
-                // modify remove agg
-                // modify make top agg
-                //OpIterator noAggQuery = modifyOperatorRemoveAgg(sampleQuery);
-
-
-                runOperatorNoClose(sampleQuery);
-                int totalQueryTuples = sampleQuery.totalTuples();
-                int numTuples = sampleQuery.numTuples();
-
-                double ratio = numTuples/((double) totalQueryTuples);
-                tableidToRatio.put(tableid, ratio);
-                sampleQuery.close();
-            }
+            if(catalog.isSample(tableid) && isFamilyOf(catalog.getSampleDBFile(tableid), baseTableId)) sampleFamilies.add(tableid); // Filter for samples - Jeffrey
         }
+        Map<Integer, Double> tableidToRatio = probeSelectivities(sampleFamilies, query);
 
         double maxSelectivity = Collections.max(tableidToRatio.values());
         for (int tableid : tableidToRatio.keySet()) {
@@ -102,6 +117,97 @@ public class SampleSelector {
         throw new DbException("Should not have reached here");
     }
     
+    private static boolean isFamilyOf(SampleDBFile sample, int baseTableId) {
+        return baseTableId == -1 || sample.getBaseTableId() == baseTableId;
+    }
+
+    /**
+     * Measure the selectivity of query on the smallest sample of each family.
+     * Families are probed concurrently, at most PROBE_PARALLELISM at a time,
+     * and families with a cached profile are not probed at all. Every probed
+     * row matching can't be beaten, so once a family reaches a selectivity of
+     * 1 the other probes are cancelled through a shared flag their scans check.
+     *
+     * @return the selectivity of every family whose probe was not cut short
+     */
+    private static Map<Integer, Double> probeSelectivities(List<Integer> sampleFamilies, OpIterator query) throws DbException {
+        Map<Integer, Double> tableidToRatio = new ConcurrentHashMap<Integer, Double>();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        List<Future<?>> probes = new ArrayList<>();
+
+        for (int tableid : sampleFamilies) {
+            int n = Database.getCatalog().getSampleDBFile(tableid).getSampleSizes().get(0);
+            ErrorLatencyProfile.Key key = ErrorLatencyProfile.Key.of(query, tableid);
+            ErrorLatencyProfile cached = Database.getProfileCache().get(key);
+            OpIterator probeQuery = cached == null ? copyForSample(tableid, query, n, cancelled) : null;
+
+            if (cached == null && probeQuery == null) { // can't copy this plan, probe it here instead
+                cached = getProfile(tableid, query, n);
+            }
+            if (cached != null) {
+                tableidToRatio.put(tableid, cached.getSelectivity());
+                if (cached.getSelectivity() == 1) cancelled.set(true);
+                continue;
+            }
+
+            probes.add(probeExecutor.submit(() -> {
+                if (cancelled.get()) return;
+                ErrorLatencyProfile profile = measure(probeQuery);
+                if (cancelled.get()) return; // cut short, the profile is partial
+                Database.getProfileCache().put(key, profile);
+                tableidToRatio.put(tableid, profile.getSelectivity());
+                if (profile.getSelectivity() == 1) cancelled.set(true);
+            }));
+        }
+
+        for (Future<?> probe : probes) {
+            try {
+                probe.get();
+            } catch (InterruptedException e) {
+                cancelled.set(true);
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while probing sample families");
+            } catch (ExecutionException e) {
+                cancelled.set(true);
+                throw new DbException("sample probe failed: " + e.getCause());
+            }
+        }
+        return tableidToRatio;
+    }
+
+    /**
+     * Copy a plan made of Filters, Joins and Aggregates, reading the first n
+     * rows of sampleFamily instead of each SeqScan. Unlike
+     * {@link #modifyOperatorSampleFamily}, query is left untouched, so several
+     * copies can run at once.
+     *
+     * @param cancelled the scans stop once this is set
+     * @return the copy, or null if the plan has other operators
+     */
+    private static OpIterator copyForSample(int sampleFamily, OpIterator query, int n, AtomicBoolean cancelled) {
+        if (!(query instanceof Operator)) {
+            SeqScanSample scan = new SeqScanSample(new TransactionId(), sampleFamily, n);
+            scan.setStopCondition(cancelled::get, 0);
+            return scan;
+        }
+        OpIterator[] children = ((Operator) query).getChildren();
+        OpIterator[] copies = new OpIterator[children.length];
+        for (int i = 0; i < children.length; i++) {
+            copies[i] = copyForSample(sampleFamily, children[i], n, cancelled);
+            if (copies[i] == null) return null;
+        }
+
+        if (query instanceof Filter) {
+            return new Filter(((Filter) query).getPredicate(), copies[0]);
+        } else if (query instanceof Join) {
+            return new Join(((Join) query).getJoinPredicate(), copies[0], copies[1]);
+        } else if (query instanceof Aggregate) {
+            Aggregate aggregate = (Aggregate) query;
+            return new Aggregate(copies[0], aggregate.aggregateField(), aggregate.groupField(), aggregate.aggregateOp());
+        }
+        return null;
+    }
+
     /**
      * Runs an operator until completion
      *
@@ -233,50 +339,120 @@ public class SampleSelector {
      */
     public static int selectSampleSizeError(int sampleFamily, int sampleSize, int tableSize, OpIterator query,
             double errorTarget) throws DbException, TransactionAbortedException {
-        OpIterator newQuery = modifyOperatorSampleFamily(sampleFamily, query, sampleSize);
+        ErrorLatencyProfile profile = getProfile(sampleFamily, query, sampleSize);
+        Op op = ((Aggregate) query).aggregateOp();
 
-        // assuming that the top level is an aggregate here
-        Aggregate aggregate = (Aggregate) newQuery;
-        aggregate.open();
+        double sd = Math.sqrt(estimatorVariance(profile, op));
+        double result = profile.estimate(op, tableSize);
+        double n = Math.pow(sd * Z / (result * errorTarget), 2.0);
+        return (int) Math.ceil(n);
+    }
 
+    /**
+     * Return the error-latency profile of query on sampleFamily. The sample is
+     * only probed (with n rows) if this query shape has not been profiled on
+     * sampleFamily since it was last built.
+     *
+     * @param sampleFamily the tableid of the sample family
+     * @param query        Query to execute, pointing to the original table
+     * @param n            number of rows to probe
+     */
+    public static ErrorLatencyProfile getProfile(int sampleFamily, OpIterator query, int n) {
+        ErrorLatencyProfile.Key key = ErrorLatencyProfile.Key.of(query, sampleFamily);
+        ErrorLatencyProfile profile = Database.getProfileCache().get(key);
+        if (profile == null) {
+            profile = probe(sampleFamily, query, n);
+            Database.getProfileCache().put(key, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Run query on the first n rows of sampleFamily and measure its profile
+     */
+    private static ErrorLatencyProfile probe(int sampleFamily, OpIterator query, int n) {
+        return measure(modifyOperatorSampleFamily(sampleFamily, query, n));
+    }
 
-        // uses statistics from Table 2 in the BlinkDB paper
-        double sampleVariance = aggregate.getSampleVariance();
-        double selectednTups = aggregate.getNumTups();
-        double variance, c;
-        switch (aggregate.aggregateOp()) {
+    /**
+     * Run a query over a sample and measure its profile
+     */
+    private static ErrorLatencyProfile measure(OpIterator sampleQuery) {
+        long start = System.nanoTime();
+        runOperatorNoClose(sampleQuery);
+        long elapsed = System.nanoTime() - start;
+
+        RunningStats stats = sampleQuery instanceof Aggregate ? ((Aggregate) sampleQuery).getRunningStats() : null;
+        ErrorLatencyProfile profile = new ErrorLatencyProfile(sampleQuery.totalTuples(), sampleQuery.numTuples(), stats, elapsed);
+        sampleQuery.close();
+        return profile;
+    }
+
+    /**
+     * @return the variance of the aggregate op, using the statistics from
+     *         Table 2 in the BlinkDB paper
+     */
+    private static double estimatorVariance(ErrorLatencyProfile profile, Op op) {
+        double n = profile.getRowsRead();
+        double selectednTups = profile.getMatchingRows();
+        double c = profile.getSelectivity();
+        switch (op) {
             case AVG:
-                variance = sampleVariance / selectednTups;
-                break;
+                return profile.getM2() / selectednTups;
             case COUNT:
-                c = selectednTups / sampleSize;
-                variance = Math.pow(sampleSize, 2) / selectednTups * c * (1 - c);
-                break;
+                return Math.pow(n, 2) / selectednTups * c * (1 - c);
             case SUM:
-                c = selectednTups / sampleSize;
-                variance = Math.pow(sampleSize, 2) * (sampleVariance / selectednTups) * c * (1 - c);
-                break;
+                return Math.pow(n, 2) * (profile.getM2() / selectednTups) * c * (1 - c);
             default:
-                variance = 0; // should be unreachable
+                return 0; // should be unreachable
+        }
+    }
 
+    /**
+     * Build a query that reads sampleFamily until the aggregate's error meets
+     * errorTarget, instead of predicting the number of rows to read with a probe
+     * (see {@link #selectSampleSizeError})
+     *
+     * @param sampleFamily the tableid of the sample family
+     * @param query        an Aggregate pointing to the original table
+     * @param tableSize    the number of tuples in the actual table
+     * @param errorTarget  the target error, relative to the result
+     * @return an ErrorBoundedAggregate returning (estimate, error, rows), or
+     *         (group, estimate, error, rows) for each group if query is grouped,
+     *         in which case every group meets errorTarget. Aggregates with no
+     *         closed-form error (MIN, MAX) get a BootstrapAggregate over the
+     *         whole sample instead.
+     * @throws DbException if query is a grouped MIN or MAX, which has neither
+     *         a closed-form error to stop on nor a grouped bootstrap
+     */
+    public static OpIterator errorBoundedQuery(int sampleFamily, OpIterator query, int tableSize, double errorTarget) throws DbException {
+        return errorBoundedQuery(sampleFamily, query, tableSize, errorTarget, ApproximateClause.DEFAULT_CONFIDENCE);
+    }
+
+    /**
+     * Like {@link #errorBoundedQuery(int, OpIterator, int, double)}, with the
+     * error measured at the given confidence (e.g. 0.95)
+     */
+    public static OpIterator errorBoundedQuery(int sampleFamily, OpIterator query, int tableSize, double errorTarget, double confidence) throws DbException {
+        Aggregate aggregate = (Aggregate) query;
+        if (!hasClosedForm(aggregate.aggregateOp()) && aggregate.groupField() != Aggregator.NO_GROUPING) {
+            throw new DbException("Error bounded queries don't support grouped " + aggregate.aggregateOp());
         }
-        aggregate.close();
-        
-        OpIterator sampleAggOverlay = new SampleAggregate(aggregate, sampleSize, tableSize, aggregate.aggregateOp());
-        sampleAggOverlay.open();
-        int result = 0;
-        while (sampleAggOverlay.hasNext()) {
-        	result = ((IntField) sampleAggOverlay.next().getField(0)).getValue();
+        List<Integer> sampleSizes = Database.getCatalog().getSampleDBFile(sampleFamily).getSampleSizes();
+        OpIterator child = modifyOperatorSampleFamily(sampleFamily, aggregate.getChildren()[0], sampleSizes.get(sampleSizes.size() - 1));
+        if (!hasClosedForm(aggregate.aggregateOp()) && aggregate.groupField() == Aggregator.NO_GROUPING) {
+            // no closed form to stop on, read the whole sample and bootstrap the interval
+            return new BootstrapAggregate(child, aggregate.aggregateField(), aggregate.aggregateOp(), tableSize,
+                    confidence, Bootstrap.DEFAULT_REPLICATES);
         }
-        sampleAggOverlay.close();
-        
-        double sd = Math.sqrt(variance);
-        double n = Math.pow(sd * 1.28 / (result * errorTarget), 2.0);
-        return (int) Math.ceil(n);
+        return new ErrorBoundedAggregate(child, aggregate.aggregateField(), aggregate.groupField(), aggregate.aggregateOp(),
+                tableSize, errorTarget, confidence);
     }
-    
+
     /**
-     * Calculate error of query ran on sampleFamily
+     * Calculate error of query ran on sampleFamily. For a grouped query this
+     * is the error of its worst group, since rare groups are far noisier than
+     * the overall result.
      *
      * @param sampleFamily       the tableid of the sample family
      * @param sampleSize         the smallest sample size present in the sample family
@@ -287,47 +463,145 @@ public class SampleSelector {
      * @throws DbException
      */
     public static double calculateError(int sampleFamily, int sampleSize, int tableSize, OpIterator query) throws DbException, TransactionAbortedException {
-        OpIterator newQuery = modifyOperatorSampleFamily(sampleFamily, query, sampleSize);
+        // always measured, the cached profile may have been probed with a different size
+        if (((Aggregate) query).groupField() != Aggregator.NO_GROUPING) {
+            if (!hasClosedForm(((Aggregate) query).aggregateOp())) {
+                return worstGroupBootstrapError(sampleFamily, sampleSize, tableSize, query);
+            }
+            return worstGroupError(sampleFamily, sampleSize, tableSize, query);
+        }
+        if (!hasClosedForm(((Aggregate) query).aggregateOp())) {
+            Bootstrap bootstrap = bootstrap(sampleFamily, sampleSize, tableSize, query);
+            return bootstrap.getError(ApproximateClause.DEFAULT_CONFIDENCE) / Math.abs(bootstrap.getEstimate()) * 100;
+        }
+        ErrorLatencyProfile profile = probe(sampleFamily, query, sampleSize);
+        Op op = ((Aggregate) query).aggregateOp();
 
-        // assuming that the top level is an aggregate here
-        Aggregate aggregate = (Aggregate) newQuery;
-        aggregate.open();
+        double sd = Math.sqrt(estimatorVariance(profile, op));
+        double result = profile.estimate(op, tableSize);
+        double error = (sd / Math.sqrt(profile.getRowsRead()) * Z) / result;
+        return error * 100;
+    }
 
-        // uses statistics from Table 2 in the BlinkDB paper
-        double sampleVariance = aggregate.getSampleVariance();
-        double selectednTups = aggregate.getNumTups();
+    /**
+     * @return whether the error of op has a closed form (Table 2 of the BlinkDB paper)
+     */
+    private static boolean hasClosedForm(Op op) {
+        return op == Op.SUM || op == Op.AVG || op == Op.COUNT;
+    }
 
-        double variance, c;
-        switch (aggregate.aggregateOp()) {
-            case AVG:
-                variance = sampleVariance / selectednTups;
-                break;
-            case COUNT:
-                c = selectednTups / sampleSize;
-                variance = Math.pow(sampleSize, 2) / selectednTups * c * (1 - c);
-                break;
-            case SUM:
-                c = selectednTups / sampleSize;
-                variance = Math.pow(sampleSize, 2) * (sampleVariance / selectednTups) * c * (1 - c);
-                break;
-            default:
-                variance = 0; // should be unreachable
+    /**
+     * Bootstrap the error of query on the first sampleSize rows of
+     * sampleFamily, for aggregates with no closed form such as MIN and MAX.
+     * The matching values are read once into an array and resampled in
+     * parallel (see {@link Bootstrap#resample}).
+     *
+     * @param query an Aggregate without grouping, pointing to the original table
+     */
+    public static Bootstrap bootstrap(int sampleFamily, int sampleSize, int tableSize, OpIterator query) throws DbException, TransactionAbortedException {
+        Aggregate aggregate = (Aggregate) query;
+        OpIterator child = modifyOperatorSampleFamily(sampleFamily, aggregate.getChildren()[0], sampleSize);
+        int afield = aggregate.aggregateField();
+
+        int[] values = new int[Math.max(16, sampleSize)];
+        int numValues = 0;
+        child.open();
+        while (child.hasNext()) {
+            if (numValues == values.length) values = Arrays.copyOf(values, numValues * 2);
+            values[numValues++] = ((IntField) child.next().getField(afield)).getValue();
+        }
+        int rowsRead = child.totalTuples();
+        child.close();
+        return Bootstrap.resample(values, numValues, rowsRead, tableSize, aggregate.aggregateOp(), Bootstrap.DEFAULT_REPLICATES);
+    }
 
+    /**
+     * Like {@link #worstGroupError}, for aggregates with no closed form: the
+     * matching values of each group are bootstrapped on their own
+     */
+    private static double worstGroupBootstrapError(int sampleFamily, int sampleSize, int tableSize, OpIterator query) throws DbException, TransactionAbortedException {
+        Aggregate aggregate = (Aggregate) query;
+        OpIterator child = modifyOperatorSampleFamily(sampleFamily, aggregate.getChildren()[0], sampleSize);
+        int afield = aggregate.aggregateField();
+        int gfield = aggregate.groupField();
+
+        Map<Field, List<Integer>> groups = new HashMap<>();
+        child.open();
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            groups.computeIfAbsent(t.getField(gfield), g -> new ArrayList<>()).add(((IntField) t.getField(afield)).getValue());
         }
-        aggregate.close();
-        
-        OpIterator sampleAggOverlay = new SampleAggregate(aggregate, sampleSize, tableSize, aggregate.aggregateOp());
-        sampleAggOverlay.open();
-        int result = 0;
-        while (sampleAggOverlay.hasNext()) {
-        	result = ((IntField) sampleAggOverlay.next().getField(0)).getValue();
+        int rowsRead = child.totalTuples();
+        child.close();
+
+        double worst = 0;
+        for (List<Integer> group : groups.values()) {
+            // a group seen once has no spread to resample
+            if (group.size() < 2) return Double.POSITIVE_INFINITY;
+            int[] values = group.stream().mapToInt(Integer::intValue).toArray();
+            Bootstrap bootstrap = Bootstrap.resample(values, values.length, rowsRead, tableSize, aggregate.aggregateOp(), Bootstrap.DEFAULT_REPLICATES);
+            double error = bootstrap.getError(ApproximateClause.DEFAULT_CONFIDENCE);
+            if (bootstrap.getEstimate() == 0) {
+                if (error == 0) continue;
+                return Double.POSITIVE_INFINITY;
+            }
+            worst = Math.max(worst, error / Math.abs(bootstrap.getEstimate()));
         }
-        sampleAggOverlay.close();
-        
-        
-        double sd = Math.sqrt(variance);
-        double error = (sd / Math.sqrt(sampleSize) * 1.28) / result;
-        return error * 100;
+        return worst * 100;
+    }
+
+    /**
+     * @return the largest relative error (in percent, at the same confidence
+     *         as {@link #calculateError}) among the groups of query on the
+     *         first sampleSize rows of sampleFamily, infinite if a group has
+     *         fewer than two rows or a zero estimate that may be off
+     */
+    private static double worstGroupError(int sampleFamily, int sampleSize, int tableSize, OpIterator query) {
+        Aggregate sampleQuery = (Aggregate) modifyOperatorSampleFamily(sampleFamily, query, sampleSize);
+        runOperatorNoClose(sampleQuery);
+        Op op = sampleQuery.aggregateOp();
+        int rows = sampleQuery.totalTuples();
+
+        double worst = 0;
+        for (RunningStats stats : sampleQuery.getGroupStats().values()) {
+            // a group seen once or never has no measurable spread
+            if (stats.getCount() < 2) {
+                worst = Double.POSITIVE_INFINITY;
+                break;
+            }
+            double result = stats.estimate(op, rows, tableSize);
+            double se = stats.standardError(op, rows, tableSize);
+            // an estimate of zero has no relative error unless it may be off
+            if (result == 0) {
+                if (se == 0) continue;
+                worst = Double.POSITIVE_INFINITY;
+                break;
+            }
+            worst = Math.max(worst, se * Z / Math.abs(result));
+        }
+        sampleQuery.close();
+        return worst * 100;
+    }
+
+    /**
+     * Build a query that reads sampleFamily until latencyTarget has passed,
+     * instead of fitting a latency model with timed runs (see {@link #selectSampleSizeLatency}).
+     * The result is scaled by the number of rows the scan actually read.
+     *
+     * @param sampleFamily  the tableid of the sample family
+     * @param query         an Aggregate pointing to the original table
+     * @param tableSize     the number of tuples in the actual table
+     * @param latencyTarget in ms
+     * @return a SampleAggregate over the time-bounded query
+     */
+    public static OpIterator latencyBoundedQuery(int sampleFamily, OpIterator query, int tableSize, int latencyTarget) {
+        Aggregate aggregate = (Aggregate) query;
+        List<Integer> sampleSizes = Database.getCatalog().getSampleDBFile(sampleFamily).getSampleSizes();
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        modifyOperatorSampleFamily(sampleFamily, aggregate, maxSize);
+        SeqScanSample.find(aggregate).setTimeBudget(latencyTarget);
+
+        return new SampleAggregate(aggregate, maxSize, tableSize, aggregate.aggregateOp());
     }
 
     /**
@@ -343,6 +617,10 @@ public class SampleSelector {
      */
 
     public static int selectSampleSizeLatency(int sampleFamily, List<Integer> sampleSizes, OpIterator query, int latencyTarget) throws IOException {
+        // A profiled query shape already knows how fast the sample is read
+        ErrorLatencyProfile profile = Database.getProfileCache().get(ErrorLatencyProfile.Key.of(query, sampleFamily));
+        if (profile != null) return (int) Math.round(latencyTarget * profile.getRowsPerMs());
+
         // Run two queries on small samples (size n_1 and n_2), and calculate respective latencies (y_1, y_2)
         // Solve linear equation to relate sample size n to latency y
         final int n1 = 10000;
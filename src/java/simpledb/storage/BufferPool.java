@@ -20,16 +20,43 @@ import java.util.concurrent.ConcurrentMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are replaced with 2Q, so a scan of a large table can't flush the
+ * pages that are used over and over (sample families, stats). A page read for
+ * the first time goes into a small FIFO ring, which a sequential scan just
+ * streams through. Only pages read again after falling out of the ring (their
+ * ids are remembered for a while) are moved to the main part of the pool,
+ * which is replaced with CLOCK. Hits don't take a lock: they only set the
+ * page's reference bit.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
+
+    /**
+     * A cached page, and whether it was used since CLOCK last passed it
+     */
+    private static class Frame {
+        volatile Page page;
+        volatile boolean referenced;
+
+        Frame(Page page) {
+            this.page = page;
+        }
+    }
     
     /**
      * Maps page id to pages
      */
-    private HashMap<PageId, Page> pages;
-    private int numPages; // max number of pages in buffer pool
+    private final ConcurrentHashMap<PageId, Frame> pages;
+    private final int numPages; // max number of pages in buffer pool
+    private final int ringSize; // max number of pages in the ring while the main part has pages
+    private final int ghostSize; // number of evicted ring pages to remember
+
+    // guarded by this
+    private final LinkedHashSet<PageId> ring = new LinkedHashSet<>(); // pages read once, oldest first
+    private final LinkedHashSet<PageId> main = new LinkedHashSet<>(); // pages read again, in CLOCK order
+    private final LinkedHashSet<PageId> ghosts = new LinkedHashSet<>(); // pages evicted from the ring, oldest first
     
     /**
      * Bytes per page, including header.
@@ -45,14 +72,18 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    private static final int MAX_READ_AHEAD = 8;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        this.pages = new HashMap<PageId, Page>();
+        this.pages = new ConcurrentHashMap<PageId, Frame>();
         this.numPages = numPages;
+        this.ringSize = Math.max(1, numPages / 4);
+        this.ghostSize = Math.max(1, numPages / 2);
     }
 
     public static int getPageSize() {
@@ -88,24 +119,90 @@ public class BufferPool {
             throws TransactionAbortedException, DbException {
         // TODO: locking, permissions 
         
-        if(this.pages.containsKey(pid)) return pages.get(pid);
-        
-        // Get the table that the pid points too
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Frame cached = pages.get(pid);
+        if(cached != null) {
+            cached.referenced = true;
+            return cached.page;
+        }
         
-        // Get the page from the table, if it exists
-        try {
-            Page page = dbFile.readPage(pid);
-            
-            if(this.pages.size() == this.numPages) this.evictPage();
-            
-            pages.put(pid, page);
-            return page;
-        } 
-        catch (IllegalArgumentException e) {
-            throw new DbException("Page does not exist");
+        // Misses are serialized so that concurrent readers (e.g. sample probes)
+        // don't read the same page twice or evict past the limit
+        synchronized(this) {
+            cached = pages.get(pid);
+            if(cached != null) {
+                cached.referenced = true;
+                return cached.page;
+            }
+
+            // Get the table that the pid points too
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+
+            // Get the page from the table, if it exists
+            try {
+                Page page = dbFile.readPage(pid);
+                cachePage(page);
+                return page;
+            }
+            catch (IllegalArgumentException e) {
+                throw new DbException("Page does not exist");
+            }
+        }
+    }
+
+    /**
+     * Put page in the pool, replacing the cached version of it if there is
+     * one, and making room for it otherwise
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Frame cached = pages.get(pid);
+        if(cached != null) {
+            cached.page = page;
+            cached.referenced = true;
+            return;
+        }
+
+        while(pages.size() >= this.numPages && !pages.isEmpty()) this.evictPage();
+
+        // Pages read again soon after leaving the ring are worth keeping
+        if(ghosts.remove(pid)) main.add(pid);
+        else ring.add(pid);
+        pages.put(pid, new Frame(page));
+    }
+
+    /**
+     * Cache pages read ahead of a scan, except those already in the pool,
+     * which may be newer than the ones read
+     */
+    public synchronized void offerPages(List<Page> read) throws DbException {
+        for(Page page : read) {
+            if(!pages.containsKey(page.getId())) cachePage(page);
         }
     }
+
+    /**
+     * @return how many pages a sequential scan may read ahead, without
+     *         pushing the pages it read out of the ring before using them
+     */
+    public int readAheadPages() {
+        return Math.min(MAX_READ_AHEAD, ringSize);
+    }
+
+    /**
+     * @return the page with id pid if it is in the pool, which may be newer
+     *         than the one on disk, or null; the page is not read in if not
+     */
+    public Page getCachedPage(PageId pid) {
+        Frame cached = pages.get(pid);
+        return cached == null ? null : cached.page;
+    }
+
+    /**
+     * @return whether the page with id pid is in the pool
+     */
+    public boolean isCached(PageId pid) {
+        return pages.containsKey(pid);
+    }
     
     /**
      * Releases the lock on a page.
@@ -176,8 +273,11 @@ public class BufferPool {
         
         for(Page page : dirtied) {
             page.markDirty(true, tid);
-            pages.put(page.getId(), page);
+            cachePage(page);
         }
+
+        // Keep the samples built from this table up to date
+        for(SampleDBFile sample : Database.getCatalog().getSampleFamilies(tableId)) sample.baseTupleInserted(tid, t);
     }
 
     /**
@@ -195,13 +295,17 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> dirtied = dbFile.deleteTuple(tid, t);
                 
         for(Page page : dirtied) {
-            page.markDirty(true, tid);       
-            pages.put(page.getId(), page);
+            page.markDirty(true, tid);
+            cachePage(page);
         }
+
+        // Keep the samples built from this table up to date
+        for(SampleDBFile sample : Database.getCatalog().getSampleFamilies(tableId)) sample.baseTupleDeleted(tid, t);
     }
 
     /**
@@ -211,7 +315,7 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         for(PageId pid : pages.keySet()) {
-            if(pages.get(pid).isDirty() != null) flushPage(pid);
+            if(pages.get(pid).page.isDirty() != null) flushPage(pid);
         }
         
     }
@@ -227,6 +331,8 @@ public class BufferPool {
      */
     public synchronized void removePage(PageId pid) {
         pages.remove(pid);
+        ring.remove(pid);
+        main.remove(pid);
     }
 
     /**
@@ -235,7 +341,7 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        Page page = pages.get(pid);
+        Page page = pages.get(pid).page;
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
         
         dbFile.writePage(page);
@@ -256,25 +362,47 @@ public class BufferPool {
     public synchronized void clearBufferPool() throws IOException {
         flushAllPages();
         pages.clear();
+        ring.clear();
+        main.clear();
+        ghosts.clear();
     }
     
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool: the oldest page of the ring if it
+     * is over its share of the pool, or else the first page of the main part
+     * not used since CLOCK last passed it.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized void evictPage() throws DbException {
-        // Randomly evict a page
-        PageId pidToEvict = pages.keySet().iterator().next(); 
-        Page pageToEvict = pages.get(pidToEvict);
-        if(pageToEvict.isDirty() != null) {
+        PageId pidToEvict;
+        if(!ring.isEmpty() && (ring.size() > ringSize || main.isEmpty())) {
+            pidToEvict = ring.iterator().next();
+            ring.remove(pidToEvict);
+            ghosts.add(pidToEvict);
+            if(ghosts.size() > ghostSize) ghosts.remove(ghosts.iterator().next());
+        }
+        else {
+            // Second chance: pages used since the last pass go to the back
+            while(true) {
+                pidToEvict = main.iterator().next();
+                main.remove(pidToEvict);
+                Frame frame = pages.get(pidToEvict);
+                if(frame == null || !frame.referenced) break;
+                frame.referenced = false;
+                main.add(pidToEvict);
+            }
+        }
+
+        Frame frameToEvict = pages.get(pidToEvict);
+        if(frameToEvict != null && frameToEvict.page.isDirty() != null) {
             try {
                 flushPage(pidToEvict);
             } catch (IOException e) {
                 throw new DbException("");
             }
         }
-        removePage(pidToEvict);
+        pages.remove(pidToEvict);
     }
 
 }
@@ -0,0 +1,180 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many free slots each page of a HeapFile has, so
+ * that {@link HeapFile#insertTuple} can go straight to a page with room
+ * instead of fetching every page until it finds one. Appending to a file
+ * whose pages are all full is O(1).
+ * <p>
+ * The map is persisted next to the heap file (see {@link #fileFor}) in the
+ * following format, all values being big-endian ints: <p>
+ * MAGIC, page size, then the free slots of each page.
+ * <p>
+ * The entry of a page is written in place whenever the page itself is
+ * written, so the map on disk matches the pages on disk. Pages added to the
+ * file by other means (e.g. {@link HeapFileWriter}) are counted from their
+ * headers the next time the map is loaded. The map is only a hint: inserts
+ * still check that the page they picked has a free slot.
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x4653504D; // "FSPM"
+    private static final int HEADER_BYTES = 8;
+
+    private final File file;
+    private final int numSlots;
+    private int[] freeSlots;
+    private int numPages;
+    private final BitSet withRoom = new BitSet(); // pages with a free slot
+    private int firstWithRoom = 0; // no page before it has a free slot
+    private FileChannel channel;
+
+    private FreeSpaceMap(File file, int numSlots, int[] freeSlots, int numPages) {
+        this.file = file;
+        this.numSlots = numSlots;
+        this.freeSlots = freeSlots;
+        this.numPages = numPages;
+        for(int i = 0; i < numPages; i++) {
+            if(freeSlots[i] > 0) withRoom.set(i);
+        }
+    }
+
+    /**
+     * @return the location of the free-space map of the given heap file
+     */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Load the free-space map of heapFile, counting the free slots of the
+     * pages it doesn't know about yet. If there is no usable map, a new one is
+     * built from the headers of every page.
+     */
+    static FreeSpaceMap load(HeapFile heapFile) throws IOException {
+        File f = fileFor(heapFile.getFile());
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = (pageSize * 8) / (heapFile.getTupleDesc().getSize() * 8 + 1);
+        int numPages = heapFile.numPages();
+
+        int[] freeSlots = new int[Math.max(16, numPages)];
+        int known = 0;
+        if(f.exists() && f.length() >= HEADER_BYTES && (f.length() - HEADER_BYTES) % 4 == 0) {
+            try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate((int) f.length());
+                while(buf.hasRemaining() && c.read(buf) >= 0);
+                buf.flip();
+                int entries = (buf.remaining() - HEADER_BYTES) / 4;
+                if(buf.getInt() == MAGIC && buf.getInt() == pageSize && entries <= numPages) {
+                    for(int i = 0; i < entries; i++) freeSlots[i] = buf.getInt();
+                    known = entries;
+                }
+            }
+        }
+
+        FreeSpaceMap map = new FreeSpaceMap(f, numSlots, freeSlots, known);
+        for(int pgNo = known; pgNo < numPages; pgNo++) map.count(heapFile, pgNo);
+        if(known == 0) map.save();
+        else for(int pgNo = known; pgNo < numPages; pgNo++) map.writeEntry(pgNo);
+        return map;
+    }
+
+    /**
+     * Count the free slots of a page the map doesn't know about from its
+     * header on disk. The BufferPool may have a newer version of the page,
+     * but its entry is updated when that version is written.
+     */
+    private void count(HeapFile heapFile, int pgNo) {
+        set(pgNo, ((HeapPage) heapFile.readPage(new HeapPageId(heapFile.getId(), pgNo))).getNumUnusedSlots());
+    }
+
+    /**
+     * @return the first page with a free slot, or -1 if every page is full
+     */
+    public synchronized int pageWithRoom() {
+        int pgNo = withRoom.nextSetBit(firstWithRoom);
+        firstWithRoom = pgNo < 0 ? numPages : pgNo;
+        return pgNo;
+    }
+
+    /**
+     * @return the number of free slots page pgNo has, according to the map
+     */
+    public synchronized int getFreeSlots(int pgNo) {
+        return pgNo < numPages ? freeSlots[pgNo] : numSlots;
+    }
+
+    /**
+     * Record that page pgNo (which may be one past the last page) now has
+     * free slots free, without writing it to disk
+     */
+    public synchronized void set(int pgNo, int free) {
+        if(pgNo >= freeSlots.length) {
+            int[] grown = new int[Math.max(pgNo + 1, freeSlots.length * 2)];
+            System.arraycopy(freeSlots, 0, grown, 0, numPages);
+            freeSlots = grown;
+        }
+        // pages in between, if any, are new and empty
+        for(int i = numPages; i < pgNo; i++) {
+            freeSlots[i] = numSlots;
+            withRoom.set(i);
+        }
+        numPages = Math.max(numPages, pgNo + 1);
+
+        freeSlots[pgNo] = free;
+        withRoom.set(pgNo, free > 0);
+        if(free > 0 && pgNo < firstWithRoom) firstWithRoom = pgNo;
+    }
+
+    /**
+     * Record the free slots of page, which was just written to disk, and
+     * write its entry
+     */
+    public synchronized void pageWritten(HeapPage page) throws IOException {
+        int pgNo = page.getId().getPageNumber();
+        set(pgNo, page.getNumUnusedSlots());
+        writeEntry(pgNo);
+    }
+
+    private void writeEntry(int pgNo) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4).putInt(0, freeSlots[pgNo]);
+        long offset = HEADER_BYTES + 4L * pgNo;
+        FileChannel c = channel();
+        while(buf.hasRemaining()) c.write(buf, offset + buf.position());
+    }
+
+    /**
+     * Write the whole map to disk
+     */
+    private void save() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 4 * numPages);
+        buf.putInt(MAGIC).putInt(BufferPool.getPageSize());
+        for(int i = 0; i < numPages; i++) buf.putInt(freeSlots[i]);
+        buf.flip();
+        FileChannel c = channel();
+        c.truncate(0);
+        while(buf.hasRemaining()) c.write(buf, buf.position());
+    }
+
+    private FileChannel channel() throws IOException {
+        if(channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    /**
+     * Close the map's file. It is opened again if the map is written again.
+     */
+    public synchronized void close() throws IOException {
+        if(channel != null) channel.close();
+        channel = null;
+    }
+}
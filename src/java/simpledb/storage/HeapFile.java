@@ -8,6 +8,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -20,6 +23,11 @@ import java.util.NoSuchElementException;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written through one FileChannel per file, kept open
+ * across calls, with positional reads and writes so concurrent readers don't
+ * share a file position. Sequential scans read several pages ahead with a
+ * single scattering read (see {@link #readPages}).
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
@@ -28,6 +36,9 @@ public class HeapFile implements DbFile {
     
     private File f;
     private TupleDesc td;
+    private volatile FileChannel channel; // opened on first use, see #close
+    private volatile FreeSpaceMap freeSpace; // loaded on first use
+    private final boolean scatteringReads; // false if a subclass overrides readPage, see #readPages
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -38,6 +49,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
+        this.scatteringReads = !overridesReadPage();
     }
 
     /**
@@ -71,46 +83,117 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * @return the channel to this file, opening it if it isn't open
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if(c == null || !c.isOpen()) {
+            synchronized(this) {
+                c = channel;
+                // a channel is closed for good if a thread reading it is interrupted
+                if(c == null || !c.isOpen()) {
+                    c = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Close the channel to this file. It is opened again if the file is used again.
+     */
+    public synchronized void close() throws IOException {
+        if(channel != null) channel.close();
+        channel = null;
+        if(freeSpace != null) freeSpace.close();
+    }
+
+    /**
+     * @return the free-space map of this file, loading it the first time
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() throws IOException {
+        if(freeSpace == null) freeSpace = FreeSpaceMap.load(this);
+        return freeSpace;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-        RandomAccessFile raf;
+        ByteBuffer data = ByteBuffer.allocate(BufferPool.getPageSize());
+        long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
         try {
-            raf = new RandomAccessFile(this.f, "rw");
-        } catch (FileNotFoundException e2) {
-            throw new IllegalArgumentException("");
-        }
-        
-        byte[] data = new byte[BufferPool.getPageSize()];
-        int offset = pid.getPageNumber() * BufferPool.getPageSize();
-        try {
-            raf.seek(offset);
-            raf.read(data, 0, data.length);
-            raf.close();
+            FileChannel c = channel();
+            // Past the end of the file the rest of the page is left empty
+            while(data.hasRemaining() && c.read(data, offset + data.position()) >= 0);
         } catch (IOException e1) {
             throw new IllegalArgumentException("Page does not exist in file");
         }
  
         try {
-            return new HeapPage((HeapPageId) pid, data);
+            return new HeapPage((HeapPageId) pid, data.array());
         } catch (IOException e) {
             throw new IllegalArgumentException("Page does not exist in file");
         }
     }
 
+    /**
+     * Read count consecutive pages with a single scattering read, instead of
+     * one read per page. If a subclass overrides {@link #readPage}, the pages
+     * are read one at a time through it instead, so it sees every read.
+     *
+     * @param firstPgNo the number of the first page to read
+     * @param count     the number of pages to read, fewer if the file ends first
+     * @return the pages read, in order
+     */
+    public List<Page> readPages(int firstPgNo, int count) throws IOException {
+        count = Math.max(0, Math.min(count, numPages() - firstPgNo));
+        if(!scatteringReads) {
+            List<Page> pages = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) pages.add(readPage(new HeapPageId(this.getId(), firstPgNo + i)));
+            return pages;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for(int i = 0; i < count; i++) buffers[i] = ByteBuffer.allocate(BufferPool.getPageSize());
+
+        FileChannel c = channel();
+        // Unlike single reads, scattering reads use the channel's position
+        synchronized(c) {
+            c.position((long) firstPgNo * BufferPool.getPageSize());
+            while(count > 0 && buffers[count - 1].hasRemaining() && c.read(buffers) >= 0);
+        }
+
+        List<Page> pages = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            pages.add(new HeapPage(new HeapPageId(this.getId(), firstPgNo + i), buffers[i].array()));
+        }
+        return pages;
+    }
+
+    /**
+     * @return whether this object's class overrides {@link #readPage}, which is
+     *         only looked up once, when the file is made
+     */
+    private boolean overridesReadPage() {
+        try {
+            return getClass().getMethod("readPage", PageId.class).getDeclaringClass() != HeapFile.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        int pgNo = page.getId().getPageNumber();
+        ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        FileChannel c = channel();
+        while(data.hasRemaining()) c.write(data, offset + data.position());
 
-        RandomAccessFile raf;
-        try {
-            raf = new RandomAccessFile(this.f, "rw");
-        } catch (FileNotFoundException e2) {
-            throw new IllegalArgumentException("");
+        // Keep the free-space map on disk in step with the pages, if there is one
+        if(page instanceof HeapPage && (freeSpace != null || FreeSpaceMap.fileFor(f).exists())) {
+            getFreeSpaceMap().pageWritten((HeapPage) page);
         }
-        
-        raf.seek(pgNo * BufferPool.getPageSize());
-        raf.write(page.getPageData());
-        raf.close();
     }
 
     /**
@@ -124,25 +207,64 @@ public class HeapFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         
-        int n = numPages();
+        FreeSpaceMap freeSpace = getFreeSpaceMap();
         HeapPage page;
         
-        for(int i = 0; i < n; i++) { // Go through all pages, find one with an empty slot 
-            page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), i), Permissions.READ_WRITE);
+        // Go straight to a page with an empty slot
+        int pgNo;
+        while((pgNo = freeSpace.pageWithRoom()) >= 0) {
+            page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), pgNo), Permissions.READ_WRITE);
             if (page.getNumUnusedSlots() > 0) {
                 page.insertTuple(t);
+                freeSpace.set(pgNo, page.getNumUnusedSlots());
                 return Arrays.asList(page);
             }
+            freeSpace.set(pgNo, 0); // the map was out of date
         }
         
         // Create a new page
-        page = new HeapPage(new HeapPageId(this.getId(), n), HeapPage.createEmptyPageData());
+        page = new HeapPage(new HeapPageId(this.getId(), numPages()), HeapPage.createEmptyPageData());
         page.insertTuple(t);
         writePage(page);
         
         return Arrays.asList(page);
     }
 
+    /**
+     * Appends tuples to the end of this file, packing them into full pages and
+     * writing them out sequentially. This skips the BufferPool and the search
+     * for a page with a free slot done by {@link #insertTuple}, so it should only
+     * be used to bulk load a file that is not being read or written concurrently.
+     *
+     * @param tuples the tuples to append, in the order they should be stored
+     * @see HeapFileWriter
+     */
+    public void bulkAppend(Iterable<Tuple> tuples) throws IOException {
+        try (HeapFileWriter writer = new HeapFileWriter(this)) {
+            for(Tuple t : tuples) writer.add(t);
+        }
+    }
+
+    /**
+     * Replaces the contents of this file with tuples, written as by
+     * {@link #bulkAppend}. The pages of this file the BufferPool holds are
+     * dropped without being written, and so is the free-space map.
+     *
+     * @param tuples the new tuples of the file, in the order they should be stored
+     */
+    public void bulkReplace(Iterable<Tuple> tuples) throws IOException {
+        int numPages = numPages();
+        for(int pgNo = 0; pgNo < numPages; pgNo++) Database.getBufferPool().removePage(new HeapPageId(getId(), pgNo));
+        synchronized(this) {
+            close();
+            freeSpace = null;
+            FreeSpaceMap.fileFor(f).delete();
+        }
+        try (HeapFileWriter writer = new HeapFileWriter(this, false)) {
+            for(Tuple t : tuples) writer.add(t);
+        }
+    }
+
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -155,6 +277,11 @@ public class HeapFile implements DbFile {
         }
         
         page.deleteTuple(t);
+        FreeSpaceMap freeSpace;
+        synchronized(this) {
+            freeSpace = this.freeSpace;
+        }
+        if(freeSpace != null) freeSpace.set(page.getId().getPageNumber(), page.getNumUnusedSlots());
         
         return Arrays.asList(page);
     }
@@ -180,9 +307,28 @@ public class HeapFile implements DbFile {
         }
         
         private void loadPage() throws TransactionAbortedException, DbException {
-            this.page = (HeapPage) (Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pgNo), Permissions.READ_ONLY));
+            BufferPool pool = Database.getBufferPool();
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            if(!pool.isCached(pid)) readAhead(pool);
+            this.page = (HeapPage) (pool.getPage(tid, pid, Permissions.READ_ONLY));
             this.pageIterator = this.page.iterator();
         }
+
+        /**
+         * Read this page and the uncached ones right after it in one go, and
+         * hand them to the BufferPool
+         */
+        private void readAhead(BufferPool pool) throws DbException {
+            int count = 1;
+            while(count < pool.readAheadPages() && pgNo + count < numPages
+                    && !pool.isCached(new HeapPageId(tableId, pgNo + count))) count++;
+            if(count == 1) return;
+            try {
+                pool.offerPages(readPages(pgNo, count));
+            } catch (IOException e) {
+                throw new DbException("Could not read pages " + pgNo + " to " + (pgNo + count - 1));
+            }
+        }
         
         public void open() 
                 throws DbException, TransactionAbortedException{
@@ -194,16 +340,15 @@ public class HeapFile implements DbFile {
                 throws DbException, TransactionAbortedException{
             if(!opened) return false;
             
-            // If this page still has more
-            if(pageIterator.hasNext()) return true;
-            
-            // Check if all remaining pages have values.
-            for(int i = pgNo + 1; i < this.numPages; i++) {
-                HeapPage nextPage = (HeapPage) (Database.getBufferPool().getPage(tid, new HeapPageId(tableId, i), Permissions.READ_ONLY));
-                if (nextPage.iterator().hasNext()) return true;
+            // Move forward to the next page with tuples on it, so that each page
+            // is only fetched once over the whole scan
+            while(!pageIterator.hasNext()) {
+                if(pgNo + 1 >= this.numPages) return false;
+                this.pgNo++;
+                this.loadPage();
             }
             
-            return false;
+            return true;
         }
         
         /**
@@ -216,16 +361,7 @@ public class HeapFile implements DbFile {
         public Tuple next()
                 throws DbException, TransactionAbortedException, NoSuchElementException{
             if(!hasNext()) throw new NoSuchElementException("no more tuples");
-            
-            if(pageIterator.hasNext()) return pageIterator.next();
-            else{ 
-                do {
-                    this.pgNo++;
-                    this.loadPage();
-                }
-                while(!pageIterator.hasNext());
-                return pageIterator.next();
-            }
+            return pageIterator.next();
         }
 
         public void rewind() throws DbException, TransactionAbortedException{
@@ -6,6 +6,7 @@ import simpledb.common.Utility;
 import java.io.*;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -94,6 +95,24 @@ public class HeapFileEncoder {
     public static void convert(File inFile, File outFile, int npagebytes,
                                int numFields, Type[] typeAr, char fieldSeparator)
             throws IOException {
+        convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, null);
+    }
+
+    /**
+     * Like {@link #convert(File, File, int, int, Type[], char)}, also handing
+     * every record written to sink as a Tuple, e.g. to build samples of the
+     * table while it is written (see {@link IngestSampler}).
+     *
+     * @param sink receives each record once all its fields are read, or null
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator,
+                               Consumer<Tuple> sink)
+            throws IOException {
+
+        TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+        Tuple tuple = sink == null ? null : new Tuple(td);
+        boolean valid = true;
 
         int nrecbytes = 0;
         for (int i = 0; i < numFields; i++) {
@@ -110,6 +129,8 @@ public class HeapFileEncoder {
 
         BufferedReader br = new BufferedReader(new FileReader(inFile));
         FileOutputStream os = new FileOutputStream(outFile);
+        // the free-space map of whatever was there before no longer applies
+        FreeSpaceMap.fileFor(outFile).delete();
 
         // our numbers probably won't be much larger than 1024 digits
         char[] buf = new char[1024];
@@ -144,9 +165,12 @@ public class HeapFileEncoder {
                 String s = new String(buf, 0, curpos);
                 if (typeAr[fieldNo] == Type.INT_TYPE) {
                     try {
-                        pageStream.writeInt(Integer.parseInt(s.trim()));
+                        int value = Integer.parseInt(s.trim());
+                        pageStream.writeInt(value);
+                        if (tuple != null) tuple.setField(fieldNo, new IntField(value));
                     } catch (NumberFormatException e) {
                         System.out.println("BAD LINE : " + s);
+                        valid = false;
                     }
                 } else if (typeAr[fieldNo] == Type.STRING_TYPE) {
                     s = s.trim();
@@ -158,10 +182,17 @@ public class HeapFileEncoder {
                     pageStream.writeBytes(s);
                     while (overflow-- > 0)
                         pageStream.write((byte) 0);
+                    if (tuple != null) tuple.setField(fieldNo, new StringField(s, Type.STRING_LEN));
                 }
                 curpos = 0;
-                if (c == '\n')
+                if (c == '\n') {
+                    if (tuple != null) {
+                        if (valid && fieldNo == numFields - 1) sink.accept(tuple);
+                        tuple = new Tuple(td);
+                    }
+                    valid = true;
                     fieldNo = 0;
+                }
                 else
                     fieldNo++;
 
@@ -0,0 +1,104 @@
+package simpledb.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HeapFileWriter appends tuples to the end of a HeapFile, packing them into
+ * full HeapPage images and writing the pages out sequentially with large
+ * buffered writes. Each page is filled slot by slot before the next page is
+ * started, so the tuples keep the order in which they were added.
+ * <p>
+ * Unlike {@link BufferPool#insertTuple}, the writer does not go through the
+ * BufferPool and does not search existing pages for free slots. It is meant for
+ * bulk loading files that no one else is reading or writing at the same time,
+ * such as a SampleDBFile that is being populated. The added Tuples are not
+ * modified (in particular, their RecordIds are left alone).
+ *
+ * @see HeapPage#HeapPage
+ */
+public class HeapFileWriter implements Closeable {
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final TupleDesc td;
+    private final int numSlots;
+    private final byte[] header;
+    private final ByteArrayOutputStream body;
+    private final DataOutputStream bodyStream;
+    private final DataOutputStream out;
+    private int slot = 0;
+    private int numTuples = 0;
+
+    /**
+     * Opens a writer that appends to the end of file
+     *
+     * @param file the HeapFile to append to
+     */
+    public HeapFileWriter(HeapFile file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * Opens a writer that appends to the end of file, or replaces what it
+     * holds if append is false
+     *
+     * @param file   the HeapFile to write
+     * @param append whether to keep the pages file already has
+     */
+    public HeapFileWriter(HeapFile file, boolean append) throws IOException {
+        this.td = file.getTupleDesc();
+        this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.header = new byte[(numSlots + 7) / 8];
+        this.body = new ByteArrayOutputStream(numSlots * td.getSize());
+        this.bodyStream = new DataOutputStream(body);
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.getFile(), append), WRITE_BUFFER_SIZE));
+    }
+
+    /**
+     * Add a tuple to the end of the file
+     */
+    public void add(Tuple t) throws IOException {
+        for(int j = 0; j < td.numFields(); j++) t.getField(j).serialize(bodyStream);
+        header[slot / 8] |= 1 << (slot % 8);
+        slot++;
+        numTuples++;
+
+        if(slot == numSlots) writePage();
+    }
+
+    /**
+     * Write the page being filled (header, used slots, then zero padding) and start a new one
+     */
+    private void writePage() throws IOException {
+        out.write(header);
+        body.writeTo(out);
+        int padding = BufferPool.getPageSize() - header.length - body.size();
+        out.write(new byte[padding]);
+
+        Arrays.fill(header, (byte) 0);
+        body.reset();
+        slot = 0;
+    }
+
+    /**
+     * @return the number of tuples added so far
+     */
+    public int numTuples() {
+        return this.numTuples;
+    }
+
+    /**
+     * Write out the last, partially filled page and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        if(slot > 0) writePage();
+        out.close();
+    }
+}
@@ -10,10 +10,17 @@ import java.io.*;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps the bytes it was read from, and only decodes a slot into a
+ * Tuple the first time it is asked for, so scans that read few rows of a page
+ * (or sample scans that stop early) don't pay for the rest. The bytes are
+ * never modified, so they also serve as the before image until
+ * {@link #setBeforeImage} is called.
  *
  * @see HeapFile
  * @see BufferPool
@@ -23,8 +30,9 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
-    final Tuple[] tuples;
+    final AtomicReferenceArray<Tuple> tuples; // decoded (or inserted) tuples, null for slots not decoded yet
     final int numSlots;
+    private final byte[] data; // the page as read, never modified
     
     private boolean dirty;
     private TransactionId dirtyTid;
@@ -53,24 +61,12 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < getHeaderSize() + numSlots * td.getSize()) throw new EOFException("page is too short");
+        this.data = data;
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        // the header is copied, as inserts and deletes change it
+        header = Arrays.copyOf(data, getHeaderSize());
+        tuples = new AtomicReferenceArray<>(numSlots);
     }
 
     /**
@@ -101,7 +97,8 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid, oldDataRef);
+            // until setBeforeImage is called, that is the page as it was read
+            return new HeapPage(pid, oldDataRef == null ? data : oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -112,7 +109,7 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = getPageData();
         }
     }
 
@@ -124,21 +121,11 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in slot slotId from the bytes of the page
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, header.length + slotId * td.getSize(), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -157,6 +144,19 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Returns the tuple in a used slot, decoding it if it wasn't yet. If
+     * several threads decode the same slot, they all get the first tuple set.
+     */
+    private Tuple tuple(int slot) {
+        Tuple t = tuples.get(slot);
+        if (t == null) {
+            t = readTuple(slot);
+            if (!tuples.compareAndSet(slot, null, t)) t = tuples.get(slot);
+        }
+        return t;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -169,64 +169,36 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] page = new byte[BufferPool.getPageSize()];
+        System.arraycopy(header, 0, page, 0, header.length);
 
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < numSlots; i++) {
+            // empty slots are left zeroed
+            if (!isSlotUsed(i)) continue;
+
+            int offset = header.length + i * td.getSize();
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                // not decoded, so unchanged since the page was read
+                System.arraycopy(data, offset, page, offset, td.getSize());
                 continue;
             }
 
-            // non-empty slot
+            baos.reset();
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-
+                    t.getField(j).serialize(dos);
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, page, offset, td.getSize());
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -254,7 +226,7 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         RecordId rid = t.getRecordId();
         int tupleno = rid.getTupleNumber();
-        if(rid.getPageId() != this.pid) throw new DbException("Tuple is not on this page");
+        if(!this.pid.equals(rid.getPageId())) throw new DbException("Tuple is not on this page");
         if(!isSlotUsed(tupleno)) throw new DbException("Tuple slot is already empty");
         
         markSlotUsed(tupleno, false);
@@ -275,7 +247,7 @@ public class HeapPage implements Page {
             if(!isSlotUsed(i)) { 
                 // Update tuple RecordId to reflect new page
                 t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
+                tuples.set(i, t);
                 markSlotUsed(i, true);
                 return;
             }
@@ -284,6 +256,29 @@ public class HeapPage implements Page {
         throw new DbException("No unused slots");
     }
 
+    /**
+     * Replaces the tuple stored in the given slot with t;  t is updated to
+     * reflect that it is now stored in that slot.
+     *
+     * @param slot the slot to overwrite
+     * @param t    The tuple to store.
+     * @throws DbException if the slot is empty or tupledesc is mismatch.
+     */
+    public void replaceTuple(int slot, Tuple t) throws DbException {
+        if(!td.equals(t.getTupleDesc())) throw new DbException("tupledesc mismatch");
+        if(!isSlotUsed(slot)) throw new DbException("Tuple slot is empty");
+
+        t.setRecordId(new RecordId(pid, slot));
+        tuples.set(slot, t);
+    }
+
+    /**
+     * Returns the tuple stored in the given slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        return isSlotUsed(slot) ? tuple(slot) : null;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -339,12 +334,12 @@ public class HeapPage implements Page {
         private int used = 0;
         private int totalUsedSlots;
         private HeapPage hp;
-        private Tuple[] tuples;
         
-        public HeapPageIterator(HeapPage hp, int numSlots, Tuple[] tuples) {
+        public HeapPageIterator(HeapPage hp, int numSlots) {
             this.hp = hp;
             this.totalUsedSlots = numSlots - hp.getNumUnusedSlots();
-            this.tuples = tuples;
+            // start at the first used slot, slot 0 may have been emptied
+            if(hasNext()) while(!this.hp.isSlotUsed(i)) i++;
         }
 
         @Override
@@ -354,7 +349,7 @@ public class HeapPage implements Page {
 
         @Override
         public Tuple next() {        
-            Tuple nextTuple = this.tuples[i];
+            Tuple nextTuple = this.hp.tuple(i);
             used++;
             if(hasNext()) {
                 do {
@@ -377,7 +372,7 @@ public class HeapPage implements Page {
      *         (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new HeapPageIterator(this, this.getNumTuples(), this.tuples);
+        return new HeapPageIterator(this, this.getNumTuples());
     }
 
 }
@@ -0,0 +1,81 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * IngestSampler builds sample families of a table while it is being loaded,
+ * so they are ready as soon as the load finishes without a second pass over
+ * the table. It is handed every tuple of the table as it is written (see
+ * {@link HeapFileEncoder#convert(File, File, int, int, simpledb.common.Type[], char, Consumer)})
+ * and feeds a {@link Reservoir} for each uniform family and a
+ * {@link StratifiedSampleBuilder} for each stratified one.
+ * <p>
+ * There are no table stats to derive the stratum caps from before the table
+ * exists, so stratified families keep up to stratumCap rows per stratum in
+ * their largest sample, and proportionally fewer in the smaller ones.
+ */
+public class IngestSampler implements Consumer<Tuple> {
+
+    private final int baseTableId;
+    private final List<SampleDBFile> samples;
+    private final List<Reservoir> reservoirs = new ArrayList<>();
+    private final List<StratifiedSampleBuilder> builders = new ArrayList<>();
+
+    /**
+     * @param baseFile   the heap file the table is being written to
+     * @param samples    the families to build, over the table's TupleDesc
+     * @param stratumCap the rows a stratum may have in the largest sample of a stratified family
+     */
+    public IngestSampler(File baseFile, List<SampleDBFile> samples, int stratumCap) {
+        if(stratumCap <= 0) throw new IllegalArgumentException("stratumCap must be positive");
+        // the id the table will have once opened as a HeapFile
+        this.baseTableId = baseFile.getAbsoluteFile().hashCode();
+        this.samples = samples;
+        for(SampleDBFile sample : samples) {
+            List<Integer> sizes = sample.getSampleSizes();
+            int maxSize = sizes.get(sizes.size() - 1);
+            if(sample.isStratified()) {
+                int[] caps = new int[sizes.size()];
+                for(int i = 0; i < caps.length; i++) caps[i] = (int) Math.max(1, (long) stratumCap * sizes.get(i) / maxSize);
+                builders.add(new StratifiedSampleBuilder(sample.getStratifiedColumnSet(), sample.getTupleDesc(), sizes, caps));
+                reservoirs.add(null);
+            }
+            else {
+                builders.add(null);
+                reservoirs.add(new Reservoir(maxSize));
+            }
+        }
+    }
+
+    /**
+     * Feed a tuple of the table being loaded
+     */
+    @Override
+    public void accept(Tuple t) {
+        for(int i = 0; i < samples.size(); i++) {
+            if(builders.get(i) != null) builders.get(i).add(t);
+            else reservoirs.get(i).add(t);
+        }
+    }
+
+    /**
+     * Write every family, once the whole table has been fed
+     */
+    public void finish() throws IOException {
+        for(int i = 0; i < samples.size(); i++) {
+            if(builders.get(i) != null) samples.get(i).populate(baseTableId, builders.get(i));
+            else samples.get(i).populate(baseTableId, reservoirs.get(i));
+        }
+    }
+
+    /**
+     * @return the families this sampler builds
+     */
+    public List<SampleDBFile> getSamples() {
+        return samples;
+    }
+}
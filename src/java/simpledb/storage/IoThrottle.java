@@ -0,0 +1,43 @@
+package simpledb.storage;
+
+/**
+ * IoThrottle limits the rate at which a set of readers does I/O. Each read
+ * reserves the next free slot in a shared timeline and sleeps until its slot
+ * comes, so together the readers never go faster than bytesPerSecond, however
+ * many threads share the throttle.
+ *
+ * @Threadsafe
+ */
+public class IoThrottle {
+
+    private final long bytesPerSecond;
+    private long nextFree; // System.nanoTime() at which the next read may start
+
+    /**
+     * @param bytesPerSecond the rate limit, or a value <= 0 for no limit
+     */
+    public IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.nextFree = System.nanoTime();
+    }
+
+    /**
+     * Wait until bytes more bytes can be read within the rate limit
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if(bytesPerSecond <= 0) return;
+
+        long start;
+        synchronized(this) {
+            long now = System.nanoTime();
+            start = Math.max(now, nextFree);
+            nextFree = start + bytes * 1_000_000_000L / bytesPerSecond;
+        }
+        long wait = start - System.nanoTime();
+        if(wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
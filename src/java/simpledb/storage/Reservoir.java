@@ -0,0 +1,97 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reservoir keeps a uniform random sample of at most capacity tuples out of a
+ * stream of tuples (reservoir sampling, O(n)), along with the number of
+ * tuples the stream has seen so far.
+ * <p>
+ * Two reservoirs built over disjoint streams can be combined with
+ * {@link #merge}, which weights each side by the number of tuples it has seen,
+ * so the merged reservoir is a uniform sample of the union of both streams.
+ */
+public class Reservoir {
+
+    private final int capacity;
+    private final List<Tuple> tuples;
+    private long numSeen;
+
+    /**
+     * @param capacity the maximum number of tuples kept in the reservoir
+     */
+    public Reservoir(int capacity) {
+        this.capacity = capacity;
+        this.tuples = new ArrayList<>();
+        this.numSeen = 0;
+    }
+
+    /**
+     * Offer a tuple from the stream to the reservoir
+     */
+    public void add(Tuple tuple) {
+        if(tuples.size() < capacity) tuples.add(tuple);
+        else {
+            long j = ThreadLocalRandom.current().nextLong(numSeen + 1); // random integer in range [0, numSeen]
+            if(j < capacity) tuples.set((int) j, tuple);
+        }
+        numSeen++;
+    }
+
+    /**
+     * Combine two reservoirs built over disjoint streams into a single reservoir.
+     * Each slot of the result is drawn from a or b with probability proportional
+     * to the number of tuples of that stream that have not been drawn yet, which
+     * is sampling without replacement from the union of both streams.
+     *
+     * @return a new reservoir with the capacity of a; a and b should not be used afterwards
+     */
+    public static Reservoir merge(Reservoir a, Reservoir b) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Reservoir merged = new Reservoir(a.capacity);
+
+        // Draws are taken in order, so the reservoirs must be in random order
+        Collections.shuffle(a.tuples, random);
+        Collections.shuffle(b.tuples, random);
+
+        long remainingA = a.numSeen;
+        long remainingB = b.numSeen;
+        int ia = 0, ib = 0;
+        int k = Math.min(merged.capacity, a.tuples.size() + b.tuples.size());
+
+        for(int i = 0; i < k; i++) {
+            if(random.nextLong(remainingA + remainingB) < remainingA) {
+                merged.tuples.add(a.tuples.get(ia++));
+                remainingA--;
+            }
+            else {
+                merged.tuples.add(b.tuples.get(ib++));
+                remainingB--;
+            }
+        }
+
+        merged.numSeen = a.numSeen + b.numSeen;
+        return merged;
+    }
+
+    /**
+     * @return the tuples currently held in the reservoir
+     */
+    public List<Tuple> getTuples() {
+        return this.tuples;
+    }
+
+    /**
+     * @return the number of tuples offered to this reservoir (including merged ones)
+     */
+    public long getNumSeen() {
+        return this.numSeen;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+}
@@ -9,28 +9,63 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class SampleDBFile extends HeapFile{
+
+    /**
+     * The file mapped into memory, in chunks of whole pages as a
+     * MappedByteBuffer can't be larger than 2GB
+     */
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final int pagesPerChunk;
+        final int numPages;
+        final int pageSize;
+
+        Mapping(MappedByteBuffer[] chunks, int pagesPerChunk, int numPages, int pageSize) {
+            this.chunks = chunks;
+            this.pagesPerChunk = pagesPerChunk;
+            this.numPages = numPages;
+            this.pageSize = pageSize;
+        }
+    }
+
     //private final File f;
     private final TupleDesc td;
     private final QueryColumnSet stratifiedColumns;
     private final List<Integer> sampleSizes;
-    private final TransactionId tid;
+    private SampleDirectory directory;
+    private boolean directoryDirty = false;
+
+    private SampleMetadata metadata; // null until the sample is built (or loaded from the sample catalog)
+    private boolean metadataDirty = false;
+    private SampleMaintainer maintainer;
+    // held while maintaining the sample, which goes through the BufferPool; the
+    // BufferPool calls writePage, which takes this file's monitor, so that
+    // monitor is never held while calling into the BufferPool
+    private final Object maintenanceLock = new Object();
+
+    private boolean mapped = false;
+    private volatile Mapping mapping; // null until a page is read in mapped mode
     
     public SampleDBFile(File f, List<Integer> sampleSizes, QueryColumnSet stratifiedColumns, TupleDesc td) throws DbException, IOException, TransactionAbortedException {
         super(f, td);
         this.stratifiedColumns = stratifiedColumns;
         this.sampleSizes = sampleSizes;
         this.td = td;
-        this.tid = new TransactionId();
     }
     
     /**
@@ -42,113 +77,336 @@ public class SampleDBFile extends HeapFile{
      * @throws IOException
      */
     public void createUniformSamples(DbFile origFile) throws NoSuchElementException, DbException, TransactionAbortedException, IOException {
-        // Sample maxSize integers from origFile using reservoir sampling (O(n))
-        int maxSize = sampleSizes.get(sampleSizes.size() - 1); // k is the size of the *largest* sample
-        List<Tuple> reservoir = Arrays.asList(new Tuple[maxSize]);
-        
-        DbFileIterator iterator = origFile.iterator(null);
-        iterator.open();
-        
-        int i = 0;
-        while(iterator.hasNext()) {
-            Tuple tuple = iterator.next();
-            
-            if(i < maxSize) reservoir.set(i, tuple);
-            else {
-                int j = ThreadLocalRandom.current().nextInt(0, i + 1); // random integer in range [0, i]
-                if(j < maxSize) reservoir.set(j, tuple);
-            }      
-            
-            i++;
-        }
-        
-        iterator.close();      
-        
-        // Write the tuples to disk
-        Collections.shuffle(reservoir);
-        
-        for(i = 0; i < maxSize; i++) {
-            Tuple tuple = reservoir.get(i);
-            Database.getBufferPool().insertTuple(tid, this.getId(), tuple);
+        createUniformSamples(origFile, origFile.iterator(null));
+    }
+
+    /**
+     * Like {@link #createUniformSamples(DbFile)}, reading origFile through
+     * iterator (e.g. one throttled by {@link simpledb.optimizer.SampleBuildService})
+     */
+    public void createUniformSamples(DbFile origFile, DbFileIterator iterator) throws NoSuchElementException, DbException, TransactionAbortedException, IOException {
+        createSamples(origFile, iterator, Collections.singletonList(this), null);
+    }
+
+    /**
+     * Populate the SampleDbFile based off origFile, splitting origFile's pages
+     * across parallelism fork-join workers. Each worker fills its own reservoir
+     * and the reservoirs are combined with a weighted merge (see {@link Reservoir#merge}),
+     * so the sample is distributed the same way as with {@link #createUniformSamples(DbFile)}.
+     * The sample is shuffled before being written, so every prefix given by
+     * sampleSizes is itself a uniform sample.
+     * <p>
+     * Workers take the BufferPool's copy of a page if it has one, since it may
+     * have rows that aren't on disk yet, and read the others with
+     * {@link HeapFile#readPage} rather than through the BufferPool, so that a
+     * scan of the whole table doesn't push out the pages it held.
+     *
+     * @param origFile    the base table
+     * @param parallelism the number of worker threads to use
+     */
+    public void createUniformSamples(HeapFile origFile, int parallelism) throws DbException, TransactionAbortedException, IOException {
+        createUniformSamples(origFile, parallelism, null);
+    }
+
+    /**
+     * Like {@link #createUniformSamples(HeapFile, int)}, with the workers
+     * reading origFile through throttle (may be null for none)
+     */
+    public void createUniformSamples(HeapFile origFile, int parallelism, IoThrottle throttle) throws DbException, TransactionAbortedException, IOException {
+        if(parallelism <= 1) {
+            createUniformSamples(origFile);
+            return;
+        }
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int numPages = origFile.numPages();
+        // Split into a few more tasks than workers so that the pool can balance the load
+        int pagesPerTask = Math.max(1, numPages / (parallelism * 4));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Reservoir reservoir;
+        try {
+            reservoir = pool.invoke(new ReservoirTask(origFile, 0, numPages, maxSize, pagesPerTask, throttle));
+        }
+        catch(CancellationException e) {
+            throw new DbException(e.getMessage());
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        populate(origFile.getId(), reservoir);
+    }
+
+    /**
+     * Fork-join task that builds a reservoir over the pages [startPage, endPage) of a HeapFile
+     */
+    private static class ReservoirTask extends RecursiveTask<Reservoir> {
+
+        private static final long serialVersionUID = 1L;
+        private final HeapFile file;
+        private final int startPage;
+        private final int endPage;
+        private final int capacity;
+        private final int pagesPerTask;
+        private final IoThrottle throttle;
+
+        ReservoirTask(HeapFile file, int startPage, int endPage, int capacity, int pagesPerTask, IoThrottle throttle) {
+            this.file = file;
+            this.startPage = startPage;
+            this.endPage = endPage;
+            this.capacity = capacity;
+            this.pagesPerTask = pagesPerTask;
+            this.throttle = throttle;
+        }
+
+        @Override
+        protected Reservoir compute() {
+            if(endPage - startPage <= pagesPerTask) {
+                Reservoir reservoir = new Reservoir(capacity);
+                for(int pgNo = startPage; pgNo < endPage; pgNo++) {
+                    HeapPageId pid = new HeapPageId(file.getId(), pgNo);
+                    Page cached = Database.getBufferPool().getCachedPage(pid);
+                    if(cached == null) throttle();
+                    HeapPage page = (HeapPage) (cached != null ? cached : file.readPage(pid));
+                    Iterator<Tuple> it = page.iterator();
+                    while(it.hasNext()) reservoir.add(it.next());
+                }
+                return reservoir;
+            }
+
+            int mid = (startPage + endPage) >>> 1;
+            ReservoirTask left = new ReservoirTask(file, startPage, mid, capacity, pagesPerTask, throttle);
+            ReservoirTask right = new ReservoirTask(file, mid, endPage, capacity, pagesPerTask, throttle);
+            left.fork();
+            Reservoir rightReservoir = right.compute();
+            return Reservoir.merge(left.join(), rightReservoir);
+        }
+
+        private void throttle() {
+            if(throttle == null) return;
+            try {
+                throttle.acquire(BufferPool.getPageSize());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("sample build interrupted");
+            }
         }
     }
 
+    /**
+     * Populate the SampleDbFile with a sample of origFile stratified on this
+     * file's QueryColumnSet, building every size in sampleSizes in a single pass
+     * (see {@link StratifiedSampleBuilder}).
+     * @param origFile
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
     public void createStratifiedSamples(DbFile origFile) throws DbException, IOException, TransactionAbortedException {
-    	TableStats tableStats = new TableStats(origFile.getId(), SampleCreator.IO_COST); 
-    	
-    	// get indices of the stratified columns 	
-        Set<Integer> colIndices = this.stratifiedColumns.getColumns();
-
-        // Sample maxSize integers from origFile using reservoir sampling (O(n))
-    	int maxSize = sampleSizes.get(sampleSizes.size() - 1); // maxSize is the size of the *largest* sample
-        List<Tuple> reservoir = Arrays.asList(new Tuple[maxSize]);
-        ConcurrentHashMap<String, Integer> columnValCount = new ConcurrentHashMap<>();
-    	
-    	DbFileIterator iterator = origFile.iterator(null);
+        createStratifiedSamples(origFile, origFile.iterator(null), new TableStats(origFile.getId(), SampleCreator.IO_COST));
+    }
+
+    /**
+     * Like {@link #createStratifiedSamples(DbFile)}, reading origFile through
+     * iterator, with tableStats already computed over origFile
+     */
+    public void createStratifiedSamples(DbFile origFile, DbFileIterator iterator, TableStats tableStats) throws DbException, IOException, TransactionAbortedException {
+        createSamples(origFile, iterator, Collections.singletonList(this), tableStats);
+    }
+
+    /**
+     * Populate several sample families of origFile in a single pass over it.
+     * Each tuple read is offered to a {@link Reservoir} for every uniform
+     * family and to a {@link StratifiedSampleBuilder} for every stratified
+     * one, so building K families reads origFile once rather than K times.
+     *
+     * @param origFile   the base table
+     * @param iterator   the iterator to read origFile through
+     * @param samples    the families to build, all over origFile
+     * @param tableStats statistics over origFile for the stratum caps, may be null if no family is stratified
+     */
+    public static void createSamples(DbFile origFile, DbFileIterator iterator, List<SampleDBFile> samples, TableStats tableStats) throws DbException, IOException, TransactionAbortedException {
+        Reservoir[] reservoirs = new Reservoir[samples.size()];
+        StratifiedSampleBuilder[] builders = new StratifiedSampleBuilder[samples.size()];
+        for(int i = 0; i < samples.size(); i++) {
+            SampleDBFile sample = samples.get(i);
+            if(sample.isStratified()) {
+                if(tableStats == null) throw new IllegalArgumentException("stratified samples need table stats");
+                builders[i] = new StratifiedSampleBuilder(sample.stratifiedColumns, sample.td, sample.sampleSizes, tableStats);
+            }
+            else reservoirs[i] = new Reservoir(sample.sampleSizes.get(sample.sampleSizes.size() - 1));
+        }
+
         iterator.open();
-        
-        int i = 0;
-        int currSampleI = 0;
-        int currSize = sampleSizes.get(currSampleI);
-        int currCap = Math.max(1, currSize / 6); // hardcoded with 6 at the moment 
-        
         while(iterator.hasNext()) {
-        	if (i == currSize) {
-        		if (currSampleI < sampleSizes.size() - 1) {
-        			currSampleI++;
-            		currSize = sampleSizes.get(currSampleI);
-            		currCap = Math.max(1, currSize / 3);
-        		}
-        		else {
-        			currCap = Integer.MAX_VALUE;
-        		}
-        	}
-        	
-            Tuple tuple = iterator.next();
-        	StringBuilder currStratColVal = new StringBuilder(); // current stratified columns' value
-        	
-            // check if we have reached the cap for given combination of stratifiedColumns for this sample
-            for (Integer index : colIndices) {
-            	currStratColVal.append(tuple.getField(index).toString());
-            }
-            
-            if (columnValCount.containsKey(currStratColVal.toString()) && columnValCount.get(currStratColVal.toString()) == currCap) {
-            	continue;
+            Tuple t = iterator.next();
+            for(int i = 0; i < reservoirs.length; i++) {
+                if(builders[i] != null) builders[i].add(t);
+                else reservoirs[i].add(t);
             }
-            
-            columnValCount.putIfAbsent(currStratColVal.toString(), 0);
-            columnValCount.put(currStratColVal.toString(), columnValCount.get(currStratColVal.toString()) + 1);
-            
-            
-            if(i < maxSize) reservoir.set(i, tuple);
-            else if (sampleSizes.size() > 1){ // only randomly replace tuples in the larger sample to make sure that the smaller ones are distributed properly
-                int j = ThreadLocalRandom.current().nextInt(0, i + 1); 
-                if(sampleSizes.get(sampleSizes.size() - 2) <= j  && j < maxSize) reservoir.set(j, tuple);
-            }         
-            
-            i++;
-        }
-             
-        iterator.rewind();      
-        
-        // fills the sample in case we did not fill the samples due to cap
-        for (i = 0; i < reservoir.size(); i++) {
-        	if (reservoir.get(i) == null) {
-        		reservoir.set(i, iterator.next());
-        	}
-        }
-        
+        }
         iterator.close();
-        
+
         // Write the tuples to disk
-        Collections.shuffle(reservoir);
-        
-        for(i = 0; i < maxSize; i++) {
-            Tuple tuple = reservoir.get(i);
-            Database.getBufferPool().insertTuple(tid, this.getId(), tuple);
+        for(int i = 0; i < samples.size(); i++) {
+            if(builders[i] != null) samples.get(i).populate(origFile.getId(), builders[i]);
+            else samples.get(i).populate(origFile.getId(), reservoirs[i]);
         }
     }
 
+    /**
+     * Write a uniform sample from a reservoir filled over the base table
+     */
+    void populate(int baseTableId, Reservoir reservoir) throws IOException {
+        List<Tuple> tuples = reservoir.getTuples();
+        Collections.shuffle(tuples);
+        writeSample(tuples);
+        setBase(baseTableId, reservoir.getNumSeen(), null, 0);
+    }
+
+    /**
+     * Write a stratified sample from a builder fed the whole base table
+     */
+    void populate(int baseTableId, StratifiedSampleBuilder builder) throws IOException {
+        // each size is already shuffled
+        writeSample(builder.finish());
+        int[] caps = builder.getCaps();
+        setBase(baseTableId, builder.getNumSeen(), builder.getStratumCounts(), caps[caps.length - 1]);
+    }
+
+    /**
+     * Record how the sample was built and publish it to the sample catalog.
+     * Error-latency profiles measured on the old sample no longer apply.
+     */
+    private void setBase(int baseTableId, long baseTableRows, Map<Long, Long> stratumCounts, int stratumCap) throws IOException {
+        setMetadata(new SampleMetadata(baseTableId, stratifiedColumns, sampleSizes, stratumCounts, stratumCap,
+                System.currentTimeMillis(), baseTableRows));
+        Database.getCatalog().saveSampleCatalog();
+        Database.getProfileCache().invalidate(getId());
+    }
+
+    /**
+     * Write the (already shuffled) sample tuples to this file, in order,
+     * replacing any sample it held before. The sample is written with
+     * {@link HeapFile#bulkReplace}, so it does not go through the BufferPool
+     * and does not need to be flushed afterwards.
+     */
+    private void writeSample(List<Tuple> sample) throws IOException {
+        bulkReplace(sample);
+        synchronized (this) {
+            this.mapping = null;
+            this.maintainer = null;
+            this.directory = SampleDirectory.build(this, sampleSizes);
+            this.directory.save(SampleDirectory.fileFor(this.getFile()));
+            this.directoryDirty = false;
+        }
+    }
+
+    /**
+     * Update this sample after t was inserted into its base table. Does nothing
+     * if this file does not know how the sample was built.
+     *
+     * @see SampleMaintainer
+     */
+    public void baseTupleInserted(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        synchronized (maintenanceLock) {
+            long baseRows;
+            synchronized (this) {
+                if(metadata == null) return;
+                metadata.setBaseTableRows(metadata.getBaseTableRows() + 1);
+                metadataDirty = true;
+                baseRows = metadata.getBaseTableRows();
+            }
+            getMaintainer(tid).insert(tid, t, baseRows);
+        }
+    }
+
+    /**
+     * Update this sample after t was deleted from its base table. Does nothing
+     * if this file does not know how the sample was built.
+     *
+     * @see SampleMaintainer
+     */
+    public void baseTupleDeleted(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        synchronized (maintenanceLock) {
+            synchronized (this) {
+                if(metadata == null) return;
+                metadata.setBaseTableRows(metadata.getBaseTableRows() - 1);
+                metadataDirty = true;
+            }
+            getMaintainer(tid).delete(tid, t);
+        }
+    }
+
+    /**
+     * Returns the maintainer of this sample, indexing the sample the first
+     * time. Only called with maintenanceLock held.
+     */
+    private SampleMaintainer getMaintainer(TransactionId tid) throws DbException, TransactionAbortedException {
+        SampleMetadata metadata;
+        synchronized (this) {
+            if(maintainer != null) return maintainer;
+            metadata = this.metadata;
+        }
+        getDirectory();
+        // reads the sample's pages through the BufferPool
+        SampleMaintainer created = new SampleMaintainer(this, tid, metadata.getStratumCounts(), metadata.getStratumCap());
+        synchronized (this) {
+            if(this.metadata == metadata) maintainer = created;
+        }
+        return created;
+    }
+
+    /**
+     * Record in the directory that delta tuples were added to (or removed from) page pgNo.
+     * The directory is saved the next time a page of this file is written.
+     */
+    synchronized void adjustDirectory(int pgNo, int delta) {
+        if(directory == null) return;
+        directory.adjustPageCount(pgNo, delta);
+        directoryDirty = true;
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        super.writePage(page);
+        boolean saveMetadata;
+        synchronized (this) {
+            if(directoryDirty && directory != null) {
+                directory.save(SampleDirectory.fileFor(this.getFile()));
+                directoryDirty = false;
+            }
+            saveMetadata = metadataDirty;
+            metadataDirty = false;
+        }
+        if(saveMetadata) Database.getCatalog().saveSampleCatalog();
+    }
+
+    /**
+     * Returns the directory of tuple counts per page of this sample, loading it
+     * from disk (or rebuilding it from the page headers if it is missing or out
+     * of date) the first time it is needed.
+     *
+     * @return the directory, or null if it could not be read or built
+     */
+    public synchronized SampleDirectory getDirectory() {
+        if(directory != null && directory.numPages() == this.numPages()) return directory;
+
+        try {
+            File dirFile = SampleDirectory.fileFor(this.getFile());
+            directory = SampleDirectory.load(dirFile);
+            if(directory == null || directory.numPages() != this.numPages() || !directory.hasCutoffs(sampleSizes)) {
+                directory = SampleDirectory.build(this, sampleSizes);
+                if(this.getFile().exists()) directory.save(dirFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            directory = null;
+        }
+        return directory;
+    }
+
     public QueryColumnSet getStratifiedColumnSet() {
         return this.stratifiedColumns;
     }
@@ -161,16 +419,118 @@ public class SampleDBFile extends HeapFile{
         return this.stratifiedColumns != null;
     }
 
+    /**
+     * @return how this sample was built, or null if it has not been populated
+     */
+    public synchronized SampleMetadata getMetadata() {
+        return this.metadata;
+    }
+
+    /**
+     * Set how this sample was built, e.g. when loading it from the sample catalog
+     */
+    public void setMetadata(SampleMetadata metadata) {
+        synchronized(this) {
+            this.metadata = metadata;
+            this.maintainer = null;
+        }
+        // outside the lock, as the catalog reads the base table id back
+        Database.getCatalog().sampleRebased(this);
+    }
+
+    /**
+     * @return whether this sample has been populated
+     */
+    public boolean isPopulated() {
+        return getMetadata() != null;
+    }
+
+    /**
+     * @return the id of the table this sample was built from, or -1 if unknown
+     */
+    public synchronized int getBaseTableId() {
+        return metadata == null ? -1 : metadata.getBaseTableId();
+    }
+
+    /**
+     * @return the number of tuples in the base table, or -1 if unknown
+     */
+    public synchronized long getBaseTableRows() {
+        return metadata == null ? -1 : metadata.getBaseTableRows();
+    }
+
+    /**
+     * Serve the pages of this sample read by its iterators straight from a
+     * memory mapping of the file, rather than reading them into the BufferPool.
+     * Samples are read by every approximate query and rarely written, so the
+     * OS page cache can hold them without copies in the BufferPool or a read
+     * call per page. Pages the BufferPool holds (e.g. ones changed by sample
+     * maintenance) are still read from it.
+     *
+     * @param mapped whether to read pages from the mapping
+     */
+    public synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        this.mapping = null;
+    }
+
+    public synchronized boolean isMapped() {
+        return this.mapped;
+    }
+
+    /**
+     * Read page pid from the mapping of this file, mapping it first if needed
+     *
+     * @return the page, or null if this file is not mapped or the page is past its end
+     */
+    HeapPage readMappedPage(HeapPageId pid) throws IOException {
+        Mapping m = this.mapping;
+        if(m == null || pid.getPageNumber() >= m.numPages || m.pageSize != BufferPool.getPageSize()) {
+            m = map();
+            if(m == null || pid.getPageNumber() >= m.numPages) return null;
+        }
+
+        byte[] data = new byte[m.pageSize];
+        ByteBuffer chunk = m.chunks[pid.getPageNumber() / m.pagesPerChunk].duplicate();
+        chunk.position((pid.getPageNumber() % m.pagesPerChunk) * m.pageSize);
+        chunk.get(data);
+        return new HeapPage(pid, data);
+    }
+
+    /**
+     * (Re)map the whole file, e.g. when it has grown since it was mapped
+     */
+    private synchronized Mapping map() throws IOException {
+        if(!mapped || !this.getFile().exists()) return null;
+        int pageSize = BufferPool.getPageSize();
+        int numPages = this.numPages();
+        if(mapping != null && mapping.numPages == numPages && mapping.pageSize == pageSize) return mapping;
+
+        int pagesPerChunk = Integer.MAX_VALUE / pageSize;
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(numPages + pagesPerChunk - 1) / pagesPerChunk];
+        // the mapping stays valid once the channel is closed
+        try (FileChannel channel = FileChannel.open(this.getFile().toPath(), StandardOpenOption.READ)) {
+            for(int i = 0; i < chunks.length; i++) {
+                long pages = Math.min(pagesPerChunk, numPages - (long) i * pagesPerChunk);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, (long) i * pagesPerChunk * pageSize, pages * pageSize);
+            }
+        }
+        mapping = new Mapping(chunks, pagesPerChunk, numPages, pageSize);
+        return mapping;
+    }
+
     // this iterator should not get called- is only here to not throw errors
     @Override
-    public DbFileIterator iterator(TransactionId tid) {
-        return new SampleIterator(this.getId(), tid, this.numPages(), this.sampleSizes.get(sampleSizes.size() - 1));
+    public SampleIterator iterator(TransactionId tid) {
+        return iterator(tid, this.sampleSizes.get(sampleSizes.size() - 1));
     }
 
     // this iterator is called for actually generating tuples
     // you must know that it is an existing 
-    public DbFileIterator iterator(TransactionId tid, int cutoff) {
-        return new SampleIterator(this.getId(), tid, this.numPages(), cutoff);
+    public SampleIterator iterator(TransactionId tid, int cutoff) {
+        SampleIterator it = new SampleIterator(this.getId(), tid, this.numPages(), cutoff, getDirectory());
+        if(isMapped()) it.setMappedFile(this);
+        return it;
     }
 
 }
@@ -0,0 +1,241 @@
+package simpledb.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SampleDirectory records how many tuples are stored on each page of a
+ * SampleDBFile, and where each of the sample's cutoffs (sampleSizes) ends.
+ * With it, a SampleIterator knows exactly which page and slot it stops at for a
+ * given cutoff, instead of probing the remaining pages through the BufferPool.
+ * <p>
+ * The directory is persisted next to the sample file (see {@link #fileFor}) in
+ * the following format, all values being big-endian ints: <p>
+ * MAGIC, numPages, numPages used-slot counts, numCutoffs,
+ * then (cutoff, endPage, tuples read on endPage) for each cutoff.
+ * <p>
+ * When a sample is maintained in place (see {@link SampleMaintainer}), the
+ * directory is kept up to date with {@link #adjustPageCount}.
+ */
+public class SampleDirectory {
+
+    private static final int MAGIC = 0x53444952; // "SDIR"
+
+    private int[] pageCounts;
+    private long[] pageOffsets; // pageOffsets[i] = number of tuples on pages [0, i)
+    private final int[] cutoffs;
+    private final int[] cutoffEndPages;
+    private final int[] cutoffEndCounts;
+
+    /**
+     * @param pageCounts  the number of used slots on each page of the file
+     * @param sampleSizes the cutoffs of the sample family
+     */
+    public SampleDirectory(int[] pageCounts, List<Integer> sampleSizes) {
+        this.pageCounts = pageCounts;
+        this.pageOffsets = computeOffsets(pageCounts);
+        this.cutoffs = new int[sampleSizes.size()];
+        this.cutoffEndPages = new int[sampleSizes.size()];
+        this.cutoffEndCounts = new int[sampleSizes.size()];
+
+        for(int i = 0; i < cutoffs.length; i++) {
+            cutoffs[i] = sampleSizes.get(i);
+            cutoffEndPages[i] = locatePage(cutoffs[i]);
+            cutoffEndCounts[i] = endCount(cutoffs[i], cutoffEndPages[i]);
+        }
+    }
+
+    private SampleDirectory(int[] pageCounts, int[] cutoffs, int[] cutoffEndPages, int[] cutoffEndCounts) {
+        this.pageCounts = pageCounts;
+        this.pageOffsets = computeOffsets(pageCounts);
+        this.cutoffs = cutoffs;
+        this.cutoffEndPages = cutoffEndPages;
+        this.cutoffEndCounts = cutoffEndCounts;
+    }
+
+    private static long[] computeOffsets(int[] pageCounts) {
+        long[] offsets = new long[pageCounts.length + 1];
+        for(int i = 0; i < pageCounts.length; i++) offsets[i + 1] = offsets[i] + pageCounts[i];
+        return offsets;
+    }
+
+    /**
+     * @return the location of the directory of the given sample file
+     */
+    public static File fileFor(File sampleFile) {
+        return new File(sampleFile.getPath() + ".dir");
+    }
+
+    /**
+     * Build a directory by reading the page headers of file directly from disk
+     * (without going through the BufferPool)
+     */
+    public static SampleDirectory build(HeapFile file, List<Integer> sampleSizes) throws IOException {
+        TupleDesc td = file.getTupleDesc();
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = (pageSize * 8) / (td.getSize() * 8 + 1);
+        byte[] header = new byte[(numSlots + 7) / 8];
+        int numPages = file.numPages();
+        int[] pageCounts = new int[numPages];
+
+        if(numPages == 0) return new SampleDirectory(pageCounts, sampleSizes);
+        try (RandomAccessFile raf = new RandomAccessFile(file.getFile(), "r")) {
+            for(int i = 0; i < numPages; i++) {
+                raf.seek((long) i * pageSize);
+                raf.readFully(header);
+                int count = 0;
+                for(byte b : header) count += Integer.bitCount(b & 0xFF);
+                pageCounts[i] = count;
+            }
+        }
+        return new SampleDirectory(pageCounts, sampleSizes);
+    }
+
+    /**
+     * Read a directory from disk
+     *
+     * @return the directory, or null if f does not exist or is not a directory file
+     */
+    public static SampleDirectory load(File f) throws IOException {
+        if(!f.exists()) return null;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if(dis.readInt() != MAGIC) return null;
+            int[] pageCounts = new int[dis.readInt()];
+            for(int i = 0; i < pageCounts.length; i++) pageCounts[i] = dis.readInt();
+
+            int numCutoffs = dis.readInt();
+            int[] cutoffs = new int[numCutoffs];
+            int[] cutoffEndPages = new int[numCutoffs];
+            int[] cutoffEndCounts = new int[numCutoffs];
+            for(int i = 0; i < numCutoffs; i++) {
+                cutoffs[i] = dis.readInt();
+                cutoffEndPages[i] = dis.readInt();
+                cutoffEndCounts[i] = dis.readInt();
+            }
+            return new SampleDirectory(pageCounts, cutoffs, cutoffEndPages, cutoffEndCounts);
+        }
+    }
+
+    /**
+     * Write this directory to disk
+     */
+    public void save(File f) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(pageCounts.length);
+            for(int count : pageCounts) dos.writeInt(count);
+
+            dos.writeInt(cutoffs.length);
+            for(int i = 0; i < cutoffs.length; i++) {
+                dos.writeInt(cutoffs[i]);
+                dos.writeInt(cutoffEndPages[i]);
+                dos.writeInt(cutoffEndCounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Record that delta tuples were added to (or, if negative, removed from)
+     * page pgNo, and move the cutoffs accordingly. pgNo may be one past the
+     * last page, for a page that was just appended to the file.
+     */
+    public void adjustPageCount(int pgNo, int delta) {
+        if(pgNo == pageCounts.length) {
+            pageCounts = Arrays.copyOf(pageCounts, pgNo + 1);
+            pageOffsets = Arrays.copyOf(pageOffsets, pgNo + 2);
+            pageOffsets[pgNo + 1] = pageOffsets[pgNo];
+        }
+        pageCounts[pgNo] += delta;
+        for(int i = pgNo + 1; i < pageOffsets.length; i++) pageOffsets[i] += delta;
+
+        for(int i = 0; i < cutoffs.length; i++) {
+            cutoffEndPages[i] = locatePage(cutoffs[i]);
+            cutoffEndCounts[i] = endCount(cutoffs[i], cutoffEndPages[i]);
+        }
+    }
+
+    /**
+     * @return whether this directory describes the cutoffs in sampleSizes
+     */
+    public boolean hasCutoffs(List<Integer> sampleSizes) {
+        return Arrays.equals(cutoffs, sampleSizes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public int numPages() {
+        return pageCounts.length;
+    }
+
+    /**
+     * @return the number of used slots on page pgNo
+     */
+    public int getPageCount(int pgNo) {
+        return pageCounts[pgNo];
+    }
+
+    /**
+     * @return the total number of tuples in the file
+     */
+    public long totalTuples() {
+        return pageOffsets[pageCounts.length];
+    }
+
+    /**
+     * @return the number of tuples stored on the pages before pgNo
+     */
+    public long getPageOffset(int pgNo) {
+        return pageOffsets[pgNo];
+    }
+
+    /**
+     * Return the page that holds the last of the first numRows tuples of the file.
+     * If the file holds fewer than numRows tuples, this is the last non-empty page.
+     *
+     * @return the page number, or -1 if numRows is 0 or the file is empty
+     */
+    public int endPage(long numRows) {
+        for(int i = 0; i < cutoffs.length; i++) {
+            if(cutoffs[i] == numRows) return cutoffEndPages[i];
+        }
+        return locatePage(numRows);
+    }
+
+    /**
+     * Return the number of tuples of the first numRows tuples that are stored on
+     * endPage(numRows)
+     */
+    public int endCount(long numRows) {
+        for(int i = 0; i < cutoffs.length; i++) {
+            if(cutoffs[i] == numRows) return cutoffEndCounts[i];
+        }
+        return endCount(numRows, locatePage(numRows));
+    }
+
+    private int endCount(long numRows, int endPage) {
+        if(endPage < 0) return 0;
+        return (int) (Math.min(numRows, totalTuples()) - pageOffsets[endPage]);
+    }
+
+    private int locatePage(long numRows) {
+        long rows = Math.min(numRows, totalTuples());
+        if(rows <= 0) return -1;
+
+        // find the first page whose end offset reaches rows
+        int lo = 0, hi = pageCounts.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(pageOffsets[mid + 1] >= rows) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+}
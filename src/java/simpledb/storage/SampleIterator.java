@@ -1,8 +1,11 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.BooleanSupplier;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
@@ -20,30 +23,111 @@ public class SampleIterator implements DbFileIterator {
     private HeapPage page;
     private int pgNo = 0;
     private int numPages;
+    private SampleDirectory directory;
+    private BooleanSupplier stopCondition;
+    private int minRows;
+    private SampleDBFile mappedFile; // read pages from its mapping, if set
 
     public SampleIterator(int tableId, TransactionId tid, int numPages, int numRows) {
-        this.numRows = numRows;
+        this(tableId, tid, numPages, numRows, null);
+    }
+
+    /**
+     * @param directory the tuple counts per page of the sample. If given, the
+     *                  iterator reads exactly the pages holding the first numRows
+     *                  tuples; if null, it probes the remaining pages to find out
+     *                  whether there are more tuples.
+     */
+    public SampleIterator(int tableId, TransactionId tid, int numPages, int numRows, SampleDirectory directory) {
         this.tid = tid;
         this.tableId = tableId;
         this.numPages = numPages;
+        this.directory = directory;
+        // With a directory, we know how many of the numRows tuples actually exist
+        this.numRows = directory == null ? numRows : (int) Math.min(numRows, directory.totalTuples());
     }
 
     private void loadPage() throws TransactionAbortedException, DbException {
-        this.page = (HeapPage) (Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pgNo), Permissions.READ_ONLY));
+        HeapPageId pid = new HeapPageId(tableId, pgNo);
+        BufferPool pool = Database.getBufferPool();
+        this.page = null;
+        if(mappedFile != null && !pool.isCached(pid)) {
+            try {
+                this.page = mappedFile.readMappedPage(pid);
+            } catch (IOException e) {
+                throw new DbException("Could not map " + mappedFile.getFile() + ": " + e.getMessage());
+            }
+        }
+        if(this.page == null) this.page = (HeapPage) (pool.getPage(tid, pid, Permissions.READ_ONLY));
         this.pageIterator = this.page.iterator();
     }
 
+    /**
+     * Read pages from the memory mapping of file rather than through the
+     * BufferPool, unless the BufferPool has them (see {@link SampleDBFile#setMapped})
+     */
+    void setMappedFile(SampleDBFile file) {
+        this.mappedFile = file;
+    }
+
+    /**
+     * Move to the first page at or after pgNo that has tuples on it, according to the directory
+     */
+    private void loadNonEmptyPage() throws TransactionAbortedException, DbException {
+        while(directory.getPageCount(pgNo) == 0) pgNo++;
+        this.loadPage();
+    }
+
+    /**
+     * @return the last page this iterator will read, or -1 if unknown (no directory)
+     */
+    public int getEndPage() {
+        return directory == null ? -1 : directory.endPage(numRows);
+    }
+
+    /**
+     * Stop early: once at least minRows tuples have been read, hasNext returns
+     * false as soon as stopCondition does, e.g. when an aggregate over the tuples
+     * read so far is accurate enough. Since the sample is stored in random order,
+     * the tuples read up to that point are still a uniform sample.
+     *
+     * @param stopCondition checked before each tuple is read, or null to read all numRows tuples
+     * @param minRows       the number of tuples to read before checking stopCondition
+     */
+    public void setStopCondition(BooleanSupplier stopCondition, int minRows) {
+        this.stopCondition = stopCondition;
+        this.minRows = minRows;
+    }
+
+    /**
+     * @return the number of tuples returned since the iterator was opened or rewound
+     */
+    public int getRowsRead() {
+        return index;
+    }
+
     @Override
     public void open() throws DbException, TransactionAbortedException{
         this.opened = true;
-        this.loadPage();
+        this.rewind();
     }
 
     @Override
     public boolean hasNext() throws DbException, TransactionAbortedException{
+        if (stopCondition != null && opened && index >= minRows && index < numRows && stopCondition.getAsBoolean()) return false;
+        return hasMoreRows();
+    }
+
+    /**
+     * hasNext, ignoring the stop condition: next() must not fail because the
+     * condition (e.g. a deadline) changed since hasNext was called
+     */
+    private boolean hasMoreRows() throws DbException, TransactionAbortedException{
         if (!opened) return false;
         //check to see if reached max num of tuples allowed
         if (index >= numRows) return false;
+        // the directory tells us the remaining tuples exist
+        if (directory != null) return true;
         // check if curr page has more
         if (pageIterator.hasNext()) return true;
         // check if other pages have values to spit
@@ -53,24 +137,29 @@ public class SampleIterator implements DbFileIterator {
         }
 
         //if this happens then idk what went wrong bro
-        //either numRows was way too big or something 
+        //either numRows was way too big or something
         return false;
     }
 
     @Override
     public Tuple next() throws DbException, TransactionAbortedException {
-        if (!hasNext()) throw new NoSuchElementException("No more tuples");
-        
+        if (!hasMoreRows()) throw new NoSuchElementException("No more tuples");
+
         if (pageIterator.hasNext()) {
             index++;
             return pageIterator.next();
         }
-        if (index >= numRows) throw new NoSuchElementException("No more tuples");
 
-        do {
+        if (directory != null) {
             this.pgNo++;
-            this.loadPage();
-        } while(!pageIterator.hasNext());
+            this.loadNonEmptyPage();
+        }
+        else {
+            do {
+                this.pgNo++;
+                this.loadPage();
+            } while(!pageIterator.hasNext());
+        }
 
         index++;
         return pageIterator.next();
@@ -87,6 +176,8 @@ public class SampleIterator implements DbFileIterator {
     public void rewind() throws DbException, TransactionAbortedException{
         this.index = 0;
         this.pgNo = 0;
-        this.loadPage();
+        if (directory == null) this.loadPage();
+        else if (numRows > 0) this.loadNonEmptyPage();
+        else this.pageIterator = Collections.emptyIterator();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,242 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SampleMaintainer keeps a SampleDBFile up to date as tuples are inserted into
+ * and deleted from its base table, so the sample family does not have to be
+ * rebuilt after every change.
+ * <p>
+ * Inserts continue the reservoir sampling the sample was built with: a uniform
+ * sample replaces a random row with probability n / N, and a stratified sample
+ * does the same within the new tuple's stratum once the stratum reaches its cap.
+ * A stratum still under its cap keeps every one of its tuples, making room by
+ * replacing a row of the largest stratum. Replaced rows are overwritten in place,
+ * so each nested size keeps its share of the new tuples.
+ * <p>
+ * Deletes tombstone the matching sample row, if any, by clearing its slot.
+ * Rows are matched by value, since sample rows are copies of the base table's
+ * and do not record the RecordId they were copied from. Duplicate rows are not
+ * told apart: deleting one of several identical base rows removes a matching
+ * sample row even if it was copied from another of them, so heavily duplicated
+ * rows end up under-represented after many deletes.
+ * <p>
+ * Deletes are compensated with random pairing (Gemulla et al., "A Dip in the
+ * Reservoir"): each delete is counted as one that hit the sample or one that
+ * missed it, and while some are uncompensated, an insert fills a hole with
+ * probability hits / (hits + misses) and is left out otherwise. Filling every
+ * hole would favour recent rows; this keeps every row equally likely to be
+ * sampled (within its stratum, for a stratified sample) under any mix of
+ * inserts and deletes. The counts are kept per stratum, in memory only.
+ * <p>
+ * The maintainer indexes the sample's rows in memory the first time it is used,
+ * by reading every page of the sample through the BufferPool.
+ */
+class SampleMaintainer {
+
+    private final SampleDBFile sample;
+    private final StratumKey stratumKey; // null for a uniform sample
+    private final Map<Long, Long> stratumCounts; // base table tuples per stratum
+    private final int stratumCap;
+    private final int maxSize;
+
+    private final List<RecordId> rows = new ArrayList<>();
+    private final Map<RecordId, Integer> rowPositions = new HashMap<>(); // rid -> index in rows
+    private final Map<Long, List<RecordId>> rowsByValue = new HashMap<>();
+    private final Map<Long, List<RecordId>> rowsByStratum = new HashMap<>();
+    // stratum key (0 for a uniform sample) -> uncompensated {hits, misses}
+    private final Map<Long, long[]> pendingDeletes = new HashMap<>();
+
+    /**
+     * @param sample        the sample family to maintain
+     * @param tid           the transaction reading the sample's pages
+     * @param stratumCounts the number of base table tuples in each stratum, updated
+     *                      as tuples are inserted and deleted. Ignored for uniform samples.
+     * @param stratumCap    the number of rows each stratum may have in the largest sample
+     */
+    SampleMaintainer(SampleDBFile sample, TransactionId tid, Map<Long, Long> stratumCounts, int stratumCap)
+            throws DbException, TransactionAbortedException {
+        this.sample = sample;
+        this.stratumKey = sample.isStratified() ? new StratumKey(sample.getStratifiedColumnSet(), sample.getTupleDesc()) : null;
+        this.stratumCounts = stratumCounts;
+        this.stratumCap = stratumCap;
+        List<Integer> sampleSizes = sample.getSampleSizes();
+        this.maxSize = sampleSizes.get(sampleSizes.size() - 1);
+
+        for(int pgNo = 0; pgNo < sample.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(sample.getId(), pgNo), Permissions.READ_ONLY);
+            for(Tuple t : (Iterable<Tuple>) page::iterator) index(t.getRecordId(), t);
+        }
+    }
+
+    /**
+     * Update the sample after t was inserted into the base table
+     *
+     * @param baseRows the number of tuples in the base table, including t
+     */
+    void insert(TransactionId tid, Tuple t, long baseRows) throws DbException, IOException, TransactionAbortedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Tuple copy = copyOf(t);
+
+        long key = stratumKey == null ? 0 : stratumKey.of(t);
+        long population = stratumKey == null ? baseRows : stratumCounts.merge(key, 1L, Long::sum);
+
+        long[] pending = pendingDeletes.get(key);
+        if(pending != null) {
+            // random pairing: compensate a delete instead of sampling
+            boolean fill = random.nextLong(pending[0] + pending[1]) < pending[0];
+            pending[fill ? 0 : 1]--;
+            if(pending[0] + pending[1] == 0) pendingDeletes.remove(key);
+            if(fill) {
+                if(rows.size() < maxSize) append(tid, copy);
+                else makeRoom(tid, key, copy);
+            }
+            return;
+        }
+
+        if(stratumKey == null) {
+            if(rows.size() < maxSize) append(tid, copy);
+            else {
+                long j = random.nextLong(baseRows);
+                if(j < rows.size()) replace(tid, rows.get((int) j), copy);
+            }
+            return;
+        }
+
+        List<RecordId> stratum = rowsByStratum.getOrDefault(key, Collections.emptyList());
+        if(stratum.size() < stratumCap) {
+            // The stratum is kept whole
+            if(rows.size() < maxSize) append(tid, copy);
+            else makeRoom(tid, key, copy);
+        }
+        else {
+            long j = random.nextLong(population);
+            if(j < stratum.size()) replace(tid, stratum.get((int) j), copy);
+        }
+    }
+
+    /**
+     * Add copy to a full sample in place of another row: a random row of a
+     * uniform sample, or of the largest stratum if it is larger than copy's
+     */
+    private void makeRoom(TransactionId tid, long key, Tuple copy) throws DbException, TransactionAbortedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(stratumKey == null) {
+            replace(tid, rows.get(random.nextInt(rows.size())), copy);
+            return;
+        }
+        List<RecordId> stratum = rowsByStratum.getOrDefault(key, Collections.emptyList());
+        List<RecordId> largest = largestStratum();
+        if(largest.size() > stratum.size() + 1) replace(tid, largest.get(random.nextInt(largest.size())), copy);
+    }
+
+    /**
+     * Update the sample after t was deleted from the base table
+     */
+    void delete(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        long key = stratumKey == null ? 0 : stratumKey.of(t);
+        if(stratumKey != null) stratumCounts.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+        long[] pending = pendingDeletes.computeIfAbsent(key, k -> new long[2]);
+
+        for(RecordId rid : rowsByValue.getOrDefault(valueKey(t), Collections.emptyList())) {
+            HeapPage page = getPage(tid, rid);
+            Tuple row = page.getTuple(rid.getTupleNumber());
+            if(sameValues(row, t)) {
+                page.deleteTuple(row);
+                page.markDirty(true, tid);
+                unindex(rid, row);
+                sample.adjustDirectory(rid.getPageId().getPageNumber(), -1);
+                pending[0]++;
+                return;
+            }
+        }
+        pending[1]++;
+    }
+
+    private void append(TransactionId tid, Tuple copy) throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, sample.getId(), copy);
+        index(copy.getRecordId(), copy);
+        sample.adjustDirectory(copy.getRecordId().getPageId().getPageNumber(), 1);
+    }
+
+    private void replace(TransactionId tid, RecordId victim, Tuple copy) throws DbException, TransactionAbortedException {
+        HeapPage page = getPage(tid, victim);
+        Tuple old = page.getTuple(victim.getTupleNumber());
+        unindex(victim, old);
+        page.replaceTuple(victim.getTupleNumber(), copy);
+        page.markDirty(true, tid);
+        index(victim, copy);
+    }
+
+    private HeapPage getPage(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException {
+        return (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+    }
+
+    private List<RecordId> largestStratum() {
+        List<RecordId> largest = Collections.emptyList();
+        for(List<RecordId> stratum : rowsByStratum.values()) {
+            if(stratum.size() > largest.size()) largest = stratum;
+        }
+        return largest;
+    }
+
+    private void index(RecordId rid, Tuple t) {
+        rowPositions.put(rid, rows.size());
+        rows.add(rid);
+        rowsByValue.computeIfAbsent(valueKey(t), k -> new ArrayList<>()).add(rid);
+        if(stratumKey != null) rowsByStratum.computeIfAbsent(stratumKey.of(t), k -> new ArrayList<>()).add(rid);
+    }
+
+    private void unindex(RecordId rid, Tuple t) {
+        // swap the last row into rid's position
+        int position = rowPositions.remove(rid);
+        RecordId last = rows.remove(rows.size() - 1);
+        if(position < rows.size()) {
+            rows.set(position, last);
+            rowPositions.put(last, position);
+        }
+
+        remove(rowsByValue, valueKey(t), rid);
+        if(stratumKey != null) remove(rowsByStratum, stratumKey.of(t), rid);
+    }
+
+    private static void remove(Map<Long, List<RecordId>> index, long key, RecordId rid) {
+        List<RecordId> list = index.get(key);
+        list.remove(rid);
+        if(list.isEmpty()) index.remove(key);
+    }
+
+    private Tuple copyOf(Tuple t) {
+        Tuple copy = new Tuple(sample.getTupleDesc());
+        for(int i = 0; i < copy.getTupleDesc().numFields(); i++) copy.setField(i, t.getField(i));
+        return copy;
+    }
+
+    private static long valueKey(Tuple t) {
+        long h = 0;
+        for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            h = (h + t.getField(i).hashCode()) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    private static boolean sameValues(Tuple a, Tuple b) {
+        for(int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if(!a.getField(i).equals(b.getField(i))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import simpledb.optimizer.QueryColumnSet;
+
+/**
+ * SampleMetadata describes how a sample family was built: the base table it was
+ * drawn from, its QueryColumnSet and cutoffs, how many base table tuples there
+ * were in total and in each stratum, and when it was built. It is recorded in
+ * the sample catalog (see {@link simpledb.common.Catalog#loadSampleCatalog}) so
+ * that sample families can be used after a restart without touching the base
+ * table, and is kept up to date as the sample is maintained.
+ */
+public class SampleMetadata {
+
+    private final int baseTableId;
+    private final QueryColumnSet qcs; // null for a uniform sample
+    private final List<Integer> cutoffs;
+    private final Map<Long, Long> stratumCounts; // stratum key -> base table tuples in the stratum
+    private final int stratumCap;
+    private final long buildTime;
+    private long baseTableRows;
+
+    /**
+     * @param baseTableId   the id of the table the sample was drawn from
+     * @param qcs           the stratified columns, or null for a uniform sample
+     * @param cutoffs       the nested sizes of the sample family
+     * @param stratumCounts the number of base table tuples in each stratum, by {@link StratumKey}
+     * @param stratumCap    the number of rows each stratum may have in the largest sample
+     * @param buildTime     when the sample was built, in milliseconds since the epoch
+     * @param baseTableRows the number of tuples in the base table
+     */
+    public SampleMetadata(int baseTableId, QueryColumnSet qcs, List<Integer> cutoffs, Map<Long, Long> stratumCounts,
+            int stratumCap, long buildTime, long baseTableRows) {
+        this.baseTableId = baseTableId;
+        this.qcs = qcs;
+        this.cutoffs = cutoffs;
+        this.stratumCounts = stratumCounts == null ? new HashMap<>() : new HashMap<>(stratumCounts);
+        this.stratumCap = stratumCap;
+        this.buildTime = buildTime;
+        this.baseTableRows = baseTableRows;
+    }
+
+    public int getBaseTableId() {
+        return baseTableId;
+    }
+
+    public QueryColumnSet getQueryColumnSet() {
+        return qcs;
+    }
+
+    public List<Integer> getCutoffs() {
+        return cutoffs;
+    }
+
+    /**
+     * @return the number of base table tuples in each stratum. The map is live:
+     *         it is updated as the sample is maintained.
+     */
+    public Map<Long, Long> getStratumCounts() {
+        return stratumCounts;
+    }
+
+    public int getStratumCap() {
+        return stratumCap;
+    }
+
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    public long getBaseTableRows() {
+        return baseTableRows;
+    }
+
+    public void setBaseTableRows(long baseTableRows) {
+        this.baseTableRows = baseTableRows;
+    }
+
+    /**
+     * Write this metadata to out, in the format read by {@link #read}
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(baseTableId);
+        out.writeLong(buildTime);
+        out.writeLong(baseTableRows);
+
+        out.writeInt(cutoffs.size());
+        for(int cutoff : cutoffs) out.writeInt(cutoff);
+
+        if(qcs == null) out.writeInt(-1);
+        else {
+            out.writeInt(qcs.getNumCols());
+            for(int column : qcs.getColumns()) out.writeInt(column);
+        }
+
+        out.writeInt(stratumCap);
+        out.writeInt(stratumCounts.size());
+        for(Map.Entry<Long, Long> entry : stratumCounts.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    /**
+     * Read metadata written by {@link #write}
+     */
+    public static SampleMetadata read(DataInputStream in) throws IOException {
+        int baseTableId = in.readInt();
+        long buildTime = in.readLong();
+        long baseTableRows = in.readLong();
+
+        List<Integer> cutoffs = new ArrayList<>();
+        int numCutoffs = in.readInt();
+        for(int i = 0; i < numCutoffs; i++) cutoffs.add(in.readInt());
+
+        QueryColumnSet qcs = null;
+        int numColumns = in.readInt();
+        if(numColumns >= 0) {
+            Integer[] columns = new Integer[numColumns];
+            for(int i = 0; i < numColumns; i++) columns[i] = in.readInt();
+            qcs = new QueryColumnSet(columns);
+        }
+
+        int stratumCap = in.readInt();
+        int numStrata = in.readInt();
+        Map<Long, Long> stratumCounts = new HashMap<>();
+        for(int i = 0; i < numStrata; i++) stratumCounts.put(in.readLong(), in.readLong());
+
+        return new SampleMetadata(baseTableId, qcs, Collections.unmodifiableList(cutoffs), stratumCounts,
+                stratumCap, buildTime, baseTableRows);
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import simpledb.common.LongIntHashMap;
+import simpledb.common.Type;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.optimizer.TableStats;
+
+/**
+ * StratifiedSampleBuilder builds every nested size of a stratified sample family
+ * in a single pass over the base table. Tuples are fed one at a time with
+ * {@link #add}, and {@link #finish} returns the rows of the sample family in the
+ * order they should be written to the SampleDBFile.
+ * <p>
+ * A stratum is a distinct combination of values of the QueryColumnSet's columns.
+ * The stratum of a tuple is found through a primitive long key (see
+ * {@link StratumKey}) in an open-addressing map, so feeding a tuple does not
+ * allocate.
+ * <p>
+ * For each size n_i in sampleSizes, the cap K_i is the number of rows a stratum
+ * may contribute to the sample of size n_i. When built from TableStats, the
+ * caps are first estimated from the histograms (see
+ * {@link TableStats#calculateCapForColumn}), which bounds the reservoir of each
+ * stratum while the table is read; {@link #finish} then sets each K_i to the
+ * largest cap, up to that bound, for which the strata actually seen fit in n_i.
+ * Each stratum keeps a uniform reservoir of K (the cap of the largest size)
+ * tuples. The first n_i rows of the output then hold, for each stratum,
+ * min(count, K_i) of its tuples.
+ * Rows left over because some strata are smaller than their cap are filled with
+ * tuples drawn uniformly from the rest of the table.
+ */
+public class StratifiedSampleBuilder {
+
+    private static final int INITIAL_STRATUM_CAPACITY = 4;
+
+    private final StratumKey stratumKey;
+    private final List<Integer> sampleSizes;
+    private final int[] caps;
+    private final int maxCap;
+    private boolean fitCaps = false; // whether finish() fits the caps to the strata seen
+
+    private final LongIntHashMap strata; // stratum key -> stratum index
+    private Tuple[][] reservoirs;
+    private int[] reservoirSizes;
+    private long[] stratumCounts;
+    private long[] stratumKeys;
+    private int numStrata = 0;
+
+    private final Reservoir overflow;
+
+    /**
+     * @param qcs         the columns to stratify on
+     * @param td          the TupleDesc of the base table
+     * @param sampleSizes the nested sizes of the sample family, in increasing order
+     * @param stats       statistics over the base table, used to derive the caps
+     */
+    public StratifiedSampleBuilder(QueryColumnSet qcs, TupleDesc td, List<Integer> sampleSizes, TableStats stats) {
+        this(qcs, td, sampleSizes, capsFromStats(qcs, td, sampleSizes, stats));
+        this.fitCaps = true;
+    }
+
+    /**
+     * Like {@link #StratifiedSampleBuilder(QueryColumnSet, TupleDesc, List, TableStats)},
+     * with the caps given, e.g. when the base table is still being loaded and
+     * there are no stats to derive them from
+     *
+     * @param caps the rows a stratum may contribute to each of sampleSizes
+     */
+    public StratifiedSampleBuilder(QueryColumnSet qcs, TupleDesc td, List<Integer> sampleSizes, int[] caps) {
+        if(caps.length != sampleSizes.size()) throw new IllegalArgumentException("need one cap per sample size");
+        this.stratumKey = new StratumKey(qcs, td);
+        this.sampleSizes = sampleSizes;
+        this.caps = caps.clone();
+        this.maxCap = caps[caps.length - 1];
+
+        this.strata = new LongIntHashMap();
+        this.reservoirs = new Tuple[16][];
+        this.reservoirSizes = new int[16];
+        this.stratumCounts = new long[16];
+        this.stratumKeys = new long[16];
+        this.overflow = new Reservoir(sampleSizes.get(sampleSizes.size() - 1));
+    }
+
+    /**
+     * Feed a tuple of the base table to the builder
+     */
+    public void add(Tuple t) {
+        long key = stratumKey.of(t);
+        int stratum = strata.get(key);
+        if(stratum == LongIntHashMap.NO_VALUE) stratum = newStratum(key);
+
+        long seen = stratumCounts[stratum]++;
+        Tuple[] reservoir = reservoirs[stratum];
+        int size = reservoirSizes[stratum];
+
+        if(size < maxCap) {
+            if(size == reservoir.length) {
+                reservoir = Arrays.copyOf(reservoir, Math.min(maxCap, size * 2));
+                reservoirs[stratum] = reservoir;
+            }
+            reservoir[size] = t;
+            reservoirSizes[stratum] = size + 1;
+        }
+        else {
+            long j = ThreadLocalRandom.current().nextLong(seen + 1);
+            if(j < maxCap) reservoir[(int) j] = t;
+        }
+
+        overflow.add(t);
+    }
+
+    private static int[] capsFromStats(QueryColumnSet qcs, TupleDesc td, List<Integer> sampleSizes, TableStats stats) {
+        int[] caps = new int[sampleSizes.size()];
+        for(int i = 0; i < caps.length; i++) caps[i] = capFromStats(qcs, td, sampleSizes.get(i), stats);
+        return caps;
+    }
+
+    /**
+     * @return the cap of a sample of sampleSize rows stratified on qcs, as
+     *         estimated from the histograms of stats before the table is read
+     */
+    public static int capFromStats(QueryColumnSet qcs, TupleDesc td, int sampleSize, TableStats stats) {
+        // Split the sample evenly between the groups of each stratified column
+        int cap = sampleSize;
+        for(int column : qcs.getColumns()) {
+            if(td.getFieldType(column) == Type.INT_TYPE) cap = stats.calculateCapForColumn(cap, column);
+        }
+        return Math.max(1, cap);
+    }
+
+    /**
+     * Set each cap to the largest one, up to maxCap, for which the strata seen
+     * contribute at most the size it is the cap of. The histograms the caps
+     * were estimated from group values into buckets, so they can be far off
+     * the number of strata.
+     */
+    private void fitCapsToStrata() {
+        long[] sizes = new long[numStrata];
+        for(int s = 0; s < numStrata; s++) sizes[s] = reservoirSizes[s];
+        for(int i = 0; i < caps.length; i++) caps[i] = fitCap(sizes, maxCap, sampleSizes.get(i));
+    }
+
+    /**
+     * @param strataSizes the rows of each stratum
+     * @param bound       the largest cap to consider
+     * @return the largest cap, up to bound, with which the strata contribute
+     *         at most sampleSize rows (at least 1)
+     */
+    public static int fitCap(long[] strataSizes, int bound, int sampleSize) {
+        int lo = 1, hi = bound;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(rowsWithCap(strataSizes, mid) <= sampleSize) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the rows strata of the given sizes contribute with the given cap
+     */
+    public static long rowsWithCap(long[] strataSizes, int cap) {
+        long rows = 0;
+        for(long size : strataSizes) rows += Math.min(cap, size);
+        return rows;
+    }
+
+    private int newStratum(long key) {
+        int stratum = numStrata++;
+        if(stratum == reservoirs.length) {
+            reservoirs = Arrays.copyOf(reservoirs, stratum * 2);
+            reservoirSizes = Arrays.copyOf(reservoirSizes, stratum * 2);
+            stratumCounts = Arrays.copyOf(stratumCounts, stratum * 2);
+            stratumKeys = Arrays.copyOf(stratumKeys, stratum * 2);
+        }
+        stratumKeys[stratum] = key;
+        reservoirs[stratum] = new Tuple[Math.min(maxCap, INITIAL_STRATUM_CAPACITY)];
+        strata.put(key, stratum);
+        return stratum;
+    }
+
+    /**
+     * Lay out the sample family so that, for every n_i in sampleSizes, the first
+     * n_i rows form the stratified sample of size n_i. Each size's new rows are
+     * shuffled before being appended.
+     *
+     * @return the rows of the sample family, at most the largest of sampleSizes
+     */
+    public List<Tuple> finish() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(fitCaps) fitCapsToStrata();
+
+        // Tuples in a stratum reservoir must not be used again to fill up a size
+        Set<Tuple> stratified = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(int s = 0; s < numStrata; s++) {
+            List<Tuple> reservoir = Arrays.asList(reservoirs[s]).subList(0, reservoirSizes[s]);
+            Collections.shuffle(reservoir, random);
+            stratified.addAll(reservoir);
+        }
+        List<Tuple> fill = overflow.getTuples();
+        Collections.shuffle(fill, random);
+        int fillPos = 0;
+
+        List<Tuple> result = new ArrayList<>();
+        List<Tuple> carry = new ArrayList<>();
+        int prevCap = 0;
+
+        for(int i = 0; i < caps.length; i++) {
+            List<Tuple> level = new ArrayList<>(carry);
+            carry.clear();
+            for(int s = 0; s < numStrata; s++) {
+                int end = Math.min(caps[i], reservoirSizes[s]);
+                for(int j = prevCap; j < end; j++) level.add(reservoirs[s][j]);
+            }
+
+            int target = sampleSizes.get(i) - result.size();
+            if(level.size() > target) {
+                // More strata than the caps assumed: push the rest to the next size
+                Collections.shuffle(level, random);
+                carry.addAll(level.subList(target, level.size()));
+                level.subList(target, level.size()).clear();
+            }
+            while(level.size() < target && fillPos < fill.size()) {
+                Tuple t = fill.get(fillPos++);
+                if(stratified.add(t)) level.add(t);
+            }
+
+            Collections.shuffle(level, random);
+            result.addAll(level);
+            prevCap = caps[i];
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the per-stratum caps, one for each of sampleSizes, as fitted by
+     *         {@link #finish} once it has been called
+     */
+    public int[] getCaps() {
+        return caps.clone();
+    }
+
+    /**
+     * @return the number of base table tuples fed to the builder for each stratum, by stratum key
+     */
+    public Map<Long, Long> getStratumCounts() {
+        Map<Long, Long> counts = new HashMap<>();
+        for(int s = 0; s < numStrata; s++) counts.put(stratumKeys[s], stratumCounts[s]);
+        return counts;
+    }
+
+    /**
+     * @return the number of base table tuples fed to the builder
+     */
+    public long getNumSeen() {
+        return overflow.getNumSeen();
+    }
+
+    /**
+     * @return the number of distinct strata seen so far
+     */
+    public int numStrata() {
+        return this.numStrata;
+    }
+}
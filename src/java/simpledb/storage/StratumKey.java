@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.optimizer.QueryColumnSet;
+
+/**
+ * StratumKey maps a tuple to a primitive long identifying its stratum, i.e. its
+ * combination of values over the columns of a QueryColumnSet. When there are
+ * at most two int columns the key is the values themselves packed into a long
+ * (so distinct strata always have distinct keys); otherwise it is a 64-bit
+ * hash of the values.
+ */
+public class StratumKey {
+
+    private final int[] columns;
+    private final boolean packed;
+
+    /**
+     * @param qcs the columns to stratify on
+     * @param td  the TupleDesc of the tuples that will be keyed
+     */
+    public StratumKey(QueryColumnSet qcs, TupleDesc td) {
+        this.columns = qcs.getColumns().stream().mapToInt(Integer::intValue).sorted().toArray();
+        boolean allInts = true;
+        for(int column : columns) allInts &= td.getFieldType(column) == Type.INT_TYPE;
+        this.packed = allInts && columns.length <= 2;
+    }
+
+    /**
+     * @return the key of the stratum t belongs to
+     */
+    public long of(Tuple t) {
+        if(packed) {
+            long key = 0;
+            for(int column : columns) key = (key << 32) | (((IntField) t.getField(column)).getValue() & 0xFFFFFFFFL);
+            return key;
+        }
+
+        long h = 0;
+        for(int column : columns) {
+            Field f = t.getField(column);
+            int v = f.getType() == Type.INT_TYPE ? ((IntField) f).getValue() : f.hashCode();
+            h = (h + v) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    /**
+     * @return the stratified columns, in increasing order
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+}
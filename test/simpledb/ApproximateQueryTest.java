@@ -0,0 +1,218 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.intField;
+import static simpledb.systemtest.SystemTestUtil.runSingle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SeqScanPageSample;
+import simpledb.optimizer.ApproximateClause;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ApproximateQueryTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 10000;
+    private static final int SAMPLE_ROWS = SystemTestUtil.SAMPLE_SIZES.get(SystemTestUtil.SAMPLE_SIZES.size() - 1);
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, null, null, "c");
+        Database.getCatalog().addTable(hf, "TA");
+        TableStats.setTableStats("TA", new TableStats(hf.getId(), 19));
+        SystemTestUtil.createUniformSample(hf, "sample-approx");
+        tid = new TransactionId();
+    }
+
+    private Tuple run(String sql) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        return runSingle(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+    }
+
+    /**
+     * The clauses should be taken out of the statement
+     */
+    @Test
+    public void testParseClauses() throws Exception {
+        ApproximateClause clause = ApproximateClause.parse("SELECT AVG(c1) FROM TA ERROR WITHIN 5% AT CONFIDENCE 90%;");
+        assertEquals("SELECT AVG(c1) FROM TA;", clause.getStatement());
+        assertEquals(0.05, clause.getErrorTarget(), 1e-9);
+        assertEquals(0.9, clause.getConfidence(), 1e-9);
+        assertEquals(-1, clause.getLatencyMs());
+
+        clause = ApproximateClause.parse("SELECT COUNT(c0) FROM TA WHERE c0 > 5 within 200 ms;");
+        assertEquals("SELECT COUNT(c0) FROM TA WHERE c0 > 5;", clause.getStatement());
+        assertEquals(200, clause.getLatencyMs());
+        assertEquals(ApproximateClause.DEFAULT_CONFIDENCE, clause.getConfidence(), 1e-9);
+
+        assertFalse(ApproximateClause.parse("SELECT * FROM TA;").isApproximate());
+
+        // only clauses at the end of the statement count, in either order
+        clause = ApproximateClause.parse("SELECT COUNT(c0) FROM TA WHERE c0 = ' within 3 ms';");
+        assertFalse(clause.isApproximate());
+        clause = ApproximateClause.parse("SELECT AVG(c1) FROM TA WITHIN 100 MS ERROR WITHIN 10%;");
+        assertEquals("SELECT AVG(c1) FROM TA;", clause.getStatement());
+        assertEquals(100, clause.getLatencyMs());
+        assertEquals(0.1, clause.getErrorTarget(), 1e-9);
+        clause = ApproximateClause.parse("SELECT AVG(c1) FROM TA ERROR WITHIN 10% WITHIN 100 MS");
+        assertEquals("SELECT AVG(c1) FROM TA", clause.getStatement());
+        assertEquals(100, clause.getLatencyMs());
+        assertEquals(0.1, clause.getErrorTarget(), 1e-9);
+
+        clause = ApproximateClause.parse("SELECT SUM(c1) FROM TA TABLESAMPLE SYSTEM (12.5) REPEATABLE (3) WHERE c0 > 5;");
+        assertEquals("SELECT SUM(c1) FROM TA WHERE c0 > 5;", clause.getStatement());
+        assertEquals(0.125, clause.getPageFraction(), 1e-9);
+        assertEquals(Long.valueOf(3), clause.getPageSeed());
+        assertTrue(clause.isApproximate());
+
+        // TABLESAMPLE only counts right after a table of the FROM list
+        clause = ApproximateClause.parse("SELECT COUNT(c0) FROM TA t TABLESAMPLE SYSTEM (10);");
+        assertEquals("SELECT COUNT(c0) FROM TA t;", clause.getStatement());
+        assertEquals(0.1, clause.getPageFraction(), 1e-9);
+        String quoted = "SELECT COUNT(c0) FROM TA WHERE c0 = 'from x tablesample system (5)';";
+        clause = ApproximateClause.parse(quoted);
+        assertFalse(clause.isApproximate());
+        assertEquals(quoted, clause.getStatement());
+    }
+
+    /**
+     * TABLESAMPLE SYSTEM should read only some of the pages, and scale the answer up
+     */
+    @Test
+    public void testTableSample() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT COUNT(c0) FROM TA TABLESAMPLE SYSTEM (25) REPEATABLE (7);");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        Tuple result = plan.next();
+        plan.close();
+
+        SeqScanPageSample scan = SeqScanPageSample.find(plan);
+        assertTrue(scan.totalTuples() < NUM_ROWS / 2);
+        assertEquals(NUM_ROWS, intField(result, 0), 0.1 * NUM_ROWS);
+        // (estimate, error, low, high)
+        assertEquals(4, result.getTupleDesc().numFields());
+
+        // without an aggregate the sampled rows themselves are returned
+        lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM TA TABLESAMPLE SYSTEM (25) REPEATABLE (7);");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        int rows = 0;
+        while(plan.hasNext()) {
+            plan.next();
+            rows++;
+        }
+        plan.close();
+        assertEquals(scan.totalTuples(), rows);
+    }
+
+    /**
+     * With similar rows stored together, the error of a TABLESAMPLE SYSTEM
+     * estimate should come from the spread of the pages, not of the rows
+     */
+    @Test
+    public void testTableSampleClusteredError() throws Exception {
+        // c0 is the row number, so each page holds a narrow range of it
+        int rows = 50000;
+        List<List<Integer>> tuples = new ArrayList<>();
+        for(int i = 0; i < rows; i++) tuples.add(Arrays.asList(i, 0));
+        File f = File.createTempFile("approx-sorted", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, "c", f);
+        Database.getCatalog().addTable(hf, "TC");
+        TableStats.setTableStats("TC", new TableStats(hf.getId(), 19));
+
+        long truth = (long) rows * (rows - 1) / 2;
+        int runs = 40, covered = 0;
+        for(int seed = 0; seed < runs; seed++) {
+            // (estimate, error, low, high)
+            Tuple result = run("SELECT SUM(c0) FROM TC TABLESAMPLE SYSTEM (20) REPEATABLE (" + seed + ");");
+            if(intField(result, 2) <= truth && truth <= intField(result, 3)) covered++;
+        }
+        // a 95% interval; the per-row error would cover the truth in only a few runs
+        assertTrue("covered " + covered + " of " + runs, covered >= 0.8 * runs);
+    }
+
+    /**
+     * ERROR WITHIN should be answered from the sample, stopping once the error is met
+     */
+    @Test
+    public void testErrorWithin() throws Exception {
+        Tuple result = run("SELECT AVG(c1) FROM TA WHERE c0 > 1000 ERROR WITHIN 5% AT CONFIDENCE 80%;");
+        int rows = intField(result, 2);
+        assertTrue(rows >= 100 && rows < SAMPLE_ROWS);
+        // values are uniform in [0, 65536)
+        assertTrue(Math.abs(intField(result, 0) - 32768) < 0.2 * 32768);
+    }
+
+    /**
+     * ERROR WITHIN over a stratified family should weight each stratum by its
+     * own sampling rate, not scale every row by the same factor
+     */
+    @Test
+    public void testErrorWithinStratified() throws Exception {
+        // c0 is 0 for 9100 rows and each of 1..9 for 100 rows, c1 is ten times c0
+        List<List<Integer>> tuples = new ArrayList<>();
+        for(int i = 0; i < NUM_ROWS; i++) {
+            int v = i < 900 ? i % 9 + 1 : 0;
+            tuples.add(Arrays.asList(v, v * 10));
+        }
+        File f = File.createTempFile("approx-skewed", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, "c", f);
+        Database.getCatalog().addTable(hf, "TS");
+        TableStats.setTableStats("TS", new TableStats(hf.getId(), 19));
+
+        File sampleFile = File.createTempFile("approx-stratified", "dat");
+        sampleFile.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(sampleFile, Arrays.asList(200), new QueryColumnSet(0), hf.getTupleDesc());
+        Database.getCatalog().addTable(sf, "approx-stratified", "", true);
+        sf.createStratifiedSamples(hf);
+
+        // the rare strata are over-represented, scaling them all by 10000 / 200 would give about 450000
+        Tuple result = run("SELECT SUM(c1) FROM TS ERROR WITHIN 5%;");
+        assertEquals(45000, intField(result, 0));
+    }
+
+    /**
+     * WITHIN MS should scale the answer by the rows read in time
+     */
+    @Test
+    public void testWithinMs() throws Exception {
+        Tuple result = run("SELECT COUNT(c0) FROM TA WITHIN 60000 MS;");
+        assertEquals(NUM_ROWS, intField(result, 0));
+    }
+
+    /**
+     * Only ungrouped SUM, AVG and COUNT can be approximated
+     */
+    @Test(expected = ParsingException.class)
+    public void testGroupByRejected() throws Exception {
+        run("SELECT c0, AVG(c1) FROM TA GROUP BY c0 ERROR WITHIN 5%;");
+    }
+}
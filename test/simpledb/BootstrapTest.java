@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Bootstrap;
+import simpledb.execution.OpIterator;
+import simpledb.execution.PoissonBootstrap;
+import simpledb.execution.RunningStats;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.SampleSelector;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class BootstrapTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+    private static final int MATCHING = 500;
+    private static final long TOTAL_ROWS = 100000;
+
+    private static int[] values() {
+        Random random = new Random(3);
+        int[] values = new int[MATCHING];
+        for(int i = 0; i < MATCHING; i++) values[i] = random.nextInt(10000);
+        return values;
+    }
+
+    private static RunningStats stats(int[] values) {
+        RunningStats stats = new RunningStats();
+        for(int v : values) stats.add(v);
+        return stats;
+    }
+
+    /**
+     * The bootstrap should agree with the closed forms where there are some
+     */
+    @Test
+    public void testMatchesClosedForm() {
+        int[] values = values();
+        RunningStats stats = stats(values);
+        for(Aggregator.Op op : Arrays.asList(Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT)) {
+            double expected = stats.standardError(op, ROWS, TOTAL_ROWS);
+
+            Bootstrap parallel = Bootstrap.resample(values, MATCHING, ROWS, TOTAL_ROWS, op, 400);
+            assertEquals(stats.estimate(op, ROWS, TOTAL_ROWS), parallel.getEstimate(), 1e-6);
+            assertEquals(expected, parallel.getStandardError(), 0.2 * expected);
+
+            PoissonBootstrap poisson = new PoissonBootstrap(400);
+            for(int v : values) poisson.add(v);
+            Bootstrap single = poisson.finish(ROWS, TOTAL_ROWS, op);
+            assertEquals(parallel.getEstimate(), single.getEstimate(), 1e-6);
+            assertEquals(expected, single.getStandardError(), 0.2 * expected);
+            assertTrue(single.getLow(0.95) <= single.getEstimate() && single.getEstimate() <= single.getHigh(0.95));
+        }
+    }
+
+    /**
+     * MIN and MAX should get an interval too, on the right side of the estimate
+     */
+    @Test
+    public void testMinMax() {
+        int[] values = values();
+        Bootstrap max = Bootstrap.resample(values, MATCHING, ROWS, TOTAL_ROWS, Aggregator.Op.MAX, 200);
+        assertEquals(Arrays.stream(values).max().getAsInt(), max.getEstimate(), 1e-9);
+        assertTrue(max.getHigh(0.95) <= max.getEstimate());
+        assertTrue(max.getError(0.95) > 0);
+
+        Bootstrap min = Bootstrap.resample(values, MATCHING, ROWS, TOTAL_ROWS, Aggregator.Op.MIN, 200);
+        assertTrue(min.getLow(0.95) >= min.getEstimate());
+    }
+
+    /**
+     * SampleSelector should answer MAX over a sample with a bootstrapped error
+     */
+    @Test
+    public void testErrorBoundedMax() throws Exception {
+        int rows = 10000, sampleRows = 1000;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        File f = File.createTempFile("sample-bootstrap", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, Arrays.asList(100, sampleRows), null, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(sf, "sample-bootstrap", "", true);
+        sf.createUniformSamples(hf);
+
+        OpIterator query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, -1, Aggregator.Op.MAX);
+        OpIterator bounded = SampleSelector.errorBoundedQuery(sf.getId(), query, rows, 0.05);
+        bounded.open();
+        Tuple t = bounded.next();
+        bounded.close();
+        assertEquals(sampleRows, ((IntField) t.getField(2)).getValue());
+        assertTrue(((IntField) t.getField(0)).getValue() > 60000);
+
+        query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, -1, Aggregator.Op.MAX);
+        assertTrue(SampleSelector.calculateError(sf.getId(), 100, rows, query) > 0);
+    }
+
+    /**
+     * Grouped MAX should get a bootstrapped error per group, but can't be error bounded
+     */
+    @Test
+    public void testGroupedMax() throws Exception {
+        int rows = 10000;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 5, null, null);
+        File f = File.createTempFile("sample-bootstrap-grouped", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, Arrays.asList(100, 1000), null, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(sf, "sample-bootstrap-grouped", "", true);
+        sf.createUniformSamples(hf);
+
+        OpIterator query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, 0, Aggregator.Op.MAX);
+        double error = SampleSelector.calculateError(sf.getId(), 1000, rows, query);
+        assertTrue(error >= 0 && error < Double.POSITIVE_INFINITY);
+
+        query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, 0, Aggregator.Op.MAX);
+        try {
+            SampleSelector.errorBoundedQuery(sf.getId(), query, rows, 0.05);
+            fail("grouped MAX has no error to stop on");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static void read(BufferPool pool, HeapFile hf, int pgNo) throws Exception {
+        pool.getPage(new TransactionId(), new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Pages used again should stay in the pool while a large scan streams through it
+     */
+    @Test
+    public void testScanResistant() throws Exception {
+        BufferPool pool = Database.resetBufferPool(8);
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, null);
+        assertEquals(2, hot.numPages());
+        assertTrue(big.numPages() > 20);
+
+        read(pool, hot, 0);
+        read(pool, hot, 1);
+        for(int pgNo = 0; pgNo < 8; pgNo++) read(pool, big, pgNo);
+        assertFalse(pool.isCached(new HeapPageId(hot.getId(), 0)));
+
+        // read again soon after leaving the ring, so they are kept from now on
+        read(pool, hot, 0);
+        read(pool, hot, 1);
+        for(int pgNo = 8; pgNo < big.numPages(); pgNo++) read(pool, big, pgNo);
+        assertTrue(pool.isCached(new HeapPageId(hot.getId(), 0)));
+        assertTrue(pool.isCached(new HeapPageId(hot.getId(), 1)));
+        assertFalse(pool.isCached(new HeapPageId(big.getId(), 8)));
+        assertTrue(pool.isCached(new HeapPageId(big.getId(), big.numPages() - 1)));
+    }
+}
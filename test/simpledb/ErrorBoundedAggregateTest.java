@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.intField;
+import static simpledb.systemtest.SystemTestUtil.runSingle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.ErrorBoundedAggregate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SampleAggregate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SeqScanSample;
+import simpledb.optimizer.SampleSelector;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ErrorBoundedAggregateTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 10000;
+    private static final int SAMPLE_ROWS = SystemTestUtil.SAMPLE_SIZES.get(SystemTestUtil.SAMPLE_SIZES.size() - 1);
+
+    private HeapFile hf;
+    private SampleDBFile sf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, null, null);
+        sf = SystemTestUtil.createUniformSample(hf, "sample-bounded");
+    }
+
+    /**
+     * A loose target should be met before the whole sample is read
+     */
+    @Test
+    public void testStopsEarly() throws Exception {
+        // values are uniform in [0, 65536): AVG needs ~220 rows for 5% at 80% confidence
+        Tuple result = runSingle(new ErrorBoundedAggregate(new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS),
+                1, Aggregator.Op.AVG, NUM_ROWS, 0.05, 0.8));
+        int rows = intField(result, 2);
+        assertTrue(rows >= 100 && rows < SAMPLE_ROWS);
+        assertTrue(intField(result, 1) <= 0.05 * intField(result, 0) + 1);
+    }
+
+    /**
+     * A target the sample cannot meet should read all of it
+     */
+    @Test
+    public void testReadsWholeSample() throws Exception {
+        Tuple result = runSingle(new ErrorBoundedAggregate(new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS),
+                1, Aggregator.Op.SUM, NUM_ROWS, 0.001, 0.8));
+        assertEquals(SAMPLE_ROWS, intField(result, 2));
+        assertTrue(intField(result, 1) > 0.001 * intField(result, 0));
+    }
+
+    /**
+     * SampleSelector should build the bounded query from an aggregate over the base table
+     */
+    @Test
+    public void testErrorBoundedQuery() throws Exception {
+        OpIterator query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, -1, Aggregator.Op.AVG);
+        Tuple result = runSingle(SampleSelector.errorBoundedQuery(sf.getId(), query, NUM_ROWS, 0.05));
+        assertTrue(intField(result, 2) < SAMPLE_ROWS);
+    }
+
+    /**
+     * A sample where column 0 is 1 for every tenth row and 0 otherwise, and
+     * column 1 is uniform in [0, 65536)
+     */
+    private SampleDBFile groupedSample(int rows, int sampleRows) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        Random random = new Random(17);
+        for(int i = 0; i < rows; i++) tuples.add(Arrays.asList(i % 10 == 0 ? 1 : 0, random.nextInt(65536)));
+        File f = File.createTempFile("grouped-base", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile base = Utility.openHeapFile(2, f);
+
+        File sampleFile = File.createTempFile("grouped-sample", "dat");
+        sampleFile.deleteOnExit();
+        SampleDBFile grouped = new SampleDBFile(sampleFile, Arrays.asList(100, 500, sampleRows), null, base.getTupleDesc());
+        Database.getCatalog().addTable(grouped, "grouped-sample", "", true);
+        grouped.createUniformSamples(base);
+        return grouped;
+    }
+
+    /**
+     * With a group by, the rare group should decide when to stop, and every
+     * group should meet the target
+     */
+    @Test
+    public void testGroupsStopOnWorstGroup() throws Exception {
+        int rows = 20000, sampleRows = 5000;
+        SampleDBFile grouped = groupedSample(rows, sampleRows);
+
+        Tuple overall = runSingle(new ErrorBoundedAggregate(new SeqScanSample(new TransactionId(), grouped.getId(), sampleRows),
+                1, Aggregator.Op.AVG, rows, 0.05, 0.8));
+
+        OpIterator query = new ErrorBoundedAggregate(new SeqScanSample(new TransactionId(), grouped.getId(), sampleRows),
+                1, 0, Aggregator.Op.AVG, rows, 0.05, 0.8);
+        Map<Integer, Tuple> groups = new HashMap<>();
+        query.open();
+        while(query.hasNext()) {
+            Tuple t = query.next();
+            groups.put(intField(t, 0), t);
+        }
+        query.close();
+
+        assertEquals(2, groups.size());
+        for(Tuple t : groups.values()) assertTrue(intField(t, 2) <= 0.05 * intField(t, 1) + 1);
+        // the rare group needs ~10 times the rows of the whole table
+        int groupRows = intField(groups.get(1), 3);
+        assertTrue(groupRows > 5 * intField(overall, 2) && groupRows < sampleRows);
+    }
+
+    /**
+     * SampleAggregate should give each group its own error and interval
+     */
+    @Test
+    public void testSampleAggregateGroupErrors() throws Exception {
+        int rows = 20000, sampleRows = 5000;
+        SampleDBFile grouped = groupedSample(rows, sampleRows);
+
+        Aggregate avg = new Aggregate(new SeqScanSample(new TransactionId(), grouped.getId(), sampleRows), 1, 0, Aggregator.Op.AVG);
+        SampleAggregate estimate = new SampleAggregate(avg, sampleRows, rows, Aggregator.Op.AVG, 0.95);
+        assertEquals(5, estimate.getTupleDesc().numFields());
+
+        Map<Integer, Tuple> groups = new HashMap<>();
+        estimate.open();
+        while(estimate.hasNext()) {
+            Tuple t = estimate.next();
+            groups.put(intField(t, 0), t);
+        }
+        estimate.close();
+
+        assertEquals(2, groups.size());
+        for(Tuple t : groups.values()) {
+            assertTrue(intField(t, 3) <= intField(t, 1) && intField(t, 1) <= intField(t, 4));
+            assertEquals(intField(t, 2), intField(t, 4) - intField(t, 1), 1);
+        }
+        // a tenth of the rows, so about three times the error
+        assertTrue(intField(groups.get(1), 2) > 2 * intField(groups.get(0), 2));
+    }
+
+    /**
+     * A group with a single row gives no idea of its error, so it shouldn't count as exact
+     */
+    @Test
+    public void testSingleRowGroupError() throws Exception {
+        // column 1 is random, so almost every group has one row
+        OpIterator query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 0, 1, Aggregator.Op.AVG);
+        assertEquals(Double.POSITIVE_INFINITY, SampleSelector.calculateError(sf.getId(), 100, NUM_ROWS, query), 0);
+    }
+}
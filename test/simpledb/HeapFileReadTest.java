@@ -81,6 +81,19 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPages(): the same pages as readPage(), read at once
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        List<Page> pages = bigFile.readPages(1, 10);
+        assertEquals(bigFile.numPages() - 1, pages.size());
+        for (Page page : pages) {
+            assertArrayEquals(bigFile.readPage(page.getId()).getPageData(), page.getPageData());
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -90,6 +90,67 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts should go straight to pages with room, and the free-space map
+     * should be kept on disk next to the file
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        FreeSpaceMap.fileFor(empty.getFile()).deleteOnExit();
+        Tuple onPage1 = null;
+        for (int i = 0; i < 504 * 3 + 1; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+            if (i == 504) onPage1 = t;
+        }
+        FreeSpaceMap map = empty.getFreeSpaceMap();
+        assertEquals(3, map.pageWithRoom());
+        assertEquals(0, map.getFreeSlots(0));
+
+        Database.getBufferPool().deleteTuple(tid, onPage1);
+        assertEquals(1, map.pageWithRoom());
+        Tuple t = Utility.getHeapTuple(7, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(3, map.pageWithRoom());
+
+        // once the pages are written, a new HeapFile over the file loads the same map
+        Database.getBufferPool().flushAllPages();
+        empty.bulkAppend(Arrays.asList(Utility.getHeapTuple(0, 2)));
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        FreeSpaceMap reloaded = reopened.getFreeSpaceMap();
+        assertEquals(0, reloaded.getFreeSlots(1));
+        assertEquals(503, reloaded.getFreeSlots(3));
+        assertEquals(503, reloaded.getFreeSlots(4));
+        assertEquals(3, reloaded.pageWithRoom());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkAppend()
+     */
+    @Test public void bulkAppend() throws Exception {
+        // 504 tuples fill exactly one page, the rest go on a partially filled second page
+        Tuple[] tuples = new Tuple[600];
+        for (int i = 0; i < tuples.length; ++i) tuples[i] = Utility.getHeapTuple(i, 2);
+        int numPages = empty.numPages();
+        empty.bulkAppend(Arrays.asList(tuples));
+        assertEquals(numPages + 2, empty.numPages());
+
+        // tuples should come back in the order they were appended, and the originals are untouched
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        for (int i = 0; i < tuples.length; ++i) {
+            assertTrue(it.hasNext());
+            assertTrue(TestUtil.compareTuples(tuples[i], it.next()));
+            assertEquals(new RecordId(new HeapPageId(1, 2), 3), tuples[i].getRecordId());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+
+        // appending again starts a new page after the existing ones
+        empty.bulkAppend(Arrays.asList(Utility.getHeapTuple(0, 2)));
+        assertEquals(numPages + 3, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
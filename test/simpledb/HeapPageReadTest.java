@@ -123,6 +123,32 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * A page changed after being read should still serialize the slots it
+     * never decoded, and give back the page as read as its before image
+     */
+    @Test public void lazySlots() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        Tuple t = page.getTuple(3);
+        assertEquals(EXAMPLE_VALUES[3][0], ((IntField) t.getField(0)).getValue());
+        page.deleteTuple(page.getTuple(5));
+        page.insertTuple(Utility.getHeapTuple(new int[] { -1, -2 }));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        assertEquals(20, 504 - reread.getNumUnusedSlots());
+        assertEquals(-1, ((IntField) reread.getTuple(5).getField(0)).getValue());
+        for (int i = 0; i < 20; ++i) {
+            if (i == 5) continue;
+            assertEquals(EXAMPLE_VALUES[i][1], ((IntField) reread.getTuple(i).getField(1)).getValue());
+        }
+
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+        page.setBeforeImage();
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
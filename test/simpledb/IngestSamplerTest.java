@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.SampleDBFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class IngestSamplerTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 5000;
+
+    private static int count(DbFileIterator it) throws Exception {
+        int rows = 0;
+        it.open();
+        while(it.hasNext()) {
+            it.next();
+            rows++;
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Converting with a sample spec should build and record the families in the same pass
+     */
+    @Test
+    public void testConvertWithSamples() throws Exception {
+        File dir = Files.createTempDirectory("ingest").toFile();
+        File txt = new File(dir, "feed.txt");
+        try (FileWriter w = new FileWriter(txt)) {
+            for(int i = 0; i < NUM_ROWS; i++) w.write((i % 10) + "," + i + "\n");
+        }
+        File catalogFile = new File(dir, "feed.samples");
+
+        SimpleDb.main(new String[]{"convert", txt.getPath(), "2", "int,int", ",",
+                "--sample", catalogFile.getPath(), "100,500", "uniform", "0", "cap=40"});
+
+        HeapFile hf = Utility.openHeapFile(2, new File(dir, "feed.dat"));
+        assertEquals(NUM_ROWS, count(hf.iterator(new TransactionId())));
+
+        SampleDBFile uniform = Database.getCatalog().getSampleDBFile(Database.getCatalog().getTableId("feed-uniform"));
+        assertEquals(hf.getId(), uniform.getBaseTableId());
+        assertEquals(NUM_ROWS, uniform.getBaseTableRows());
+        assertEquals(500, count(uniform.iterator(new TransactionId(), 500)));
+
+        SampleDBFile strat = Database.getCatalog().getSampleDBFile(Database.getCatalog().getTableId("feed-strat-0"));
+        assertEquals(new QueryColumnSet(0), strat.getStratifiedColumnSet());
+        assertEquals(10, strat.getMetadata().getStratumCounts().size());
+        assertEquals(40, strat.getMetadata().getStratumCap());
+        for(long rows : strat.getMetadata().getStratumCounts().values()) assertEquals(NUM_ROWS / 10, rows);
+
+        // the families outlive the process through the sample catalog
+        Catalog reloaded = new Catalog();
+        reloaded.loadSampleCatalog(catalogFile);
+        List<SampleDBFile> families = Arrays.asList(
+                reloaded.getSampleDBFile(reloaded.getTableId("feed-uniform")),
+                reloaded.getSampleDBFile(reloaded.getTableId("feed-strat-0")));
+        for(SampleDBFile family : families) assertTrue(family.isPopulated());
+
+        for(File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+}
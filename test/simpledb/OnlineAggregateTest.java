@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.intField;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.Aggregator;
+import simpledb.execution.OnlineAggregate;
+import simpledb.execution.RunningStats;
+import simpledb.execution.SeqScanSample;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class OnlineAggregateTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 10000;
+    private static final int SAMPLE_ROWS = SystemTestUtil.SAMPLE_SIZES.get(SystemTestUtil.SAMPLE_SIZES.size() - 1);
+
+    private SampleDBFile sf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, null, null);
+        sf = SystemTestUtil.createUniformSample(hf, "sample-online");
+        tid = new TransactionId();
+    }
+
+    private List<Tuple> runOnline(Aggregator.Op op, int interval) throws Exception {
+        OnlineAggregate agg = new OnlineAggregate(new SeqScanSample(tid, sf.getId(), SAMPLE_ROWS), 1, op, NUM_ROWS, interval, 0.95);
+        List<Tuple> reports = new ArrayList<>();
+        agg.open();
+        while(agg.hasNext()) reports.add(agg.next());
+        agg.close();
+        return reports;
+    }
+
+    /**
+     * An estimate should be reported every interval rows, with the last one
+     * covering the whole sample
+     */
+    @Test
+    public void testReportsEveryInterval() throws Exception {
+        List<Tuple> reports = runOnline(Aggregator.Op.AVG, 100);
+        assertEquals(SAMPLE_ROWS / 100, reports.size());
+        for(int i = 0; i < reports.size(); i++) assertEquals((i + 1) * 100, intField(reports.get(i), 2));
+
+        // the final estimate is the mean of the sample
+        double sum = 0;
+        DbFileIterator it = sf.iterator(tid, SAMPLE_ROWS);
+        it.open();
+        while(it.hasNext()) sum += ((IntField) it.next().getField(1)).getValue();
+        it.close();
+        assertEquals(Math.round(sum / SAMPLE_ROWS), intField(reports.get(reports.size() - 1), 0));
+
+        // and the interval tightens as more rows are read
+        assertTrue(intField(reports.get(reports.size() - 1), 1) < intField(reports.get(0), 1));
+    }
+
+    /**
+     * A trailing partial interval should still be reported
+     */
+    @Test
+    public void testPartialInterval() throws Exception {
+        List<Tuple> reports = runOnline(Aggregator.Op.SUM, 300);
+        assertEquals(4, reports.size());
+        assertEquals(SAMPLE_ROWS, intField(reports.get(3), 2));
+    }
+
+    /**
+     * Without a filter every row matches, so COUNT is exact
+     */
+    @Test
+    public void testCount() throws Exception {
+        for(Tuple report : runOnline(Aggregator.Op.COUNT, 250)) {
+            assertEquals(NUM_ROWS, intField(report, 0));
+            assertEquals(0, intField(report, 1));
+        }
+    }
+
+    /**
+     * RunningStats should agree with a two pass computation
+     */
+    @Test
+    public void testRunningStats() {
+        double[] values = {4, 7, 13, 16, 2, 9};
+        RunningStats stats = new RunningStats();
+        for(double v : values) stats.add(v);
+
+        double mean = Arrays.stream(values).average().getAsDouble();
+        double m2 = Arrays.stream(values).map(v -> (v - mean) * (v - mean)).sum();
+        assertEquals(mean, stats.getMean(), 1e-9);
+        assertEquals(m2, stats.getM2(), 1e-9);
+        assertEquals(m2 / (values.length - 1), stats.getVariance(), 1e-9);
+        assertEquals(1.96, RunningStats.zScore(0.95), 1e-3);
+        assertEquals(2.576, RunningStats.zScore(0.99), 1e-3);
+    }
+}
@@ -0,0 +1,176 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.optimizer.SampleBuildService;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IoThrottle;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class SampleBuildServiceTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 5000;
+    private static final List<Integer> SIZES = Arrays.asList(100, 500);
+
+    private HeapFile hf;
+    private File dir;
+    private SampleBuildService service;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, 20, null, null);
+        dir = Files.createTempDirectory("sample-build").toFile();
+        dir.deleteOnExit();
+        service = new SampleBuildService(2, 0, dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.shutdown(10, TimeUnit.SECONDS);
+        for(File f : dir.listFiles()) f.delete();
+    }
+
+    private int countRows(SampleDBFile sf) throws Exception {
+        int rows = 0;
+        DbFileIterator it = sf.iterator(new TransactionId(), SIZES.get(SIZES.size() - 1));
+        it.open();
+        while(it.hasNext()) {
+            it.next();
+            rows++;
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Built families should be published under their name
+     */
+    @Test
+    public void testBuildAndPublish() throws Exception {
+        Future<SampleDBFile> uniform = service.submit(hf.getId(), null, SIZES, "uniform");
+        Future<SampleDBFile> stratified = service.submit(hf.getId(), new QueryColumnSet(0), SIZES, "strat-0");
+
+        SampleDBFile sf = uniform.get(10, TimeUnit.SECONDS);
+        assertEquals(sf.getId(), Database.getCatalog().getTableId("uniform"));
+        assertEquals(hf.getId(), sf.getBaseTableId());
+        assertEquals(500, countRows(sf));
+
+        SampleDBFile strat = stratified.get(10, TimeUnit.SECONDS);
+        assertTrue(strat.isStratified());
+        assertEquals(strat.getId(), Database.getCatalog().getTableId("strat-0"));
+        assertEquals(2, Database.getCatalog().getSampleFamilies(hf.getId()).size());
+    }
+
+    /**
+     * A uniform family built by several threads should be published like any other
+     */
+    @Test
+    public void testParallelBuild() throws Exception {
+        SampleBuildService parallel = new SampleBuildService(1, 0, dir, 4);
+        try {
+            SampleDBFile sf = parallel.submit(hf.getId(), null, SIZES, "uniform-parallel").get(10, TimeUnit.SECONDS);
+            assertEquals(sf.getId(), Database.getCatalog().getTableId("uniform-parallel"));
+            assertEquals(hf.getId(), sf.getBaseTableId());
+            assertEquals(500, countRows(sf));
+        } finally {
+            parallel.shutdown(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Rebuilding a family should replace it, while the old one stays readable
+     */
+    @Test
+    public void testReplace() throws Exception {
+        SampleDBFile first = service.submit(hf.getId(), null, SIZES, "uniform").get(10, TimeUnit.SECONDS);
+        SampleDBFile second = service.submit(hf.getId(), null, SIZES, "uniform").get(10, TimeUnit.SECONDS);
+
+        assertNotEquals(first.getId(), second.getId());
+        assertEquals(second.getId(), Database.getCatalog().getTableId("uniform"));
+        assertEquals(1, Database.getCatalog().getSampleFamilies(hf.getId()).size());
+        assertSame(first, Database.getCatalog().getDatabaseFile(first.getId()));
+        assertEquals(500, countRows(first));
+
+        // once released, the old family's file is gone
+        Database.getCatalog().releaseRetiredSamples();
+        assertFalse(first.getFile().exists());
+        assertTrue(second.getFile().exists());
+        assertEquals(500, countRows(second));
+    }
+
+    /**
+     * Families submitted together should come from one scan of the base table
+     */
+    @Test
+    public void testSharedScan() throws Exception {
+        List<QueryColumnSet> families = Arrays.asList(null, new QueryColumnSet(0), new QueryColumnSet(1));
+        List<SampleDBFile> samples = service.submitAll(hf.getId(), families, SIZES,
+                Arrays.asList("uniform", "strat-0", "strat-1")).get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, samples.size());
+        assertEquals(3, Database.getCatalog().getSampleFamilies(hf.getId()).size());
+        for(int i = 0; i < samples.size(); i++) {
+            assertEquals(families.get(i) != null, samples.get(i).isStratified());
+            assertEquals(NUM_ROWS, samples.get(i).getBaseTableRows());
+            assertEquals(500, countRows(samples.get(i)));
+        }
+
+        // feeding several families reads each tuple once
+        List<SampleDBFile> more = Arrays.asList(new SampleDBFile(new File(dir, "shared.dat"), SIZES, null, hf.getTupleDesc()),
+                new SampleDBFile(new File(dir, "shared-0.dat"), SIZES, new QueryColumnSet(0), hf.getTupleDesc()));
+        Database.getCatalog().addTable(more.get(0), "shared");
+        Database.getCatalog().addTable(more.get(1), "shared-0");
+        int[] read = new int[2];
+        DbFileIterator it = hf.iterator(new TransactionId());
+        DbFileIterator counting = new DbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException { read[0]++; it.open(); }
+            public boolean hasNext() throws DbException, TransactionAbortedException { return it.hasNext(); }
+            public Tuple next() throws DbException, TransactionAbortedException { read[1]++; return it.next(); }
+            public void rewind() throws DbException, TransactionAbortedException { it.rewind(); }
+            public void close() { it.close(); }
+        };
+        SampleDBFile.createSamples(hf, counting, more, new TableStats(hf.getId(), 1));
+        assertEquals(1, read[0]);
+        assertEquals(NUM_ROWS, read[1]);
+        assertEquals(500, countRows(more.get(0)));
+        assertEquals(500, countRows(more.get(1)));
+    }
+
+    /**
+     * A throttle should hold readers to its rate
+     */
+    @Test
+    public void testThrottle() throws Exception {
+        IoThrottle throttle = new IoThrottle(100_000);
+        long start = System.nanoTime();
+        for(int i = 0; i < 6; i++) throttle.acquire(5_000);
+        // the first read goes right away, the other 5 take 50ms each
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(240));
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.optimizer.SampleCreator;
+import simpledb.optimizer.SamplePlan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class SampleCreatorTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 2000;
+    private static final int ROW_BYTES = 12;
+
+    private HeapFile hf;
+
+    /**
+     * Column 0 has 4 common values, column 1 has 1000 values of 2 rows each,
+     * column 2 has 50 values of 40 rows each. (0, 2) has 100 groups of 20 rows.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for(int i = 0; i < NUM_ROWS; i++) tuples.add(Arrays.asList(i % 4, i % 1000, i % 50));
+        File f = File.createTempFile("planner", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 3);
+        hf = Utility.openHeapFile(3, f);
+    }
+
+    private OpIterator query(int... columns) {
+        OpIterator it = new SeqScan(new TransactionId(), hf.getId(), "");
+        for(int column : columns) it = new Filter(new Predicate(column, Predicate.Op.EQUALS, new IntField(0)), it);
+        return it;
+    }
+
+    /**
+     * Only the column with rare groups is worth a sample
+     */
+    @Test
+    public void testRareGroups() {
+        SamplePlan plan = SampleCreator.planStratifiedSamples(hf.getId(), Arrays.asList(query(0), query(1)),
+                Long.MAX_VALUE, SampleCreator.DEFAULT_STRATUM_CAP);
+        assertTrue(plan.isExact());
+        assertEquals(Collections.singletonList(new QueryColumnSet(1)), plan.getColumnSets());
+        assertEquals(0.5 * 1000, plan.getGain(), 1e-9);
+        assertEquals(NUM_ROWS * ROW_BYTES, plan.getBytes());
+        assertEquals(plan.getGain() / plan.getBytes(), plan.getErrorReductionPerByte(), 1e-12);
+
+        // and not at all if it does not fit
+        plan = SampleCreator.planStratifiedSamples(hf.getId(), Arrays.asList(query(0), query(1)),
+                NUM_ROWS * ROW_BYTES - 1, SampleCreator.DEFAULT_STRATUM_CAP);
+        assertTrue(plan.getColumnSets().isEmpty());
+    }
+
+    /**
+     * A multi-column QCS should beat its subsets when only one sample fits
+     */
+    @Test
+    public void testMultiColumn() {
+        SamplePlan plan = SampleCreator.planStratifiedSamples(hf.getId(), Collections.singletonList(query(0, 2)),
+                NUM_ROWS * ROW_BYTES, SampleCreator.DEFAULT_STRATUM_CAP);
+        assertEquals(Collections.singletonList(new QueryColumnSet(0, 2)), plan.getColumnSets());
+        assertEquals(100, plan.getGain(), 1e-9);
+
+        // with a cap of 10 rows per group, (0, 2) has no rare groups left
+        plan = SampleCreator.planStratifiedSamples(hf.getId(), Collections.singletonList(query(0, 2)),
+                Long.MAX_VALUE, 10);
+        assertTrue(plan.getColumnSets().isEmpty());
+    }
+
+    /**
+     * Given the family's sizes, a candidate should be capped and sized as it
+     * would be built: a sample as large as the table keeps every group of
+     * column 1 whole, one of 500 rows can't
+     */
+    @Test
+    public void testSampleSizes() {
+        SamplePlan plan = SampleCreator.planStratifiedSamples(hf.getId(), Arrays.asList(query(0), query(1)),
+                NUM_ROWS * ROW_BYTES, Arrays.asList(1000, 3000));
+        assertEquals(Collections.singletonList(new QueryColumnSet(1)), plan.getColumnSets());
+        assertEquals(0.5 * 1000, plan.getGain(), 1e-9);
+        // the rows the strata leave are filled from the table, up to its size
+        assertEquals(NUM_ROWS * ROW_BYTES, plan.getBytes());
+
+        // so even column 0's 4 groups take the whole table
+        plan = SampleCreator.planStratifiedSamples(hf.getId(), Arrays.asList(query(0), query(1)),
+                NUM_ROWS * ROW_BYTES - 1, Arrays.asList(1000, 3000));
+        assertTrue(plan.getColumnSets().isEmpty());
+
+        plan = SampleCreator.planStratifiedSamples(hf.getId(), Arrays.asList(query(0), query(1)),
+                Long.MAX_VALUE, Arrays.asList(100, 500));
+        assertTrue(plan.getColumnSets().isEmpty());
+    }
+}
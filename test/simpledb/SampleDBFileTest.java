@@ -0,0 +1,536 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.SampleDirectory;
+import simpledb.storage.SampleMetadata;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SampleDBFileTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 50000;
+
+    private HeapFile hf;
+    private TupleDesc td;
+    private List<List<Integer>> tuples;
+    private List<Integer> sampleSizes;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, null, tuples);
+        td = Utility.getTupleDesc(2);
+        sampleSizes = Arrays.asList(100, 500, 1000);
+    }
+
+    private SampleDBFile createSampleFile(String name) throws Exception {
+        File f = File.createTempFile(name, "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, sampleSizes, null, td);
+        Database.getCatalog().addTable(sf, name, "", true);
+        return sf;
+    }
+
+    /**
+     * Read back the first cutoff rows of the sample, checking that every row came from the base table
+     */
+    private List<List<Integer>> readSample(SampleDBFile sf, int cutoff) throws Exception {
+        Map<List<Integer>, Integer> remaining = new HashMap<>();
+        for(List<Integer> tuple : tuples) remaining.merge(tuple, 1, Integer::sum);
+
+        List<List<Integer>> sample = new ArrayList<>();
+        DbFileIterator it = sf.iterator(new TransactionId(), cutoff);
+        it.open();
+        while(it.hasNext()) {
+            List<Integer> tuple = SystemTestUtil.tupleToList(it.next());
+            Integer count = remaining.get(tuple);
+            assertTrue("sampled tuple is not in the base table", count != null && count > 0);
+            remaining.put(tuple, count - 1);
+            sample.add(tuple);
+        }
+        it.close();
+        return sample;
+    }
+
+    /**
+     * The parallel build should produce a sample of the right size for every cutoff
+     */
+    @Test
+    public void testParallelUniformSamples() throws Exception {
+        SampleDBFile sf = createSampleFile("sample-parallel");
+        sf.createUniformSamples(hf, 4);
+
+        for(int cutoff : sampleSizes) {
+            assertEquals(cutoff, readSample(sf, cutoff).size());
+        }
+    }
+
+    /**
+     * The parallel build should not be biased towards any part of the base table:
+     * on average, half the sample should come from the first half of the file.
+     */
+    @Test
+    public void testParallelUniformSamplesUnbiased() throws Exception {
+        SampleDBFile sf = createSampleFile("sample-parallel-unbiased");
+        sf.createUniformSamples(hf, 4);
+
+        Map<List<Integer>, Integer> firstHalf = new HashMap<>();
+        for(List<Integer> tuple : tuples.subList(0, NUM_ROWS / 2)) firstHalf.merge(tuple, 1, Integer::sum);
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int inFirstHalf = 0;
+        for(List<Integer> tuple : readSample(sf, maxSize)) {
+            if(firstHalf.containsKey(tuple)) inFirstHalf++;
+        }
+
+        // Binomial(1000, 0.5) has a standard deviation of ~16, allow 5 of them
+        assertTrue(Math.abs(inFirstHalf - maxSize / 2) < 80);
+    }
+
+    /**
+     * A mapped sample should read the same rows without going through the BufferPool
+     */
+    @Test
+    public void testMappedSample() throws Exception {
+        SampleDBFile sf = createSampleFile("sample-mapped");
+        sf.createUniformSamples(hf);
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        List<List<Integer>> expected = readSample(sf, maxSize);
+
+        Database.getBufferPool().clearBufferPool();
+        sf.setMapped(true);
+        assertEquals(expected, readSample(sf, maxSize));
+        assertFalse(Database.getBufferPool().isCached(new HeapPageId(sf.getId(), 0)));
+
+        // pages the BufferPool holds are newer than the file
+        HeapPage cached = (HeapPage) Database.getBufferPool().getPage(new TransactionId(),
+                new HeapPageId(sf.getId(), 0), Permissions.READ_WRITE);
+        cached.deleteTuple(cached.iterator().next());
+        Tuple replacement = new Tuple(td);
+        replacement.setField(0, new IntField(-1));
+        replacement.setField(1, new IntField(-1));
+        cached.insertTuple(replacement);
+        DbFileIterator it = sf.iterator(new TransactionId(), maxSize);
+        it.open();
+        assertEquals(Arrays.asList(-1, -1), SystemTestUtil.tupleToList(it.next()));
+        it.close();
+    }
+
+    /**
+     * Rebuilding a populated sample should replace its rows rather than add to them
+     */
+    @Test
+    public void testRebuildReplacesSample() throws Exception {
+        SampleDBFile sf = createSampleFile("sample-rebuild");
+        sf.createUniformSamples(hf);
+        int numPages = sf.numPages();
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        // cache a page of the old sample, as a query would
+        Database.getBufferPool().getPage(new TransactionId(), new HeapPageId(sf.getId(), 0), Permissions.READ_ONLY);
+
+        // rebuild from a table whose rows are all new
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < NUM_ROWS; i++) rows.add(Arrays.asList(-1, i));
+        HeapFile other = createBaseFile(rows);
+        sf.createUniformSamples(other);
+
+        assertEquals(numPages, sf.numPages());
+        assertEquals(numPages, sf.getDirectory().numPages());
+        for(int cutoff : sampleSizes) {
+            DbFileIterator it = sf.iterator(new TransactionId(), cutoff);
+            it.open();
+            int n = 0;
+            for(; it.hasNext(); n++) assertEquals(-1, ((IntField) it.next().getField(0)).getValue());
+            it.close();
+            assertEquals(cutoff, n);
+        }
+        assertEquals(NUM_ROWS, sf.getBaseTableRows());
+        assertEquals(maxSize, sf.getDirectory().totalTuples());
+    }
+
+    /**
+     * Building a sample should persist a directory locating the end of every cutoff
+     */
+    @Test
+    public void testSampleDirectory() throws Exception {
+        SampleDBFile sf = createSampleFile("sample-directory");
+        sf.createUniformSamples(hf);
+
+        File dirFile = SampleDirectory.fileFor(sf.getFile());
+        dirFile.deleteOnExit();
+        SampleDirectory directory = SampleDirectory.load(dirFile);
+        assertNotNull(directory);
+        assertEquals(sf.numPages(), directory.numPages());
+        assertEquals(sampleSizes.get(sampleSizes.size() - 1).longValue(), directory.totalTuples());
+
+        for(int cutoff : sampleSizes) {
+            int endPage = directory.endPage(cutoff);
+            int endCount = directory.endCount(cutoff);
+            assertTrue(endCount > 0 && endCount <= directory.getPageCount(endPage));
+            assertEquals(cutoff, directory.getPageOffset(endPage) + endCount);
+            assertEquals(cutoff, readSample(sf, cutoff).size());
+        }
+
+        // asking for more rows than the sample holds stops at the end of the file
+        assertEquals(sf.numPages() - 1, directory.endPage(Integer.MAX_VALUE));
+    }
+
+    /**
+     * A stratified sample should cap common groups and keep rare groups whole,
+     * at every nested size
+     */
+    @Test
+    public void testStratifiedSamples() throws Exception {
+        // group 0 is common, groups 1-9 only have 50 rows each
+        List<List<Integer>> skewed = new ArrayList<>();
+        for(int i = 0; i < 10000; i++) skewed.add(Arrays.asList(i, 0));
+        for(int g = 1; g < 10; g++) {
+            for(int i = 0; i < 50; i++) skewed.add(Arrays.asList(i, g));
+        }
+        File baseFile = File.createTempFile("skewed", ".dat");
+        baseFile.deleteOnExit();
+        HeapFileEncoder.convert(skewed, baseFile, BufferPool.getPageSize(), 2);
+        HeapFile base = Utility.openHeapFile(2, baseFile);
+
+        File f = File.createTempFile("sample-stratified", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, sampleSizes, new QueryColumnSet(1), td);
+        Database.getCatalog().addTable(sf, "sample-stratified", "", true);
+        sf.createStratifiedSamples(base);
+
+        for(int cutoff : sampleSizes) {
+            int[] groupCounts = new int[10];
+            DbFileIterator it = sf.iterator(new TransactionId(), cutoff);
+            it.open();
+            int n = 0;
+            while(it.hasNext()) {
+                groupCounts[((IntField) it.next().getField(1)).getValue()]++;
+                n++;
+            }
+            it.close();
+            assertEquals(cutoff, n);
+
+            // 10 groups, so each group may contribute up to a tenth of the sample
+            for(int g = 1; g < 10; g++) assertEquals(Math.min(50, cutoff / 10), groupCounts[g]);
+            assertEquals(cutoff - 9 * Math.min(50, cutoff / 10), groupCounts[0]);
+        }
+    }
+
+    /**
+     * With more strata than histogram buckets, the caps should be fitted to
+     * the strata seen rather than to the buckets
+     */
+    @Test
+    public void testStratifiedCapsFitObservedStrata() throws Exception {
+        // 300 groups of 100 rows, but the histograms only have 100 buckets
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < 30000; i++) rows.add(Arrays.asList(i, i % 300));
+        HeapFile base = createBaseFile(rows);
+
+        File f = File.createTempFile("sample-fitted", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, sampleSizes, new QueryColumnSet(1), td);
+        Database.getCatalog().addTable(sf, "sample-fitted", "", true);
+        sf.createStratifiedSamples(base);
+        // 3 rows of each of the 300 groups fit in the 1000-row sample, a tenth of it (100 buckets) doesn't
+        assertEquals(3, sf.getMetadata().getStratumCap());
+        DbFileIterator it = sf.iterator(new TransactionId(), 1000);
+        it.open();
+        int n = 0;
+        for(; it.hasNext(); n++) it.next();
+        it.close();
+        assertEquals(1000, n);
+    }
+
+    /**
+     * Write the rows to a new heap file and register it with the catalog
+     */
+    private HeapFile createBaseFile(List<List<Integer>> rows) throws Exception {
+        File baseFile = File.createTempFile("base", ".dat");
+        baseFile.deleteOnExit();
+        HeapFileEncoder.convert(rows, baseFile, BufferPool.getPageSize(), 2);
+        return Utility.openHeapFile(2, baseFile);
+    }
+
+    private static Tuple makeTuple(TupleDesc td, int a, int b) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /**
+     * Inserting into the base table should replace sample rows with new ones at
+     * the reservoir sampling rate, keeping the sample and its directory full
+     */
+    @Test
+    public void testUniformSampleMaintenanceInsert() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) rows.add(Arrays.asList(i, i));
+        HeapFile base = createBaseFile(rows);
+        SampleDBFile sf = createSampleFile("sample-maintained");
+        sf.createUniformSamples(base);
+
+        TransactionId tid = new TransactionId();
+        for(int i = 0; i < 2000; i++) Database.getBufferPool().insertTuple(tid, base.getId(), makeTuple(td, i, -1));
+        assertEquals(4000, sf.getBaseTableRows());
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int inserted = 0, n = 0;
+        DbFileIterator it = sf.iterator(tid, maxSize);
+        it.open();
+        while(it.hasNext()) {
+            if(((IntField) it.next().getField(1)).getValue() == -1) inserted++;
+            n++;
+        }
+        it.close();
+        assertEquals(maxSize, n);
+        // half the base table is new, so about half the sample should be
+        assertTrue(Math.abs(inserted - maxSize / 2) < 100);
+
+        Database.getBufferPool().flushAllPages();
+        assertEquals(maxSize, SampleDirectory.load(SampleDirectory.fileFor(sf.getFile())).totalTuples());
+    }
+
+    /**
+     * Deleting a sampled tuple from the base table should tombstone its sample row
+     */
+    @Test
+    public void testUniformSampleMaintenanceDelete() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) rows.add(Arrays.asList(i, i));
+        HeapFile base = createBaseFile(rows);
+        SampleDBFile sf = createSampleFile("sample-tombstoned");
+        sf.createUniformSamples(base);
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = sf.iterator(tid, maxSize);
+        it.open();
+        int sampled = ((IntField) it.next().getField(0)).getValue();
+        it.close();
+
+        it = base.iterator(tid);
+        it.open();
+        Tuple victim = null;
+        while(victim == null) {
+            Tuple t = it.next();
+            if(((IntField) t.getField(0)).getValue() == sampled) victim = t;
+        }
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, victim);
+
+        int n = 0;
+        it = sf.iterator(tid, maxSize);
+        it.open();
+        while(it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() != sampled);
+            n++;
+        }
+        it.close();
+        assertEquals(maxSize - 1, n);
+        assertEquals(maxSize - 1, sf.getDirectory().totalTuples());
+        assertEquals(1999, sf.getBaseTableRows());
+    }
+
+    /**
+     * Inserts after deletes should only fill the sample's holes at the rate
+     * that keeps it uniform, rather than keeping the first rows inserted
+     */
+    @Test
+    public void testUniformSampleMaintenanceDeleteThenInsert() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < 10000; i++) rows.add(Arrays.asList(i, i));
+        HeapFile base = createBaseFile(rows);
+        SampleDBFile sf = createSampleFile("sample-paired");
+        sf.createUniformSamples(base);
+
+        // delete half the table, then insert as many new rows
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = base.iterator(tid);
+        it.open();
+        List<Tuple> victims = new ArrayList<>();
+        while(it.hasNext()) {
+            Tuple t = it.next();
+            if(((IntField) t.getField(0)).getValue() < 5000) victims.add(t);
+        }
+        it.close();
+        for(Tuple t : victims) Database.getBufferPool().deleteTuple(tid, t);
+        for(int i = 0; i < 5000; i++) Database.getBufferPool().insertTuple(tid, base.getId(), makeTuple(td, 10000 + i, -1));
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int inserted = 0, firstInserted = 0, n = 0;
+        it = sf.iterator(tid, maxSize);
+        it.open();
+        while(it.hasNext()) {
+            int v = ((IntField) it.next().getField(0)).getValue();
+            if(v >= 10000) inserted++;
+            if(v >= 10000 && v < 10500) firstInserted++;
+            n++;
+        }
+        it.close();
+        assertEquals(maxSize, n);
+        // half the base table is new: Binomial(1000, 0.5) has a standard deviation of ~16, allow 5 of them
+        assertTrue(Math.abs(inserted - maxSize / 2) < 80);
+        // the first tenth of the new rows should be a tenth of the new sample rows, ~50 (sd ~7)
+        assertTrue(firstInserted < 90);
+    }
+
+    /**
+     * Inserting a new rare group into the base table should add all of it to a
+     * stratified sample, at the expense of the common group
+     */
+    @Test
+    public void testStratifiedSampleMaintenance() throws Exception {
+        List<List<Integer>> skewed = new ArrayList<>();
+        for(int i = 0; i < 5000; i++) skewed.add(Arrays.asList(i, 0));
+        for(int g = 1; g < 10; g++) {
+            for(int i = 0; i < 50; i++) skewed.add(Arrays.asList(i, g));
+        }
+        HeapFile base = createBaseFile(skewed);
+
+        File f = File.createTempFile("sample-stratified-maintained", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, sampleSizes, new QueryColumnSet(1), td);
+        Database.getCatalog().addTable(sf, "sample-stratified-maintained", "", true);
+        sf.createStratifiedSamples(base);
+
+        TransactionId tid = new TransactionId();
+        for(int i = 0; i < 50; i++) Database.getBufferPool().insertTuple(tid, base.getId(), makeTuple(td, i, 10));
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int[] groupCounts = new int[11];
+        DbFileIterator it = sf.iterator(tid, maxSize);
+        it.open();
+        while(it.hasNext()) groupCounts[((IntField) it.next().getField(1)).getValue()]++;
+        it.close();
+
+        for(int g = 1; g < 11; g++) assertEquals(50, groupCounts[g]);
+        assertEquals(maxSize - 500, groupCounts[0]);
+    }
+
+    /**
+     * A built sample family should be recorded in the sample catalog, and be
+     * usable after a restart without its base table being registered
+     */
+    @Test
+    public void testSampleCatalog() throws Exception {
+        File catalogFile = File.createTempFile("samples", ".catalog");
+        catalogFile.delete();
+        catalogFile.deleteOnExit();
+        Database.getCatalog().loadSampleCatalog(catalogFile);
+
+        List<List<Integer>> rows = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) rows.add(Arrays.asList(i, i % 10));
+        HeapFile base = createBaseFile(rows);
+
+        File f = File.createTempFile("sample-cataloged", "dat");
+        f.deleteOnExit();
+        SampleDBFile sf = new SampleDBFile(f, sampleSizes, new QueryColumnSet(1), td);
+        Database.getCatalog().addTable(sf, "sample-cataloged", "", true);
+        assertFalse(sf.isPopulated());
+        sf.createStratifiedSamples(base);
+        assertTrue(catalogFile.exists());
+
+        // restart: only the sample catalog is loaded
+        Database.reset();
+        Database.getCatalog().loadSampleCatalog(catalogFile);
+        SampleDBFile loaded = Database.getCatalog().getSampleDBFile(Database.getCatalog().getTableId("sample-cataloged"));
+        SampleMetadata metadata = loaded.getMetadata();
+        assertEquals(base.getId(), metadata.getBaseTableId());
+        assertEquals(2000, metadata.getBaseTableRows());
+        assertEquals(sampleSizes, metadata.getCutoffs());
+        assertEquals(new QueryColumnSet(1), metadata.getQueryColumnSet());
+        assertEquals(10, metadata.getStratumCounts().size());
+        assertEquals(sf.getMetadata().getBuildTime(), metadata.getBuildTime());
+        assertEquals(td, loaded.getTupleDesc());
+        DbFileIterator it = loaded.iterator(new TransactionId(), sampleSizes.get(1));
+        it.open();
+        int n = 0;
+        for(; it.hasNext(); n++) it.next();
+        it.close();
+        assertEquals(sampleSizes.get(1).intValue(), n);
+
+        // re-declaring the same sample family picks up the recorded metadata
+        SampleDBFile redeclared = new SampleDBFile(f, sampleSizes, new QueryColumnSet(1), td);
+        Database.getCatalog().addTable(redeclared, "sample-cataloged", "", true);
+        assertTrue(redeclared.isPopulated());
+    }
+
+    /**
+     * The parallel build should see rows that are only in the BufferPool so
+     * far, without flushing them
+     */
+    @Test
+    public void testParallelUniformSamplesSeeUnflushedRows() throws Exception {
+        int parallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+        TransactionId tid = new TransactionId();
+        int numInserted = NUM_ROWS / 10;
+        for(int i = 0; i < numInserted; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(-1));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            tuples.add(Arrays.asList(-1, i));
+        }
+
+        int dirty = dirtyPages(hf);
+        assertTrue(dirty > 0);
+        SampleDBFile sf = createSampleFile("sample-parallel-unflushed");
+        sf.createUniformSamples(hf, parallelism);
+        assertEquals(dirty, dirtyPages(hf));
+
+        int maxSize = sampleSizes.get(sampleSizes.size() - 1);
+        int inserted = 0;
+        for(List<Integer> tuple : readSample(sf, maxSize)) {
+            if(tuple.get(0) == -1) inserted++;
+        }
+        // 1 row in 11 was inserted: Binomial(1000, 1/11) has a standard deviation of ~9, allow 5 of them
+        assertTrue(Math.abs(inserted - maxSize / 11) < 45);
+        for(int cutoff : sampleSizes) {
+            assertEquals(cutoff, readSample(sf, cutoff).size());
+        }
+    }
+
+    private static int dirtyPages(HeapFile f) {
+        int dirty = 0;
+        for(int pgNo = 0; pgNo < f.numPages(); pgNo++) {
+            Page page = Database.getBufferPool().getCachedPage(new HeapPageId(f.getId(), pgNo));
+            if(page != null && page.isDirty() != null) dirty++;
+        }
+        return dirty;
+    }
+}
@@ -1,5 +1,7 @@
 package simpledb;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -25,6 +27,7 @@ import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.execution.SeqScanSample;
 import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.ErrorLatencyProfile;
 import simpledb.optimizer.QueryColumnSet;
 import simpledb.optimizer.SampleSelector;
 import simpledb.storage.BufferPool;
@@ -33,6 +36,7 @@ import simpledb.storage.DbFileIterator;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
 import simpledb.storage.SampleDBFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -52,6 +56,7 @@ public class SampleSelectionTest {
      */
     @Before
     public void setUp() throws Exception {
+        Database.reset();
         Type types[] = new Type[]{Type.INT_TYPE, Type.INT_TYPE};
         String names[] = new String[]{"id", "quantity"};
         hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, null);
@@ -146,4 +151,60 @@ public class SampleSelectionTest {
         int ms = SampleSelector.timeQueryOnSample(sf.getId(), operator, N_TUPS);
     }
     
-}
\ No newline at end of file
+    private OpIterator filteredAvg(int threshold, Aggregator.Op op) {
+        Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(threshold));
+        return new Aggregate(new Filter(pred, new SeqScan(null, hf.getId(), "")), 1, -1, op);
+    }
+
+    /**
+     * Test that error-latency profiles are reused for the same query shape and
+     * dropped when the sample is rebuilt
+     */
+    @Test
+    public void testProfileCache() throws Exception {
+        ErrorLatencyProfile profile = SampleSelector.getProfile(sf.getId(), filteredAvg(30000, Aggregator.Op.AVG), 500);
+        assertEquals(500, profile.getRowsRead());
+        assertTrue(profile.getSelectivity() > 0 && profile.getSelectivity() < 1);
+        assertTrue(profile.getRowsPerMs() > 0);
+
+        // the constant is not part of the shape
+        assertSame(profile, SampleSelector.getProfile(sf.getId(), filteredAvg(100, Aggregator.Op.AVG), 500));
+        assertNotSame(profile, SampleSelector.getProfile(sf.getId(), filteredAvg(30000, Aggregator.Op.SUM), 500));
+
+        sf.createUniformSamples(this.hf);
+        assertNotSame(profile, SampleSelector.getProfile(sf.getId(), filteredAvg(30000, Aggregator.Op.AVG), 500));
+    }
+    
+    /**
+     * Test that selectSample probes every family, without rewriting the query
+     */
+    @Test
+    public void testConcurrentProbes() throws Exception {
+        List<SampleDBFile> families = new ArrayList<>();
+        families.add(sf);
+        for (int i = 0; i < 3; i++) {
+            File f = File.createTempFile("sample-probe", "dat");
+            f.deleteOnExit();
+            SampleDBFile family = new SampleDBFile(f, sampleSizes, null, td);
+            Database.getCatalog().addTable(family, "sample-probe-" + i, "", true);
+            family.createUniformSamples(this.hf);
+            families.add(family);
+        }
+
+        OpIterator query = filteredAvg(30000, Aggregator.Op.AVG);
+        int selected = SampleSelector.selectSample(new QueryColumnSet(query), query);
+
+        double best = -1;
+        Set<Integer> ids = new HashSet<>();
+        for (SampleDBFile family : families) {
+            ErrorLatencyProfile profile = Database.getProfileCache().get(ErrorLatencyProfile.Key.of(query, family.getId()));
+            assertTrue(profile != null && profile.getRowsRead() == sampleSizes.get(0));
+            best = Math.max(best, profile.getSelectivity());
+            ids.add(family.getId());
+        }
+        assertTrue(ids.contains(selected));
+        assertEquals(best, Database.getProfileCache().get(ErrorLatencyProfile.Key.of(query, selected)).getSelectivity(), 0);
+        assertTrue(((Operator) ((Operator) query).getChildren()[0]).getChildren()[0] instanceof SeqScan);
+    }
+    
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SampleAggregate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SeqScanSample;
+import simpledb.optimizer.SampleSelector;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.SampleDBFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SeqScanSampleTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 10000;
+    private static final int SAMPLE_ROWS = SystemTestUtil.SAMPLE_SIZES.get(SystemTestUtil.SAMPLE_SIZES.size() - 1);
+
+    private HeapFile hf;
+    private SampleDBFile sf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, NUM_ROWS, null, null);
+        sf = SystemTestUtil.createUniformSample(hf, "sample-scan");
+    }
+
+    private int drain(OpIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while(it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A scan past its deadline should stop, and a generous deadline should not cut it short
+     */
+    @Test
+    public void testTimeBudget() throws Exception {
+        SeqScanSample expired = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        expired.setTimeBudget(0);
+        assertEquals(0, drain(expired));
+
+        SeqScanSample generous = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        generous.setTimeBudget(60000);
+        assertEquals(SAMPLE_ROWS, drain(generous));
+    }
+
+    /**
+     * SampleAggregate should scale by the rows actually read when the scan stops early
+     */
+    @Test
+    public void testSampleAggregateScalesByRowsRead() throws Exception {
+        SeqScanSample scan = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        scan.setStopCondition(() -> true, 500);
+        Aggregate count = new Aggregate(scan, 0, -1, Aggregator.Op.COUNT);
+        SampleAggregate estimate = new SampleAggregate(count, SAMPLE_ROWS, NUM_ROWS, Aggregator.Op.COUNT);
+
+        estimate.open();
+        int result = ((IntField) estimate.next().getField(0)).getValue();
+        estimate.close();
+        assertEquals(500, scan.totalTuples());
+        assertEquals(NUM_ROWS, result);
+    }
+
+    /**
+     * SampleSelector should build a time-bounded query that returns a scaled answer
+     */
+    @Test
+    public void testLatencyBoundedQuery() throws Exception {
+        OpIterator query = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""), 1, -1, Aggregator.Op.COUNT);
+        OpIterator bounded = SampleSelector.latencyBoundedQuery(sf.getId(), query, NUM_ROWS, 60000);
+        bounded.open();
+        assertTrue(bounded.hasNext());
+        assertEquals(NUM_ROWS, ((IntField) bounded.next().getField(0)).getValue());
+        bounded.close();
+    }
+}
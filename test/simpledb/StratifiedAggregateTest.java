@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SampleAggregate;
+import simpledb.execution.SeqScanSample;
+import simpledb.optimizer.QueryColumnSet;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.SampleDBFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class StratifiedAggregateTest extends SimpleDbTestBase {
+
+    private static final int NUM_ROWS = 10000;
+    private static final int SAMPLE_ROWS = 200;
+
+    private SampleDBFile sf;
+
+    /**
+     * Column 0 is 0 for 9100 rows and each of 1..9 for 100 rows, column 1 is
+     * ten times column 0. The sample is stratified on column 0, 20 rows per value.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for(int i = 0; i < NUM_ROWS; i++) {
+            int v = i < 900 ? i % 9 + 1 : 0;
+            tuples.add(Arrays.asList(v, v * 10));
+        }
+        File f = File.createTempFile("weighted-base", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        File sampleFile = File.createTempFile("weighted-sample", "dat");
+        sampleFile.deleteOnExit();
+        sf = new SampleDBFile(sampleFile, Arrays.asList(SAMPLE_ROWS), new QueryColumnSet(0), hf.getTupleDesc());
+        Database.getCatalog().addTable(sf, "weighted-sample", "", true);
+        sf.createStratifiedSamples(hf);
+    }
+
+    private List<Tuple> run(OpIterator it) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        it.open();
+        while(it.hasNext()) result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    private SampleAggregate estimate(OpIterator input, int afield, int gfield, Aggregator.Op op) {
+        return new SampleAggregate(new Aggregate(input, afield, gfield, op), SAMPLE_ROWS, NUM_ROWS, op);
+    }
+
+    /**
+     * Each group of the stratified column should be scaled by its own stratum's rate
+     */
+    @Test
+    public void testGroupCounts() throws Exception {
+        OpIterator scan = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for(Tuple t : run(estimate(scan, 1, 0, Aggregator.Op.COUNT))) {
+            counts.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        assertEquals(10, counts.size());
+        assertEquals(9100, (int) counts.get(0));
+        for(int v = 1; v <= 9; v++) assertEquals(100, (int) counts.get(v));
+    }
+
+    /**
+     * Capped strata should not bias SUM and AVG, with or without filters
+     */
+    @Test
+    public void testSumAndAvg() throws Exception {
+        OpIterator scan = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        Tuple sum = run(estimate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM)).get(0);
+        assertEquals(45000, ((IntField) sum.getField(0)).getValue());
+
+        scan = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        Tuple avg = run(estimate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.AVG)).get(0);
+        assertEquals(45000 / NUM_ROWS, ((IntField) avg.getField(0)).getValue());
+
+        scan = new SeqScanSample(new TransactionId(), sf.getId(), SAMPLE_ROWS);
+        OpIterator filtered = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(4)), scan);
+        Tuple count = run(estimate(filtered, 0, Aggregator.NO_GROUPING, Aggregator.Op.COUNT)).get(0);
+        assertEquals(500, ((IntField) count.getField(0)).getValue());
+    }
+
+    /**
+     * COUNT doesn't read the values it counts, so it should work over a string column
+     */
+    @Test
+    public void testCountStringColumn() throws Exception {
+        File text = File.createTempFile("weighted-strings", "txt");
+        text.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(text)) {
+            for(int i = 0; i < NUM_ROWS; i++) out.println((i < 900 ? i % 9 + 1 : 0) + ",row" + i);
+        }
+        Type[] types = new Type[]{Type.INT_TYPE, Type.STRING_TYPE};
+        File f = File.createTempFile("weighted-strings", "dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(text, f, BufferPool.getPageSize(), 2, types);
+        HeapFile hf = new HeapFile(f, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, "weighted-strings");
+
+        File sampleFile = File.createTempFile("weighted-strings-sample", "dat");
+        sampleFile.deleteOnExit();
+        SampleDBFile strings = new SampleDBFile(sampleFile, Arrays.asList(SAMPLE_ROWS), new QueryColumnSet(0), hf.getTupleDesc());
+        Database.getCatalog().addTable(strings, "weighted-strings-sample", "", true);
+        strings.createStratifiedSamples(hf);
+
+        OpIterator scan = new SeqScanSample(new TransactionId(), strings.getId(), SAMPLE_ROWS);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for(Tuple t : run(estimate(scan, 1, 0, Aggregator.Op.COUNT))) {
+            counts.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        assertEquals(9100, (int) counts.get(0));
+        for(int v = 1; v <= 9; v++) assertEquals(100, (int) counts.get(v));
+    }
+}
@@ -3,6 +3,8 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -23,6 +25,9 @@ public class SystemTestUtil {
 
     private static final int MAX_RAND_VALUE = 1 << 16;
 
+    /** The cutoffs of the sample families made by createUniformSample. */
+    public static final List<Integer> SAMPLE_SIZES = Collections.unmodifiableList(Arrays.asList(100, 500, 1000));
+
     /** @param columnSpecification Mapping between column index and value. */
     public static HeapFile createRandomHeapFile(
             int columns, int rows, Map<Integer, Integer> columnSpecification,
@@ -151,6 +156,36 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * Builds a uniform sample family of f, with cutoffs SAMPLE_SIZES, in a
+     * temporary file.
+     * @param name the name the family is added to the catalog under
+     */
+    public static SampleDBFile createUniformSample(HeapFile f, String name)
+            throws IOException, DbException, TransactionAbortedException {
+        File temp = File.createTempFile(name, ".dat");
+        temp.deleteOnExit();
+        SampleDBFile sample = new SampleDBFile(temp, SAMPLE_SIZES, null, f.getTupleDesc());
+        Database.getCatalog().addTable(sample, name, "", true);
+        sample.createUniformSamples(f);
+        return sample;
+    }
+
+    /** Runs query, which must return a single tuple, and returns it. */
+    public static Tuple runSingle(OpIterator query)
+            throws DbException, TransactionAbortedException {
+        query.open();
+        Assert.assertTrue(query.hasNext());
+        Tuple result = query.next();
+        Assert.assertFalse(query.hasNext());
+        query.close();
+        return result;
+    }
+
+    public static int intField(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM